@@ -0,0 +1,75 @@
+package com.dpaulenk.webproxy.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Runs the selected benchmarks once per thread count and prints a summary table,
+ * including bytes allocated per operation as reported by the GC profiler.
+ * <pre>
+ *   BenchmarkRunner [include regex] [thread counts, e.g. 1,2,4,8,16,32,64]
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*";
+        String threads = args.length > 1 ? args[1] : "1";
+
+        List<String> summary = new ArrayList<String>();
+        for (String t : threads.split(",")) {
+            int threadsCount = Integer.parseInt(t.trim());
+
+            Options options = new OptionsBuilder()
+                .include(include)
+                .threads(threadsCount)
+                .addProfiler(GCProfiler.class)
+                .build();
+
+            Collection<RunResult> results = new Runner(options).run();
+            for (RunResult result : results) {
+                summary.add(String.format("%-70s %-30s threads=%-3d %14.1f %-8s %10.1f B/op",
+                                          result.getParams().getBenchmark(),
+                                          result.getParams().getParamsKeys().isEmpty() ? "" : params(result),
+                                          threadsCount,
+                                          result.getPrimaryResult().getScore(),
+                                          result.getPrimaryResult().getScoreUnit(),
+                                          allocatedPerOp(result)));
+            }
+        }
+
+        System.out.println();
+        for (String line : summary) {
+            System.out.println(line);
+        }
+    }
+
+    private static double allocatedPerOp(RunResult result) {
+        for (Result<?> secondary : result.getSecondaryResults().values()) {
+            if (secondary.getLabel().endsWith("gc.alloc.rate.norm")) {
+                return secondary.getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static String params(RunResult result) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : result.getParams().getParamsKeys()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(key).append('=').append(result.getParams().getParam(key));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.dpaulenk.webproxy.bench;
+
+import com.dpaulenk.webproxy.filter.BlockList;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block list checks done by the filter handler for every request, against large generated rule files.
+ * Most requests are not blocked, so misses are what matters for the common path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class BlockListBenchmark {
+
+    private static final int URIS_COUNT = 4096;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rules;
+
+    private BlockList blockList;
+
+    private String[] blockedUris;
+    private String[] allowedUris;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+
+        File file = File.createTempFile("blocklist", ".txt");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (int i = 0; i < rules; i++) {
+                //mostly domains, like public lists, with some uri prefixes
+                if (i % 10 == 0) {
+                    writer.write("cdn" + i + ".example.net/ads/\n");
+                } else {
+                    writer.write("0.0.0.0 ads" + i + ".tracker" + (i % 97) + ".com\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        blockList = BlockList.load(new String[]{file.getPath()}, new String[]{".*/track\\.gif\\?.*"});
+
+        blockedUris = new String[URIS_COUNT];
+        allowedUris = new String[URIS_COUNT];
+        for (int i = 0; i < URIS_COUNT; i++) {
+            int rule = random.nextInt(rules);
+            blockedUris[i] = rule % 10 == 0
+                ? "http://cdn" + rule + ".example.net/ads/banner.png"
+                : "http://img.ads" + rule + ".tracker" + (rule % 97) + ".com/pixel.gif";
+            allowedUris[i] = "http://static" + random.nextInt(100000) + ".example.org/app/main.js?v=" + i;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Index {
+        int next;
+    }
+
+    @Benchmark
+    public boolean blocked(Index index) {
+        return blockList.isBlocked(blockedUris[index.next++ & (URIS_COUNT - 1)], null);
+    }
+
+    @Benchmark
+    public boolean allowed(Index index) {
+        return blockList.isBlocked(allowedUris[index.next++ & (URIS_COUNT - 1)], null);
+    }
+}
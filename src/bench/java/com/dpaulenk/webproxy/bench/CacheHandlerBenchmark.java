@@ -0,0 +1,123 @@
+package com.dpaulenk.webproxy.bench;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.inbound.InboundCacheHandler;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+/**
+ * Whole request/response exchanges through {@link InboundCacheHandler} on an {@link EmbeddedChannel},
+ * with a stub in place of the proxy handler, that answers every request it gets like an origin would:
+ * <ul>
+ *     <li>hit - served from cache, the origin is not asked</li>
+ *     <li>miss - uncacheable response passes through</li>
+ *     <li>store - cacheable response for a new uri is collected, merged and inserted</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheHandlerBenchmark {
+
+    private static final int STORED_URIS_COUNT = 1 << 14;
+
+    private static final byte[] BODY = new byte[4096];
+
+    private WebProxyServer server;
+    private EmbeddedChannel channel;
+
+    private String[] storedUris;
+    private int next;
+
+    @Setup
+    public void setup() {
+        //the shipped log4j.xml logs every lookup at debug level
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        Properties props = new Properties();
+        props.setProperty("maximumCacheSize", String.valueOf(BODY.length * STORED_URIS_COUNT / 4));
+        WebProxyOptions.publish(WebProxyOptions.fromProperties(props));
+
+        server = new WebProxyServer(0);
+        channel = new EmbeddedChannel(new InboundCacheHandler(server), new OriginStub());
+
+        exchange("http://static.example.com/cached.js");
+
+        storedUris = new String[STORED_URIS_COUNT];
+        for (int i = 0; i < STORED_URIS_COUNT; i++) {
+            storedUris[i] = "http://static.example.com/stored-" + i + ".js";
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+        server.getResponseCache().shutdown();
+    }
+
+    @Benchmark
+    public int hit() {
+        return exchange("http://static.example.com/cached.js");
+    }
+
+    @Benchmark
+    public int miss() {
+        return exchange("http://static.example.com/dynamic?id=1");
+    }
+
+    @Benchmark
+    public int store() {
+        return exchange(storedUris[next++ & (STORED_URIS_COUNT - 1)]);
+    }
+
+    /**
+     * @return number of response messages written to the client
+     */
+    private int exchange(String uri) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        req.headers().set(HOST, "static.example.com");
+        channel.writeInbound(req);
+        channel.writeInbound(LastHttpContent.EMPTY_LAST_CONTENT);
+
+        int count = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+            count++;
+        }
+        return count;
+    }
+
+    private static final class OriginStub extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                String uri = ((HttpRequest) msg).getUri();
+
+                FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                                                   Unpooled.wrappedBuffer(BODY));
+                res.headers().set(CONTENT_TYPE, "application/javascript");
+                res.headers().set(CONTENT_LENGTH, BODY.length);
+                res.headers().set(CACHE_CONTROL, uri.contains("?") ? "no-store" : "public, max-age=3600");
+                ctx.writeAndFlush(res);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
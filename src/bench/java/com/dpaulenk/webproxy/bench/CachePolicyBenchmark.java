@@ -0,0 +1,145 @@
+package com.dpaulenk.webproxy.bench;
+
+import com.dpaulenk.webproxy.cache.CachePolicy;
+import com.dpaulenk.webproxy.utils.HttpDates;
+import io.netty.handler.codec.http.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+/**
+ * Cache-Control handling per request/response pair: the string scans the cache handler used to repeat
+ * for every check vs a single {@link CachePolicy} parse. Run with the GC profiler to compare allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CachePolicyBenchmark {
+
+    private HttpRequest request;
+    private HttpResponse response;
+
+    @Setup
+    public void setup() {
+        long now = System.currentTimeMillis();
+
+        request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://static.example.com/app/main.js");
+        request.headers().set(HOST, "static.example.com");
+        request.headers().set(CACHE_CONTROL, "max-age=600");
+        request.headers().set(IF_MODIFIED_SINCE, HttpDates.format(now - 3600000));
+
+        response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(CACHE_CONTROL, "public, max-age=3600, stale-while-revalidate=60");
+        response.headers().set(EXPIRES, HttpDates.format(now + 3600000));
+        response.headers().set(LAST_MODIFIED, HttpDates.format(now - 86400000));
+    }
+
+    /**
+     * Checks the handler did before: lookup, isCachable and cacheResponse.
+     */
+    @Benchmark
+    public void scans(Blackhole bh) {
+        bh.consume(legacyHasValues(request, "no-cache", "no-store", "max-age=0"));
+        bh.consume(legacyMaxAge(System.currentTimeMillis(), request));
+        bh.consume(legacyParseDate(request.headers().get(IF_MODIFIED_SINCE)));
+
+        bh.consume(legacyMaxAge(System.currentTimeMillis(), response));
+        bh.consume(legacyHasValues(request, "no-cache", "no-store", "max-age=0"));
+        bh.consume(legacyHasValues(response, "private", "no-cache", "max-age=0", "must-revalidate"));
+
+        long currentTime = System.currentTimeMillis();
+        bh.consume(legacyMaxAge(currentTime, response));
+        bh.consume(legacyParseDate(response.headers().get(LAST_MODIFIED)));
+    }
+
+    @Benchmark
+    public void policy(Blackhole bh) {
+        CachePolicy requestPolicy = CachePolicy.parse(request.headers());
+        bh.consume(requestPolicy.has(CachePolicy.NO_CACHE | CachePolicy.NO_STORE) || requestPolicy.maxAge() == 0);
+        bh.consume(requestPolicy.maxAge());
+        bh.consume(HttpDates.parse(request.headers().get(IF_MODIFIED_SINCE)));
+
+        CachePolicy responsePolicy = CachePolicy.parse(response.headers());
+        long currentTime = System.currentTimeMillis();
+        bh.consume(responsePolicy.has(CachePolicy.PRIVATE | CachePolicy.NO_CACHE | CachePolicy.MUST_REVALIDATE));
+        bh.consume(responsePolicy.freshnessLifetime(currentTime));
+        bh.consume(HttpDates.parse(response.headers().get(LAST_MODIFIED)));
+    }
+
+    @Benchmark
+    public long legacyDate() {
+        return legacyParseDate(response.headers().get(LAST_MODIFIED)).getTime();
+    }
+
+    @Benchmark
+    public long cachedDate() {
+        return HttpDates.parse(response.headers().get(LAST_MODIFIED));
+    }
+
+    /**
+     * The way Cache-Control was checked before {@link CachePolicy}: all headers split again for every check.
+     */
+    private static boolean legacyHasValues(HttpMessage msg, String... values) {
+        List<String> cacheControls = msg.headers().getAll(CACHE_CONTROL);
+        for (String cacheControl : cacheControls) {
+            for (String val : cacheControl.split(",")) {
+                String trimmed = val.trim();
+                for (String value : values) {
+                    if (value.equals(trimmed)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long legacyMaxAge(long currentTime, HttpMessage msg) {
+        List<String> cacheControls = msg.headers().getAll(CACHE_CONTROL);
+        for (String cacheControl : cacheControls) {
+            for (String val : cacheControl.split(",")) {
+                String value = val.trim();
+                if (value.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(value.substring("max-age=".length())) * 1000;
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+
+        Date expires = legacyParseDate(msg.headers().get(EXPIRES));
+        if (expires != null) {
+            return Math.max(0, expires.getTime() - currentTime);
+        }
+        return -1;
+    }
+
+    /**
+     * The way dates were parsed before {@link HttpDates}: a new format per call.
+     */
+    private static Date legacyParseDate(String dateString) {
+        if (dateString == null) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(dateString);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
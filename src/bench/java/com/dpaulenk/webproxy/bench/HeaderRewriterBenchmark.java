@@ -0,0 +1,92 @@
+package com.dpaulenk.webproxy.bench;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.common.HeaderRewriter;
+import com.dpaulenk.webproxy.utils.ProxyUtils;
+import io.netty.handler.codec.http.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+/**
+ * Per message work of the proxy handlers: host and path extraction from absolute uris
+ * and the header rewriting of requests and responses.
+ * <p>
+ * Rewriting modifies the message, so every invocation builds a fresh one,
+ * {@link #buildRequest()} and {@link #buildResponse()} measure that part alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderRewriterBenchmark {
+
+    private HeaderRewriter rewriter;
+    private HttpRequest request;
+
+    @Setup
+    public void setup() {
+        Properties props = new Properties();
+        props.setProperty("requestHeaderRules.0", "add X-Forwarded-Proto http");
+        props.setProperty("responseHeaderRules.0", "remove Server");
+        rewriter = new HeaderRewriter(WebProxyOptions.fromProperties(props));
+
+        request = buildRequest();
+    }
+
+    @Benchmark
+    public String hostAndPort() {
+        return ProxyUtils.getHostAndPort(request);
+    }
+
+    @Benchmark
+    public String uriWithoutHostAndPort() {
+        return ProxyUtils.getUriWithoutHostAndPort(request);
+    }
+
+    @Benchmark
+    public HttpRequest buildRequest() {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                                                 "http://static.example.com:8080/app/main.js?v=42");
+        HttpHeaders headers = req.headers();
+        headers.set(HOST, "static.example.com:8080");
+        headers.set(USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64; rv:60.0) Gecko/20100101 Firefox/60.0");
+        headers.set(ACCEPT, "*/*");
+        headers.set(ACCEPT_ENCODING, "gzip, deflate");
+        headers.set(ProxyUtils.PROXY_CONNECTION, "keep-alive");
+        headers.set(IF_MODIFIED_SINCE, "Sun, 06 Nov 1994 08:49:37 GMT");
+        return req;
+    }
+
+    @Benchmark
+    public HttpRequest rewriteRequest() {
+        HttpRequest req = buildRequest();
+        rewriter.rewriteRequest(req);
+        return req;
+    }
+
+    @Benchmark
+    public HttpResponse buildResponse() {
+        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpHeaders headers = res.headers();
+        headers.set(SERVER, "nginx");
+        headers.set(CONTENT_TYPE, "application/javascript");
+        headers.set(CONTENT_LENGTH, "18211");
+        headers.set(CACHE_CONTROL, "public, max-age=3600");
+        headers.set(CONNECTION, "keep-alive");
+        headers.set(VIA, "1.1 edge.example.net");
+        return res;
+    }
+
+    @Benchmark
+    public HttpResponse rewriteResponse() {
+        HttpResponse res = buildResponse();
+        rewriter.rewriteResponse(res);
+        return res;
+    }
+}
@@ -0,0 +1,209 @@
+package com.dpaulenk.webproxy.bench;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.HdrHistogram.Recorder;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.HOST;
+
+/**
+ * Closed loop load generator: every connection sends the next request as soon as the previous response
+ * is read completely, so the offered load adapts to what the proxy sustains. Latency is measured
+ * from writing a request to reading the last byte of its response.
+ */
+public class LoadClient {
+
+    /**
+     * What each connection of a scenario does.
+     */
+    public static final class Workload {
+        //origin path with query, e.g. "/fixed/1024?cache=1"
+        final String path;
+        //tunnel through CONNECT and send requests over it
+        final boolean tunnel;
+        //pause between socket reads, to simulate clients on slow links, 0 to read at full speed
+        final int readPauseMillis;
+
+        public Workload(String path, boolean tunnel, int readPauseMillis) {
+            this.path = path;
+            this.tunnel = tunnel;
+            this.readPauseMillis = readPauseMillis;
+        }
+    }
+
+    private final EventLoopGroup group;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    //microseconds
+    final Recorder latencies = new Recorder(3);
+    final AtomicLong responses = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    private volatile boolean running;
+
+    public LoadClient(int threads) {
+        group = new NioEventLoopGroup(threads);
+    }
+
+    public void start(InetSocketAddress proxy, final InetSocketAddress origin, final Workload workload, int connections)
+        throws InterruptedException {
+        running = true;
+
+        Bootstrap b = new Bootstrap()
+            .group(group)
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    if (workload.readPauseMillis > 0) {
+                        ch.config().setAutoRead(false);
+                        ch.config().setReceiveBufferSize(4096);
+                    }
+                    ch.pipeline().addLast("httpcodec", new HttpClientCodec());
+                    ch.pipeline().addLast("load", new ConnectionHandler(origin, workload));
+                }
+            });
+
+        for (int i = 0; i < connections; i++) {
+            ChannelFuture f = b.connect(proxy).sync();
+            channels.add(f.channel());
+        }
+    }
+
+    /**
+     * Stops sending new requests and closes all connections.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        channels.close().await(5, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        group.shutdownGracefully();
+    }
+
+    private final class ConnectionHandler extends SimpleChannelInboundHandler<HttpObject> {
+        private final InetSocketAddress origin;
+        private final Workload workload;
+        private final String hostHeader;
+
+        private boolean tunnelEstablished;
+        private long requestStart;
+        private boolean failed;
+
+        ConnectionHandler(InetSocketAddress origin, Workload workload) {
+            this.origin = origin;
+            this.workload = workload;
+            this.hostHeader = origin.getAddress().getHostAddress() + ":" + origin.getPort();
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (workload.tunnel) {
+                requestStart = System.nanoTime();
+                ctx.writeAndFlush(request(HttpMethod.CONNECT, hostHeader));
+            } else {
+                sendNext(ctx);
+            }
+            if (workload.readPauseMillis > 0) {
+                ctx.read();
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if (msg instanceof HttpResponse) {
+                failed = ((HttpResponse) msg).getStatus().code() != 200;
+            }
+            if (msg instanceof HttpContent) {
+                bytes.addAndGet(((HttpContent) msg).content().readableBytes());
+            }
+            if (!(msg instanceof LastHttpContent)) {
+                return;
+            }
+
+            if (failed) {
+                errors.incrementAndGet();
+            } else {
+                latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestStart));
+                responses.incrementAndGet();
+            }
+
+            if (workload.tunnel && !tunnelEstablished) {
+                if (failed) {
+                    ctx.close();
+                    return;
+                }
+                tunnelEstablished = true;
+                //the codec must not be replaced while it is decoding
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ctx.pipeline().replace("httpcodec", "httpcodec", new HttpClientCodec());
+                        sendNext(ctx);
+                    }
+                });
+                return;
+            }
+
+            sendNext(ctx);
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+            if (workload.readPauseMillis > 0) {
+                ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ctx.read();
+                    }
+                }, workload.readPauseMillis, TimeUnit.MILLISECONDS);
+            }
+            super.channelReadComplete(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (running) {
+                //closed by the proxy in the middle of a run
+                errors.incrementAndGet();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            errors.incrementAndGet();
+            ctx.close();
+        }
+
+        private void sendNext(ChannelHandlerContext ctx) {
+            if (!running) {
+                return;
+            }
+            requestStart = System.nanoTime();
+            String uri = workload.tunnel ? workload.path : "http://" + hostHeader + workload.path;
+            ctx.writeAndFlush(request(HttpMethod.GET, uri));
+        }
+
+        private HttpRequest request(HttpMethod method, String uri) {
+            HttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+            req.headers().set(HOST, hostHeader);
+            return req;
+        }
+    }
+}
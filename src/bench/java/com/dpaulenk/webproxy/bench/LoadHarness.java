@@ -0,0 +1,183 @@
+package com.dpaulenk.webproxy.bench;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import org.HdrHistogram.Histogram;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs the proxy, an origin and a load generator in one JVM on localhost and reports
+ * throughput, latency percentiles and memory per scenario:
+ * <pre>
+ *   LoadHarness [scenario regex] [connection counts, e.g. 16,64,256] [seconds] [options file or -]
+ *
+ *   keepalive  - small uncacheable GETs over persistent connections
+ *   cachehit   - the same cacheable uri from every connection
+ *   large      - 4MB chunked downloads
+ *   tunnel     - small GETs through CONNECT tunnels
+ *   slowclient - 256KB downloads by clients, that read a few KB every 5ms
+ *   sloworigin - small GETs, the origin answers after 50ms
+ * </pre>
+ * All three share the machine, so absolute numbers are lower than on separate hosts,
+ * but runs with different options or builds are comparable with each other.
+ */
+public class LoadHarness {
+
+    private static final Map<String, LoadClient.Workload> SCENARIOS = new LinkedHashMap<String, LoadClient.Workload>();
+
+    static {
+        SCENARIOS.put("keepalive", new LoadClient.Workload("/fixed/1024", false, 0));
+        SCENARIOS.put("cachehit", new LoadClient.Workload("/fixed/4096?cache=1", false, 0));
+        SCENARIOS.put("large", new LoadClient.Workload("/chunked/4194304", false, 0));
+        SCENARIOS.put("tunnel", new LoadClient.Workload("/fixed/1024", true, 0));
+        SCENARIOS.put("slowclient", new LoadClient.Workload("/fixed/262144", false, 5));
+        SCENARIOS.put("sloworigin", new LoadClient.Workload("/fixed/1024?delay=50", false, 0));
+    }
+
+    private static final int ORIGIN_THREADS = 2;
+    private static final int CLIENT_THREADS = 2;
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : ".*";
+        String connections = args.length > 1 ? args[1] : "64";
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String optionsFile = args.length > 3 && !"-".equals(args[3]) ? args[3] : null;
+
+        //request level logging would dominate the measurements
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        int proxyPort = freePort();
+        startProxy(optionsFile, proxyPort);
+        InetSocketAddress proxy = new InetSocketAddress("127.0.0.1", proxyPort);
+
+        LoadOrigin origin = new LoadOrigin(ORIGIN_THREADS);
+        InetSocketAddress originAddress = origin.start();
+
+        List<String> summary = new ArrayList<String>();
+        summary.add(String.format("%-12s %6s %10s %10s %10s %10s %10s %8s %10s %8s %8s",
+                                  "scenario", "conns", "rps", "MB/s", "p50 us", "p99 us", "p999 us", "errors",
+                                  "heap MB", "gc", "gc ms"));
+
+        for (Map.Entry<String, LoadClient.Workload> scenario : SCENARIOS.entrySet()) {
+            if (!scenario.getKey().matches(include)) {
+                continue;
+            }
+            for (String c : connections.split(",")) {
+                int connectionsCount = Integer.parseInt(c.trim());
+                String line = run(scenario.getKey(), scenario.getValue(), proxy, originAddress, connectionsCount, seconds);
+                System.out.println(line);
+                summary.add(line);
+            }
+        }
+
+        System.out.println();
+        for (String line : summary) {
+            System.out.println(line);
+        }
+
+        origin.stop();
+        System.exit(0);
+    }
+
+    private static String run(String name, LoadClient.Workload workload, InetSocketAddress proxy,
+                              InetSocketAddress origin, int connections, int seconds) throws InterruptedException {
+        LoadClient client = new LoadClient(CLIENT_THREADS);
+        try {
+            client.start(proxy, origin, workload, connections);
+
+            //warm up, then start counting from scratch
+            Thread.sleep(Math.max(1000, seconds * 200L));
+            client.latencies.getIntervalHistogram();
+            client.responses.set(0);
+            client.bytes.set(0);
+            client.errors.set(0);
+            long gcCount = gcCount();
+            long gcMillis = gcMillis();
+            long start = System.nanoTime();
+
+            Thread.sleep(seconds * 1000L);
+
+            Histogram latencies = client.latencies.getIntervalHistogram();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long responses = client.responses.get();
+            long bytes = client.bytes.get();
+            long errors = client.errors.get();
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+            return String.format("%-12s %6d %10.0f %10.1f %10d %10d %10d %8d %10d %8d %8d",
+                                 name, connections, responses / elapsed, bytes / elapsed / (1024 * 1024),
+                                 latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99),
+                                 latencies.getValueAtPercentile(99.9), errors, heapUsed / (1024 * 1024),
+                                 gcCount() - gcCount, gcMillis() - gcMillis);
+        } finally {
+            client.stop();
+            client.shutdown();
+        }
+    }
+
+    private static void startProxy(String optionsFile, final int port) throws Exception {
+        WebProxyOptions options = optionsFile == null
+            ? WebProxyOptions.fromProperties(new Properties())
+            : WebProxyOptions.fromUrl(new File(optionsFile).toURI().toURL());
+        WebProxyOptions.publish(options);
+
+        Thread proxyThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new WebProxyServer(port).start();
+            }
+        }, "proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+
+        //wait for the proxy to accept connections
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Proxy didn't start on port " + port);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,153 @@
+package com.dpaulenk.webproxy.bench;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+/**
+ * Origin server for the load harness, responses are shaped by the request uri:
+ * <pre>
+ *   /fixed/SIZE    - body with Content-Length
+ *   /chunked/SIZE  - body with Transfer-Encoding: chunked
+ *   ?cache=1       - cacheable for an hour, otherwise no-store
+ *   ?delay=MILLIS  - response head is delayed
+ * </pre>
+ * Bodies are slices of a single shared buffer and are written as fast as the connection accepts them.
+ */
+public class LoadOrigin {
+    private static final int CHUNK_SIZE = 8192;
+    private static final ByteBuf CHUNK = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[CHUNK_SIZE]));
+
+    private final EventLoopGroup group;
+    private Channel serverChannel;
+
+    public LoadOrigin(int threads) {
+        group = new NioEventLoopGroup(threads);
+    }
+
+    public InetSocketAddress start() throws InterruptedException {
+        ServerBootstrap b = new ServerBootstrap()
+            .group(group)
+            .channel(NioServerSocketChannel.class)
+            .option(ChannelOption.SO_BACKLOG, 1024)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    ch.pipeline().addLast("httpcodec", new HttpServerCodec());
+                    ch.pipeline().addLast("origin", new OriginHandler());
+                }
+            });
+        serverChannel = b.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        return (InetSocketAddress) serverChannel.localAddress();
+    }
+
+    public void stop() {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        group.shutdownGracefully();
+    }
+
+    private static final class OriginHandler extends ChannelInboundHandlerAdapter {
+        //bytes of the current body left to write
+        private long remaining;
+        private boolean responding;
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+            try {
+                if (msg instanceof HttpRequest) {
+                    respond(ctx, (HttpRequest) msg);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                writeBody(ctx);
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+
+        private void respond(final ChannelHandlerContext ctx, HttpRequest req) {
+            QueryStringDecoder decoder = new QueryStringDecoder(req.getUri());
+            String path = decoder.path();
+            Map<String, List<String>> params = decoder.parameters();
+
+            int slash = path.lastIndexOf('/');
+            long size;
+            try {
+                size = Long.parseLong(path.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                size = 0;
+            }
+            boolean chunked = path.startsWith("/chunked/");
+            boolean cacheable = params.containsKey("cache");
+            long delay = params.containsKey("delay") ? Long.parseLong(params.get("delay").get(0)) : 0;
+
+            final HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            res.headers().set(CONTENT_TYPE, "application/octet-stream");
+            res.headers().set(CACHE_CONTROL, cacheable ? "public, max-age=3600" : "no-store");
+            if (chunked) {
+                res.headers().set(TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+            } else {
+                res.headers().set(CONTENT_LENGTH, size);
+            }
+
+            remaining = size;
+            responding = true;
+
+            if (delay > 0) {
+                ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ctx.write(res);
+                        writeBody(ctx);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                ctx.write(res);
+                writeBody(ctx);
+            }
+        }
+
+        private void writeBody(ChannelHandlerContext ctx) {
+            if (!responding) {
+                return;
+            }
+            while (remaining > 0) {
+                if (!ctx.channel().isWritable()) {
+                    //resumed by channelWritabilityChanged
+                    ctx.flush();
+                    return;
+                }
+                int len = (int) Math.min(CHUNK_SIZE, remaining);
+                remaining -= len;
+                ctx.write(new DefaultHttpContent(CHUNK.slice(0, len)));
+            }
+            responding = false;
+            ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.dpaulenk.webproxy.bench;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.cache.CachedResponse;
+import com.dpaulenk.webproxy.cache.ResponseCache;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache lookups and inserts under contention, shared LRU vs sharded store.
+ * Keys are drawn from a skewed distribution, so a small set of keys gets most of the hits,
+ * like it does in front of real origins.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCacheBenchmark {
+
+    private static final int KEYS_COUNT = 16384;
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        @Param({"lru", "sharded"})
+        public String store;
+
+        ResponseCache cache;
+        String[] keys;
+
+        @Setup
+        public void setup() {
+            Properties props = new Properties();
+            props.setProperty("cacheStore", store);
+            props.setProperty("maximumCacheSize", String.valueOf(KEYS_COUNT * 2));
+            props.setProperty("cacheConcurrencyLevel", "64");
+
+            cache = new ResponseCache(WebProxyOptions.fromProperties(props));
+
+            keys = new String[KEYS_COUNT];
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                keys[i] = "http://static.example.com/app/resource-" + i + ".js";
+                cache.put(keys[i], newResponse());
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            cache.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+        int[] indexes;
+        int next;
+
+        @Setup
+        public void setup() {
+            Random random = new Random();
+            indexes = new int[1 << 16];
+            for (int i = 0; i < indexes.length; i++) {
+                //squaring a uniform value skews it towards the hot keys
+                double d = random.nextDouble();
+                indexes[i] = (int) (d * d * KEYS_COUNT);
+            }
+        }
+
+        int nextIndex() {
+            return indexes[next++ & (indexes.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public CachedResponse get(CacheState state, KeySequence sequence) {
+        return state.cache.get(state.keys[sequence.nextIndex()]);
+    }
+
+    @Benchmark
+    public CachedResponse mixed(CacheState state, KeySequence sequence) {
+        int index = sequence.nextIndex();
+        String key = state.keys[index];
+        if ((index & 15) == 0) {
+            //every 16th access replaces an entry
+            state.cache.put(key, newResponse());
+            return null;
+        }
+        return state.cache.get(key);
+    }
+
+    private static CachedResponse newResponse() {
+        //empty buffer is never freed, so replaced entries can be released any number of times
+        CachedResponse res = new CachedResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+        res.setMaxAge(-1);
+        return res;
+    }
+}
@@ -0,0 +1,178 @@
+package com.dpaulenk.webproxy;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the options file, when it changes on disk or on admin request.
+ * <p>
+ * New options are validated first and then published as a whole: connections accepted afterwards
+ * see the new values, established ones keep the values they were set up with.
+ * The cache is resized in place, so it stays warm. Options, that shape long-living structures
+ * (ports, thread pools, cache store layout), are published too, but need a restart to take effect.
+ */
+public class ConfigReloader {
+    private static final Logger logger = Logger.getLogger(ConfigReloader.class);
+
+    private static final String[] RESTART_REQUIRED = {
+        "listenPort", "serverThreadsCount", "inboundThreadsCount", "outboundThreadsCount", "maximumAwaitingAccept",
+        "cacheConcurrencyLevel", "cacheStore", "cacheShards", "cacheHotSetSize", "cachePartitions",
+        "cacheDeduplication", "cacheExpiryTickMillis", "cacheExpiryWheelSize", "adminPort", "adminBindAddress",
+        "configPollMillis", "accessLogFile", "accessLogBufferSize", "accessLogMaxFileSize", "accessLogMaxFiles",
+        "accessLogFlushMillis", "allocator", "allocatorPreferDirect", "allocatorHeapArenas", "allocatorDirectArenas",
+        "allocatorPageSize", "allocatorMaxOrder", "allocatorTinyCacheSize", "allocatorSmallCacheSize",
+        "allocatorNormalCacheSize", "leakDetectionLevel", "uncachableMemoSize", "uncachableMemoMillis",
+        "admissionProbeMillis", "admissionInitialLimit", "fairShareRoundMillis"
+    };
+
+    private final WebProxyServer proxyServer;
+    private final URL optionsUrl;
+
+    //null, if options are not in a plain file, e.g. packed into a jar
+    private final File optionsFile;
+    private long lastModified;
+
+    private ScheduledExecutorService poller;
+
+    public ConfigReloader(WebProxyServer proxyServer, URL optionsUrl) {
+        this.proxyServer = proxyServer;
+        this.optionsUrl = optionsUrl;
+        this.optionsFile = toFile(optionsUrl);
+        this.lastModified = optionsFile == null ? 0 : optionsFile.lastModified();
+    }
+
+    public void start() {
+        int pollMillis = WebProxyOptions.getInstance().configPollMillis();
+        if (optionsFile == null || pollMillis <= 0) {
+            return;
+        }
+
+        poller = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("config-reloader", true));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long modified = optionsFile.lastModified();
+                    if (modified != lastModified) {
+                        lastModified = modified;
+                        reload();
+                    }
+                } catch (Exception e) {
+                    logger.error("Error reloading options: ", e);
+                }
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    /**
+     * @return human readable outcome
+     */
+    public synchronized String reload() {
+        WebProxyOptions newOptions;
+        try {
+            newOptions = WebProxyOptions.fromUrl(optionsUrl);
+        } catch (Exception e) {
+            logger.error("Error reading options from " + optionsUrl + ": ", e);
+            return "error reading " + optionsUrl + ": " + e + "\n";
+        }
+
+        List<String> problems = newOptions.validate();
+        if (!problems.isEmpty()) {
+            logger.error("Rejected options from " + optionsUrl + ": " + problems);
+            return "rejected: " + problems + "\n";
+        }
+
+        WebProxyOptions oldOptions = WebProxyOptions.getInstance();
+        Set<String> changed = changedOptions(oldOptions.source(), newOptions.source());
+        if (changed.isEmpty()) {
+            return "unchanged\n";
+        }
+
+        WebProxyOptions.publish(newOptions);
+
+        StringBuilder result = new StringBuilder();
+        for (String name : changed) {
+            boolean restartRequired = isRestartRequired(name);
+            logger.info("Option " + name + " changed" + (restartRequired ? ", takes effect after restart" : ""));
+            result.append(name).append(restartRequired ? " (restart required)" : "").append('\n');
+        }
+
+        apply(changed, newOptions);
+
+        return result.toString();
+    }
+
+    private void apply(Set<String> changed, WebProxyOptions options) {
+        if (changed.contains("maximumCacheSize")) {
+            proxyServer.getResponseCache().setCapacity(options.maximumCacheSize());
+        }
+
+        if (changed.contains("requestHeaderRules") || changed.contains("responseHeaderRules")) {
+            proxyServer.reloadHeaderRewriter();
+        }
+
+        if (changed.contains("blockListFiles") || changed.contains("blackList")) {
+            proxyServer.reloadBlockList();
+        }
+
+        if (changed.contains("parentProxies") || changed.contains("parentSelection")) {
+            proxyServer.reloadParentProxies();
+        }
+    }
+
+    /**
+     * Indexed options, like "blackList.3", are reported by their name: "blackList".
+     */
+    private static Set<String> changedOptions(Properties oldProps, Properties newProps) {
+        Set<String> keys = new TreeSet<String>(oldProps.stringPropertyNames());
+        keys.addAll(newProps.stringPropertyNames());
+
+        Set<String> changed = new TreeSet<String>();
+        for (String key : keys) {
+            String oldValue = oldProps.getProperty(key);
+            String newValue = newProps.getProperty(key);
+            if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                int dot = key.lastIndexOf('.');
+                changed.add(dot == -1 ? key : key.substring(0, dot));
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isRestartRequired(String name) {
+        for (String option : RESTART_REQUIRED) {
+            if (option.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+}
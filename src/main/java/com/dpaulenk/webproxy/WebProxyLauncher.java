@@ -2,17 +2,36 @@ package com.dpaulenk.webproxy;
 
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.netty.util.internal.logging.Log4JLoggerFactory;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
 
 public class WebProxyLauncher {
+    private static final Logger logger = Logger.getLogger(WebProxyLauncher.class);
 
     private static final String OPTIONS_FILE = "/simple-web-proxy.properties";
 
-    public static void main(String[] args) {
+    /**
+     * @param args optional path to the options file, the bundled one is used by default
+     */
+    public static void main(String[] args) throws IOException {
         InternalLoggerFactory.setDefaultFactory(new Log4JLoggerFactory());
 
+        URL optionsUrl = args.length > 0 ? new File(args[0]).toURI().toURL() : WebProxyLauncher.class.getResource(OPTIONS_FILE);
+
         //it shouldn't really be a singleton, but for now it's just simplier for it to be
-        WebProxyOptions.getInstance().loadFromFile(OPTIONS_FILE);
+        WebProxyOptions options = WebProxyOptions.fromUrl(optionsUrl);
+        List<String> problems = options.validate();
+        if (!problems.isEmpty()) {
+            logger.warn("Problems in options from " + optionsUrl + ": " + problems);
+        }
+        WebProxyOptions.publish(options);
 
-        new WebProxyServer(WebProxyOptions.getInstance().listenPort()).start();
+        WebProxyServer server = new WebProxyServer(options.listenPort());
+        server.watchOptions(optionsUrl);
+        server.start();
     }
 }
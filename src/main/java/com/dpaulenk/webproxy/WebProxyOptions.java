@@ -3,22 +3,35 @@ package com.dpaulenk.webproxy;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 //it's easy to pass this through in every object that needs it, but it's much simpler with singleton
+//once published, an instance is never modified: reloading publishes a new one
 public class WebProxyOptions {
     private static final Logger logger = Logger.getLogger(WebProxyOptions.class);
 
-    private static final WebProxyOptions instance = new WebProxyOptions();
+    private static volatile WebProxyOptions instance = new WebProxyOptions();
 
     public static WebProxyOptions getInstance() {
         return instance;
     }
 
+    public static void publish(WebProxyOptions options) {
+        instance = options;
+    }
+
     private WebProxyOptions() {}
 
+    private Properties source = new Properties();
+    private final List<String> errors = new ArrayList<String>();
+
     private int listenPort = 8181;
 
     private int serverThreadsCount = 1;
@@ -27,14 +40,170 @@ public class WebProxyOptions {
     private int maximumAwaitingAccept = 100;
     private int cacheConcurrencyLevel = 8;
 
-    private int maxCumulationBufferComponents = 1024;
+    //"lru" - single shared map, "sharded" - per event loop hot sets in front of striped shards,
+    //"partitioned" - per host quotas and shared overflow pool
+    private String cacheStore = "lru";
+    private int cacheShards = 16;
+    private int cacheHotSetSize = 256;
+    private String[] cachePartitions = new String[0];
+    private boolean cacheDeduplication = true;
+
     private int maxChunkSize = 8192 * 2;
+    //content is cut at the read size too, so the cap only matters with bulk receive buffers
+    private int upstreamMaxChunkSize = 262144;
+
+    //receive buffers adapt to read sizes within these bounds
+    private int recvBufferMin = 64;
+    private int recvBufferInitial = 1024;
+    private int recvBufferMax = 16384;
+    //bounds for bodies of large messages and for tunnels
+    private int bulkRecvBufferMin = 8192;
+    private int bulkRecvBufferInitial = 65536;
+    private int bulkRecvBufferMax = 262144;
+    //a message is large, if its Content-Length is at least that, or its content type starts with one of these
+    private int bulkContentLength = 262144;
+    private String[] bulkContentTypes = {
+        "video/", "audio/", "application/octet-stream", "application/zip", "application/x-gzip", "application/gzip",
+        "application/x-tar"
+    };
     private int maxCachedResponseSize = 65536*3;
     private int maximumCacheSize = 1000*maxCachedResponseSize;
 
     private boolean cachingEnabled = true;
+    private String surrogateKeyHeader = "Surrogate-Key";
+    private int cacheExpiryTickMillis = 100;
+    private int cacheExpiryWheelSize = 512;
+    //uris with uncacheable responses skip the lookup for up to two memo generations, 0 disables the memo
+    private int uncachableMemoSize = 65536;
+    private int uncachableMemoMillis = 60000;
+
+    //"pooled" or "unpooled" buffers for proxied traffic
+    private String allocator = "pooled";
+    private boolean allocatorPreferDirect = true;
+    //-1 for netty's default: one per core, unless the memory is too small for that
+    private int allocatorHeapArenas = -1;
+    private int allocatorDirectArenas = -1;
+    //arenas allocate chunks of allocatorPageSize << allocatorMaxOrder bytes, 16MB by default
+    private int allocatorPageSize = 8192;
+    private int allocatorMaxOrder = 11;
+    //buffers cached per event loop by size class
+    private int allocatorTinyCacheSize = 512;
+    private int allocatorSmallCacheSize = 256;
+    private int allocatorNormalCacheSize = 64;
+    //disabled, simple, advanced or paranoid, see netty's ResourceLeakDetector
+    private String leakDetectionLevel = "simple";
+
+    //responses are spooled to disk, when a client has that many bytes pending, 0 disables spooling
+    private int spoolMemoryThreshold = 1024 * 1024;
+    //the origin is paused, when a spool file grows that large, until the client has read it
+    private int spoolMaxFileSize = 1024 * 1024 * 1024;
+    //same for request bodies, that an origin is slow to accept
+    private int requestSpoolMemoryThreshold = 256 * 1024;
+    private int requestSpoolMaxFileSize = 1024 * 1024 * 1024;
+    //all spool files together, the side being spooled is paused at the limit
+    private int spoolMaxTotalSizeMb = 10240;
+    //empty for the default temp directory
+    private String spoolDirectory = "";
+
+    //channels are closed after that long without reads, writes, or either; 0 disables a timeout.
+    //keep-alive timeouts apply to client connections between exchanges, an exchange in progress
+    //is covered by the upstream ones
+    private int keepAliveReadIdleMillis = 0;
+    private int keepAliveWriteIdleMillis = 0;
+    private int keepAliveIdleMillis = 120000;
+    private int tunnelReadIdleMillis = 0;
+    private int tunnelWriteIdleMillis = 0;
+    private int tunnelIdleMillis = 600000;
+    private int upstreamReadIdleMillis = 0;
+    private int upstreamWriteIdleMillis = 0;
+    private int upstreamIdleMillis = 900000;
+
+    //client connections over these limits are closed, when accepted; 0 for no limit
+    private int maxClientConnections = 0;
+    private int maxConnectionsPerClientAddress = 0;
+
+    //exchanges with origins are limited, while event loops lag behind; the limit is cut by backoff percent
+    //on every probe, that finds a loop over max lag or pending tasks, and grows by the increase otherwise
+    private boolean admissionControl = true;
+    private int admissionProbeMillis = 100;
+    private int admissionMaxLagMillis = 50;
+    private int admissionMaxPendingTasks = 10000;
+    private int admissionInitialLimit = 1024;
+    private int admissionMinLimit = 16;
+    private int admissionMaxLimit = 65536;
+    private int admissionLimitIncrease = 8;
+    private int admissionBackoffPercent = 90;
+    private int admissionRetryAfterSeconds = 1;
+    //new connections wait in the listen backlog, while the lag is over that, 0 to always accept
+    private int admissionPauseAcceptLagMillis = 1000;
+
+    //budgets per client address, reading is paused over them; 0 for no limit
+    private int clientRequestsPerSecond = 0;
+    private int clientRequestBurst = 50;
+    private int clientBytesPerSecond = 0;
+    private int clientBytesBurst = 1024 * 1024;
+    //while congested, bytes are shared fairly between client addresses in rounds; congestion is
+    //a lagging event loop or, if set, total traffic reaching fairShareBandwidth bytes/s
+    private boolean fairShare = true;
+    private int fairShareRoundMillis = 100;
+    private int fairShareBandwidth = 0;
+
+    //"host-pattern target...", where a target is a parent host:port or direct, see ParentProxies
+    private String[] parentProxies = new String[0];
+    //least-outstanding or ewma
+    private String parentSelection = "least-outstanding";
+    //a parent, that fails so many times in a row, is ejected for a while
+    private int parentMaxFailures = 3;
+    private int parentEjectMillis = 30000;
+
+    //idempotent requests without a body are sent once more, when the first byte is later than this
+    //percentile of upstream time to first byte, to another parent or address if there is one
+    private boolean hedgeRequests = false;
+    private int hedgePercentile = 99;
+    private int hedgeMinDelayMillis = 10;
+    //hedges are at most this share of the requests, that could be hedged
+    private int hedgeBudgetPercent = 5;
+    //such requests are sent again, when a kept alive upstream connection closes before the response
+    private boolean retryReusedConnections = true;
+
+    //addresses of an origin are raced, rfc 8305: the next one is tried after this delay, or as soon as one fails;
+    //0 tries them one by one, each after the previous one failed
+    private int connectAttemptDelayMillis = 250;
+    private int connectTimeoutMillis = 10000;
+    //addresses, that failed to connect, are tried after the others for that long
+    private int addressFailureMemoryMillis = 60000;
+
+    //connections to hot origins are opened ahead of demand, see ConnectionPrewarmer
+    private boolean prewarmConnections = false;
+    //an origin gets as many warm connections, as it's expected to need over this period
+    private int prewarmDemandMillis = 1000;
+    private int prewarmMaxPerOrigin = 32;
+    private int prewarmMaxConnections = 256;
+    //warm connections are replaced after that, before origins close them as idle
+    private int prewarmIdleMillis = 4000;
+
+    //options file is checked for changes this often, 0 to reload only on admin request
+    private int configPollMillis = 5000;
+
+    //admin endpoint is disabled, when port is 0
+    private int adminPort = 0;
+    private String adminBindAddress = "127.0.0.1";
+
+    //access log is disabled, when file is empty
+    private String accessLogFile = "";
+    //records waiting for the writer, new ones are dropped when it's full
+    private int accessLogBufferSize = 65536;
+    private int accessLogMaxFileSize = 64 * 1024 * 1024;
+    private int accessLogMaxFiles = 5;
+    private int accessLogFlushMillis = 1000;
 
     private String[] blackList = new String[0];
+    //rule files with domains, uri prefixes and patterns, see BlockList
+    private String[] blockListFiles = new String[0];
+
+    //"add Name value", "set Name value", "remove Name" or "rename Name NewName"
+    private String[] requestHeaderRules = new String[0];
+    private String[] responseHeaderRules = new String[0];
 
     public int listenPort() {
         return listenPort;
@@ -68,8 +237,24 @@ public class WebProxyOptions {
         return cacheConcurrencyLevel;
     }
 
-    public int getMaxCumulationBufferComponents() {
-        return maxCumulationBufferComponents;
+    public String cacheStore() {
+        return cacheStore;
+    }
+
+    public int cacheShards() {
+        return cacheShards;
+    }
+
+    public int cacheHotSetSize() {
+        return cacheHotSetSize;
+    }
+
+    public String[] cachePartitions() {
+        return cachePartitions;
+    }
+
+    public boolean cacheDeduplication() {
+        return cacheDeduplication;
     }
 
     public int getMaxCachedResponseSize() {
@@ -80,38 +265,623 @@ public class WebProxyOptions {
         return maxChunkSize;
     }
 
+    public int upstreamMaxChunkSize() {
+        return upstreamMaxChunkSize;
+    }
+
+    public int recvBufferMin() {
+        return recvBufferMin;
+    }
+
+    public int recvBufferInitial() {
+        return recvBufferInitial;
+    }
+
+    public int recvBufferMax() {
+        return recvBufferMax;
+    }
+
+    public int bulkRecvBufferMin() {
+        return bulkRecvBufferMin;
+    }
+
+    public int bulkRecvBufferInitial() {
+        return bulkRecvBufferInitial;
+    }
+
+    public int bulkRecvBufferMax() {
+        return bulkRecvBufferMax;
+    }
+
+    public int bulkContentLength() {
+        return bulkContentLength;
+    }
+
+    public String[] bulkContentTypes() {
+        return bulkContentTypes;
+    }
+
     public String[] blackList() {
         return blackList;
     }
 
+    public String[] blockListFiles() {
+        return blockListFiles;
+    }
+
+    public String[] requestHeaderRules() {
+        return requestHeaderRules;
+    }
+
+    public String[] responseHeaderRules() {
+        return responseHeaderRules;
+    }
+
+    public String surrogateKeyHeader() {
+        return surrogateKeyHeader;
+    }
+
+    public int cacheExpiryTickMillis() {
+        return cacheExpiryTickMillis;
+    }
+
+    public int cacheExpiryWheelSize() {
+        return cacheExpiryWheelSize;
+    }
+
+    public int uncachableMemoSize() {
+        return uncachableMemoSize;
+    }
+
+    public int uncachableMemoMillis() {
+        return uncachableMemoMillis;
+    }
+
+    public int spoolMemoryThreshold() {
+        return spoolMemoryThreshold;
+    }
+
+    public int spoolMaxFileSize() {
+        return spoolMaxFileSize;
+    }
+
+    public int requestSpoolMemoryThreshold() {
+        return requestSpoolMemoryThreshold;
+    }
+
+    public int requestSpoolMaxFileSize() {
+        return requestSpoolMaxFileSize;
+    }
+
+    public long spoolMaxTotalSize() {
+        return spoolMaxTotalSizeMb * 1024L * 1024L;
+    }
+
+    public String spoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public String allocator() {
+        return allocator;
+    }
+
+    public boolean allocatorPreferDirect() {
+        return allocatorPreferDirect;
+    }
+
+    public int allocatorHeapArenas() {
+        return allocatorHeapArenas;
+    }
+
+    public int allocatorDirectArenas() {
+        return allocatorDirectArenas;
+    }
+
+    public int allocatorPageSize() {
+        return allocatorPageSize;
+    }
+
+    public int allocatorMaxOrder() {
+        return allocatorMaxOrder;
+    }
+
+    public int allocatorTinyCacheSize() {
+        return allocatorTinyCacheSize;
+    }
+
+    public int allocatorSmallCacheSize() {
+        return allocatorSmallCacheSize;
+    }
+
+    public int allocatorNormalCacheSize() {
+        return allocatorNormalCacheSize;
+    }
+
+    public String leakDetectionLevel() {
+        return leakDetectionLevel;
+    }
+
+    public int keepAliveReadIdleMillis() {
+        return keepAliveReadIdleMillis;
+    }
+
+    public int keepAliveWriteIdleMillis() {
+        return keepAliveWriteIdleMillis;
+    }
+
+    public int keepAliveIdleMillis() {
+        return keepAliveIdleMillis;
+    }
+
+    public int tunnelReadIdleMillis() {
+        return tunnelReadIdleMillis;
+    }
+
+    public int tunnelWriteIdleMillis() {
+        return tunnelWriteIdleMillis;
+    }
+
+    public int tunnelIdleMillis() {
+        return tunnelIdleMillis;
+    }
+
+    public int upstreamReadIdleMillis() {
+        return upstreamReadIdleMillis;
+    }
+
+    public int upstreamWriteIdleMillis() {
+        return upstreamWriteIdleMillis;
+    }
+
+    public int upstreamIdleMillis() {
+        return upstreamIdleMillis;
+    }
+
+    public int maxClientConnections() {
+        return maxClientConnections;
+    }
+
+    public int maxConnectionsPerClientAddress() {
+        return maxConnectionsPerClientAddress;
+    }
+
+    public boolean admissionControl() {
+        return admissionControl;
+    }
+
+    public int admissionProbeMillis() {
+        return admissionProbeMillis;
+    }
+
+    public int admissionMaxLagMillis() {
+        return admissionMaxLagMillis;
+    }
+
+    public int admissionMaxPendingTasks() {
+        return admissionMaxPendingTasks;
+    }
+
+    public int admissionInitialLimit() {
+        return admissionInitialLimit;
+    }
+
+    public int admissionMinLimit() {
+        return admissionMinLimit;
+    }
+
+    public int admissionMaxLimit() {
+        return admissionMaxLimit;
+    }
+
+    public int admissionLimitIncrease() {
+        return admissionLimitIncrease;
+    }
+
+    public int admissionBackoffPercent() {
+        return admissionBackoffPercent;
+    }
+
+    public int admissionRetryAfterSeconds() {
+        return admissionRetryAfterSeconds;
+    }
+
+    public int admissionPauseAcceptLagMillis() {
+        return admissionPauseAcceptLagMillis;
+    }
+
+    public int clientRequestsPerSecond() {
+        return clientRequestsPerSecond;
+    }
+
+    public int clientRequestBurst() {
+        return clientRequestBurst;
+    }
+
+    public int clientBytesPerSecond() {
+        return clientBytesPerSecond;
+    }
+
+    public int clientBytesBurst() {
+        return clientBytesBurst;
+    }
+
+    public boolean fairShare() {
+        return fairShare;
+    }
+
+    public int fairShareRoundMillis() {
+        return fairShareRoundMillis;
+    }
+
+    public int fairShareBandwidth() {
+        return fairShareBandwidth;
+    }
+
+    public String[] parentProxies() {
+        return parentProxies;
+    }
+
+    public String parentSelection() {
+        return parentSelection;
+    }
+
+    public int parentMaxFailures() {
+        return parentMaxFailures;
+    }
+
+    public int parentEjectMillis() {
+        return parentEjectMillis;
+    }
+
+    public boolean hedgeRequests() {
+        return hedgeRequests;
+    }
+
+    public int hedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public int hedgeMinDelayMillis() {
+        return hedgeMinDelayMillis;
+    }
+
+    public int hedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
+
+    public boolean retryReusedConnections() {
+        return retryReusedConnections;
+    }
+
+    public int connectAttemptDelayMillis() {
+        return connectAttemptDelayMillis;
+    }
+
+    public int connectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int addressFailureMemoryMillis() {
+        return addressFailureMemoryMillis;
+    }
+
+    public boolean prewarmConnections() {
+        return prewarmConnections;
+    }
+
+    public int prewarmDemandMillis() {
+        return prewarmDemandMillis;
+    }
+
+    public int prewarmMaxPerOrigin() {
+        return prewarmMaxPerOrigin;
+    }
+
+    public int prewarmMaxConnections() {
+        return prewarmMaxConnections;
+    }
+
+    public int prewarmIdleMillis() {
+        return prewarmIdleMillis;
+    }
+
+    public int configPollMillis() {
+        return configPollMillis;
+    }
+
+    public int adminPort() {
+        return adminPort;
+    }
+
+    public String adminBindAddress() {
+        return adminBindAddress;
+    }
+
+    public String accessLogFile() {
+        return accessLogFile;
+    }
+
+    public int accessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    public int accessLogMaxFileSize() {
+        return accessLogMaxFileSize;
+    }
+
+    public int accessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public int accessLogFlushMillis() {
+        return accessLogFlushMillis;
+    }
+
+    /**
+     * Properties, these options were loaded from.
+     */
+    public Properties source() {
+        return source;
+    }
+
+    /**
+     * @return malformed or inconsistent values, empty if the options are safe to publish
+     */
+    public List<String> validate() {
+        List<String> problems = new ArrayList<String>(errors);
+
+        checkRange(problems, "listenPort", listenPort, 1, 65535);
+        checkRange(problems, "adminPort", adminPort, 0, 65535);
+        checkRange(problems, "serverThreadsCount", serverThreadsCount, 1, Integer.MAX_VALUE);
+        checkRange(problems, "inboundThreadsCount", inboundThreadsCount, 1, Integer.MAX_VALUE);
+        checkRange(problems, "outboundThreadsCount", outboundThreadsCount, 1, Integer.MAX_VALUE);
+        checkRange(problems, "cacheConcurrencyLevel", cacheConcurrencyLevel, 1, Integer.MAX_VALUE);
+        checkRange(problems, "maximumCacheSize", maximumCacheSize, 1, Integer.MAX_VALUE);
+        checkRange(problems, "maxCachedResponseSize", maxCachedResponseSize, 0, maximumCacheSize);
+        checkRange(problems, "maxChunkSize", maxChunkSize, 1, Integer.MAX_VALUE);
+        checkRange(problems, "upstreamMaxChunkSize", upstreamMaxChunkSize, 1, Integer.MAX_VALUE);
+        checkRange(problems, "recvBufferMin", recvBufferMin, 64, recvBufferMax);
+        checkRange(problems, "recvBufferMax", recvBufferMax, 64, 1 << 24);
+        checkRange(problems, "bulkRecvBufferMin", bulkRecvBufferMin, 64, bulkRecvBufferMax);
+        checkRange(problems, "bulkRecvBufferMax", bulkRecvBufferMax, 64, 1 << 24);
+        checkRange(problems, "bulkContentLength", bulkContentLength, 0, Integer.MAX_VALUE);
+        checkRange(problems, "cacheExpiryTickMillis", cacheExpiryTickMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "cacheExpiryWheelSize", cacheExpiryWheelSize, 1, 1 << 30);
+        checkRange(problems, "uncachableMemoSize", uncachableMemoSize, 0, 1 << 26);
+        checkRange(problems, "spoolMemoryThreshold", spoolMemoryThreshold, 0, Integer.MAX_VALUE);
+        checkRange(problems, "spoolMaxFileSize", spoolMaxFileSize, 1, Integer.MAX_VALUE);
+        checkRange(problems, "requestSpoolMemoryThreshold", requestSpoolMemoryThreshold, 0, Integer.MAX_VALUE);
+        checkRange(problems, "requestSpoolMaxFileSize", requestSpoolMaxFileSize, 1, Integer.MAX_VALUE);
+        checkRange(problems, "spoolMaxTotalSizeMb", spoolMaxTotalSizeMb, 1, Integer.MAX_VALUE);
+        checkRange(problems, "uncachableMemoMillis", uncachableMemoMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "configPollMillis", configPollMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "keepAliveReadIdleMillis", keepAliveReadIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "keepAliveWriteIdleMillis", keepAliveWriteIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "keepAliveIdleMillis", keepAliveIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "tunnelReadIdleMillis", tunnelReadIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "tunnelWriteIdleMillis", tunnelWriteIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "tunnelIdleMillis", tunnelIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "upstreamReadIdleMillis", upstreamReadIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "upstreamWriteIdleMillis", upstreamWriteIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "upstreamIdleMillis", upstreamIdleMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "maxClientConnections", maxClientConnections, 0, Integer.MAX_VALUE);
+        checkRange(problems, "maxConnectionsPerClientAddress", maxConnectionsPerClientAddress, 0, Integer.MAX_VALUE);
+        checkRange(problems, "admissionProbeMillis", admissionProbeMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "admissionMaxLagMillis", admissionMaxLagMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "admissionMaxPendingTasks", admissionMaxPendingTasks, 0, Integer.MAX_VALUE);
+        checkRange(problems, "admissionMinLimit", admissionMinLimit, 1, Integer.MAX_VALUE);
+        checkRange(problems, "admissionMaxLimit", admissionMaxLimit, admissionMinLimit, Integer.MAX_VALUE);
+        checkRange(problems, "admissionInitialLimit", admissionInitialLimit, admissionMinLimit, admissionMaxLimit);
+        checkRange(problems, "admissionLimitIncrease", admissionLimitIncrease, 1, Integer.MAX_VALUE);
+        checkRange(problems, "admissionBackoffPercent", admissionBackoffPercent, 1, 99);
+        checkRange(problems, "admissionRetryAfterSeconds", admissionRetryAfterSeconds, 0, Integer.MAX_VALUE);
+        checkRange(problems, "admissionPauseAcceptLagMillis", admissionPauseAcceptLagMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "clientRequestsPerSecond", clientRequestsPerSecond, 0, Integer.MAX_VALUE);
+        checkRange(problems, "clientRequestBurst", clientRequestBurst, 1, Integer.MAX_VALUE);
+        checkRange(problems, "clientBytesPerSecond", clientBytesPerSecond, 0, Integer.MAX_VALUE);
+        checkRange(problems, "clientBytesBurst", clientBytesBurst, 1, Integer.MAX_VALUE);
+        checkRange(problems, "fairShareRoundMillis", fairShareRoundMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "fairShareBandwidth", fairShareBandwidth, 0, Integer.MAX_VALUE);
+        checkRange(problems, "parentMaxFailures", parentMaxFailures, 1, Integer.MAX_VALUE);
+        checkRange(problems, "parentEjectMillis", parentEjectMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "hedgePercentile", hedgePercentile, 1, 99);
+        checkRange(problems, "hedgeMinDelayMillis", hedgeMinDelayMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "hedgeBudgetPercent", hedgeBudgetPercent, 0, 100);
+        checkRange(problems, "connectAttemptDelayMillis", connectAttemptDelayMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "connectTimeoutMillis", connectTimeoutMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "addressFailureMemoryMillis", addressFailureMemoryMillis, 0, Integer.MAX_VALUE);
+        checkRange(problems, "prewarmDemandMillis", prewarmDemandMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "prewarmMaxPerOrigin", prewarmMaxPerOrigin, 0, Integer.MAX_VALUE);
+        checkRange(problems, "prewarmMaxConnections", prewarmMaxConnections, 0, Integer.MAX_VALUE);
+        checkRange(problems, "prewarmIdleMillis", prewarmIdleMillis, 1, Integer.MAX_VALUE);
+        checkRange(problems, "accessLogBufferSize", accessLogBufferSize, 2, 1 << 30);
+        checkRange(problems, "accessLogMaxFileSize", accessLogMaxFileSize, 1, Integer.MAX_VALUE);
+        checkRange(problems, "accessLogMaxFiles", accessLogMaxFiles, 0, 1000);
+        checkRange(problems, "accessLogFlushMillis", accessLogFlushMillis, 1, Integer.MAX_VALUE);
+
+        checkRange(problems, "allocatorHeapArenas", allocatorHeapArenas, -1, 1024);
+        checkRange(problems, "allocatorDirectArenas", allocatorDirectArenas, -1, 1024);
+        checkRange(problems, "allocatorPageSize", allocatorPageSize, 4096, 1 << 20);
+        if ((allocatorPageSize & (allocatorPageSize - 1)) != 0) {
+            problems.add("allocatorPageSize: expected a power of 2, got " + allocatorPageSize);
+        }
+        checkRange(problems, "allocatorMaxOrder", allocatorMaxOrder, 0, 14);
+        checkRange(problems, "allocatorTinyCacheSize", allocatorTinyCacheSize, 0, Integer.MAX_VALUE);
+        checkRange(problems, "allocatorSmallCacheSize", allocatorSmallCacheSize, 0, Integer.MAX_VALUE);
+        checkRange(problems, "allocatorNormalCacheSize", allocatorNormalCacheSize, 0, Integer.MAX_VALUE);
+
+        if (!Arrays.asList("pooled", "unpooled").contains(allocator)) {
+            problems.add("allocator: expected pooled or unpooled, got " + allocator);
+        }
+        if (!Arrays.asList("disabled", "simple", "advanced", "paranoid").contains(leakDetectionLevel)) {
+            problems.add("leakDetectionLevel: expected disabled, simple, advanced or paranoid, got " + leakDetectionLevel);
+        }
+
+        if (!Arrays.asList("least-outstanding", "ewma").contains(parentSelection)) {
+            problems.add("parentSelection: expected least-outstanding or ewma, got " + parentSelection);
+        }
+
+        if (!Arrays.asList("lru", "sharded", "partitioned").contains(cacheStore)) {
+            problems.add("cacheStore: expected lru, sharded or partitioned, got " + cacheStore);
+        }
+
+        return problems;
+    }
+
+    private static void checkRange(List<String> problems, String name, long value, long min, long max) {
+        if (value < min || value > max) {
+            problems.add(name + ": " + value + " is out of range [" + min + ", " + max + "]");
+        }
+    }
+
+    /**
+     * Creates options independent from the singleton, e.g. for benchmarks.
+     */
+    public static WebProxyOptions fromProperties(Properties props) {
+        WebProxyOptions options = new WebProxyOptions();
+        options.load(props);
+        return options;
+    }
+
+    public static WebProxyOptions fromUrl(URL url) throws IOException {
+        Properties props = new Properties();
+        InputStream in = url.openStream();
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return fromProperties(props);
+    }
+
     public void loadFromFile(String optionsFileUri) {
         Properties props = new Properties();
         try {
             props.load(WebProxyOptions.class.getResourceAsStream(optionsFileUri));
-
-            listenPort = intProp(props, "listenPort", listenPort);
-            serverThreadsCount = intProp(props, "serverThreadsCount", serverThreadsCount);
-            inboundThreadsCount = intProp(props, "inboundThreadsCount", inboundThreadsCount);
-            outboundThreadsCount = intProp(props, "outboundThreadsCount", outboundThreadsCount);
-            maximumAwaitingAccept = intProp(props, "maximumAwaitingAccept", maximumAwaitingAccept);
-            cachingEnabled = booleanProp(props, "cachingEnabled", cachingEnabled);
-            maximumCacheSize = intProp(props, "maximumCacheSize", maximumCacheSize);
-            cacheConcurrencyLevel = intProp(props, "cacheConcurrencyLevel", cacheConcurrencyLevel);
-            maxCumulationBufferComponents = intProp(props, "maxCumulationBufferComponents", maxCumulationBufferComponents);
-            maxCachedResponseSize = intProp(props, "maxCachedResponseSize", maxCachedResponseSize);
-            maxChunkSize = intProp(props, "maxChunkSize", maxChunkSize);
-            blackList = strinArrayProp(props, "blackList", blackList);
+            load(props);
         } catch (IOException e) {
             logger.error("Error loading configuration file: ", e);
         }
     }
 
+    private void load(Properties props) {
+        source = props;
+
+        listenPort = intProp(props, "listenPort", listenPort);
+        serverThreadsCount = intProp(props, "serverThreadsCount", serverThreadsCount);
+        inboundThreadsCount = intProp(props, "inboundThreadsCount", inboundThreadsCount);
+        outboundThreadsCount = intProp(props, "outboundThreadsCount", outboundThreadsCount);
+        maximumAwaitingAccept = intProp(props, "maximumAwaitingAccept", maximumAwaitingAccept);
+        cachingEnabled = booleanProp(props, "cachingEnabled", cachingEnabled);
+        maximumCacheSize = intProp(props, "maximumCacheSize", maximumCacheSize);
+        cacheConcurrencyLevel = intProp(props, "cacheConcurrencyLevel", cacheConcurrencyLevel);
+        cacheStore = stringProp(props, "cacheStore", cacheStore);
+        cacheShards = intProp(props, "cacheShards", cacheShards);
+        cacheHotSetSize = intProp(props, "cacheHotSetSize", cacheHotSetSize);
+        cachePartitions = strinArrayProp(props, "cachePartitions", cachePartitions);
+        cacheDeduplication = booleanProp(props, "cacheDeduplication", cacheDeduplication);
+        maxCachedResponseSize = intProp(props, "maxCachedResponseSize", maxCachedResponseSize);
+        maxChunkSize = intProp(props, "maxChunkSize", maxChunkSize);
+        upstreamMaxChunkSize = intProp(props, "upstreamMaxChunkSize", upstreamMaxChunkSize);
+        recvBufferMin = intProp(props, "recvBufferMin", recvBufferMin);
+        recvBufferInitial = intProp(props, "recvBufferInitial", recvBufferInitial);
+        recvBufferMax = intProp(props, "recvBufferMax", recvBufferMax);
+        bulkRecvBufferMin = intProp(props, "bulkRecvBufferMin", bulkRecvBufferMin);
+        bulkRecvBufferInitial = intProp(props, "bulkRecvBufferInitial", bulkRecvBufferInitial);
+        bulkRecvBufferMax = intProp(props, "bulkRecvBufferMax", bulkRecvBufferMax);
+        bulkContentLength = intProp(props, "bulkContentLength", bulkContentLength);
+        bulkContentTypes = strinArrayProp(props, "bulkContentTypes", bulkContentTypes);
+        blackList = strinArrayProp(props, "blackList", blackList);
+        blockListFiles = strinArrayProp(props, "blockListFiles", blockListFiles);
+        requestHeaderRules = strinArrayProp(props, "requestHeaderRules", requestHeaderRules);
+        responseHeaderRules = strinArrayProp(props, "responseHeaderRules", responseHeaderRules);
+        surrogateKeyHeader = stringProp(props, "surrogateKeyHeader", surrogateKeyHeader);
+        cacheExpiryTickMillis = intProp(props, "cacheExpiryTickMillis", cacheExpiryTickMillis);
+        cacheExpiryWheelSize = intProp(props, "cacheExpiryWheelSize", cacheExpiryWheelSize);
+        uncachableMemoSize = intProp(props, "uncachableMemoSize", uncachableMemoSize);
+        uncachableMemoMillis = intProp(props, "uncachableMemoMillis", uncachableMemoMillis);
+        spoolMemoryThreshold = intProp(props, "spoolMemoryThreshold", spoolMemoryThreshold);
+        spoolMaxFileSize = intProp(props, "spoolMaxFileSize", spoolMaxFileSize);
+        requestSpoolMemoryThreshold = intProp(props, "requestSpoolMemoryThreshold", requestSpoolMemoryThreshold);
+        requestSpoolMaxFileSize = intProp(props, "requestSpoolMaxFileSize", requestSpoolMaxFileSize);
+        spoolMaxTotalSizeMb = intProp(props, "spoolMaxTotalSizeMb", spoolMaxTotalSizeMb);
+        spoolDirectory = stringProp(props, "spoolDirectory", spoolDirectory);
+        configPollMillis = intProp(props, "configPollMillis", configPollMillis);
+        keepAliveReadIdleMillis = intProp(props, "keepAliveReadIdleMillis", keepAliveReadIdleMillis);
+        keepAliveWriteIdleMillis = intProp(props, "keepAliveWriteIdleMillis", keepAliveWriteIdleMillis);
+        keepAliveIdleMillis = intProp(props, "keepAliveIdleMillis", keepAliveIdleMillis);
+        tunnelReadIdleMillis = intProp(props, "tunnelReadIdleMillis", tunnelReadIdleMillis);
+        tunnelWriteIdleMillis = intProp(props, "tunnelWriteIdleMillis", tunnelWriteIdleMillis);
+        tunnelIdleMillis = intProp(props, "tunnelIdleMillis", tunnelIdleMillis);
+        upstreamReadIdleMillis = intProp(props, "upstreamReadIdleMillis", upstreamReadIdleMillis);
+        upstreamWriteIdleMillis = intProp(props, "upstreamWriteIdleMillis", upstreamWriteIdleMillis);
+        upstreamIdleMillis = intProp(props, "upstreamIdleMillis", upstreamIdleMillis);
+        maxClientConnections = intProp(props, "maxClientConnections", maxClientConnections);
+        maxConnectionsPerClientAddress = intProp(props, "maxConnectionsPerClientAddress", maxConnectionsPerClientAddress);
+        admissionControl = booleanProp(props, "admissionControl", admissionControl);
+        admissionProbeMillis = intProp(props, "admissionProbeMillis", admissionProbeMillis);
+        admissionMaxLagMillis = intProp(props, "admissionMaxLagMillis", admissionMaxLagMillis);
+        admissionMaxPendingTasks = intProp(props, "admissionMaxPendingTasks", admissionMaxPendingTasks);
+        admissionInitialLimit = intProp(props, "admissionInitialLimit", admissionInitialLimit);
+        admissionMinLimit = intProp(props, "admissionMinLimit", admissionMinLimit);
+        admissionMaxLimit = intProp(props, "admissionMaxLimit", admissionMaxLimit);
+        admissionLimitIncrease = intProp(props, "admissionLimitIncrease", admissionLimitIncrease);
+        admissionBackoffPercent = intProp(props, "admissionBackoffPercent", admissionBackoffPercent);
+        admissionRetryAfterSeconds = intProp(props, "admissionRetryAfterSeconds", admissionRetryAfterSeconds);
+        admissionPauseAcceptLagMillis = intProp(props, "admissionPauseAcceptLagMillis", admissionPauseAcceptLagMillis);
+        clientRequestsPerSecond = intProp(props, "clientRequestsPerSecond", clientRequestsPerSecond);
+        clientRequestBurst = intProp(props, "clientRequestBurst", clientRequestBurst);
+        clientBytesPerSecond = intProp(props, "clientBytesPerSecond", clientBytesPerSecond);
+        clientBytesBurst = intProp(props, "clientBytesBurst", clientBytesBurst);
+        fairShare = booleanProp(props, "fairShare", fairShare);
+        fairShareRoundMillis = intProp(props, "fairShareRoundMillis", fairShareRoundMillis);
+        fairShareBandwidth = intProp(props, "fairShareBandwidth", fairShareBandwidth);
+        parentProxies = strinArrayProp(props, "parentProxies", parentProxies);
+        parentSelection = stringProp(props, "parentSelection", parentSelection);
+        parentMaxFailures = intProp(props, "parentMaxFailures", parentMaxFailures);
+        parentEjectMillis = intProp(props, "parentEjectMillis", parentEjectMillis);
+        hedgeRequests = booleanProp(props, "hedgeRequests", hedgeRequests);
+        hedgePercentile = intProp(props, "hedgePercentile", hedgePercentile);
+        hedgeMinDelayMillis = intProp(props, "hedgeMinDelayMillis", hedgeMinDelayMillis);
+        hedgeBudgetPercent = intProp(props, "hedgeBudgetPercent", hedgeBudgetPercent);
+        retryReusedConnections = booleanProp(props, "retryReusedConnections", retryReusedConnections);
+        connectAttemptDelayMillis = intProp(props, "connectAttemptDelayMillis", connectAttemptDelayMillis);
+        connectTimeoutMillis = intProp(props, "connectTimeoutMillis", connectTimeoutMillis);
+        addressFailureMemoryMillis = intProp(props, "addressFailureMemoryMillis", addressFailureMemoryMillis);
+        prewarmConnections = booleanProp(props, "prewarmConnections", prewarmConnections);
+        prewarmDemandMillis = intProp(props, "prewarmDemandMillis", prewarmDemandMillis);
+        prewarmMaxPerOrigin = intProp(props, "prewarmMaxPerOrigin", prewarmMaxPerOrigin);
+        prewarmMaxConnections = intProp(props, "prewarmMaxConnections", prewarmMaxConnections);
+        prewarmIdleMillis = intProp(props, "prewarmIdleMillis", prewarmIdleMillis);
+        allocator = stringProp(props, "allocator", allocator);
+        allocatorPreferDirect = booleanProp(props, "allocatorPreferDirect", allocatorPreferDirect);
+        allocatorHeapArenas = intProp(props, "allocatorHeapArenas", allocatorHeapArenas);
+        allocatorDirectArenas = intProp(props, "allocatorDirectArenas", allocatorDirectArenas);
+        allocatorPageSize = intProp(props, "allocatorPageSize", allocatorPageSize);
+        allocatorMaxOrder = intProp(props, "allocatorMaxOrder", allocatorMaxOrder);
+        allocatorTinyCacheSize = intProp(props, "allocatorTinyCacheSize", allocatorTinyCacheSize);
+        allocatorSmallCacheSize = intProp(props, "allocatorSmallCacheSize", allocatorSmallCacheSize);
+        allocatorNormalCacheSize = intProp(props, "allocatorNormalCacheSize", allocatorNormalCacheSize);
+        leakDetectionLevel = stringProp(props, "leakDetectionLevel", leakDetectionLevel).toLowerCase();
+        adminPort = intProp(props, "adminPort", adminPort);
+        adminBindAddress = stringProp(props, "adminBindAddress", adminBindAddress);
+        accessLogFile = stringProp(props, "accessLogFile", accessLogFile);
+        accessLogBufferSize = intProp(props, "accessLogBufferSize", accessLogBufferSize);
+        accessLogMaxFileSize = intProp(props, "accessLogMaxFileSize", accessLogMaxFileSize);
+        accessLogMaxFiles = intProp(props, "accessLogMaxFiles", accessLogMaxFiles);
+        accessLogFlushMillis = intProp(props, "accessLogFlushMillis", accessLogFlushMillis);
+    }
+
     private String[] strinArrayProp(Properties props, String name, String[] defaultValue) {
-        List<String> values = new ArrayList<String>();
-        for (int i = 0; i < 50; ++i) {
-            String val = props.getProperty(name + "." + i);
-            if (val != null) {
-                values.add(val);
+        //name.0, name.1, ... in index order, gaps are allowed
+        Map<Integer, String> values = new TreeMap<Integer, String>();
+        String prefix = name + ".";
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                try {
+                    values.put(Integer.parseInt(key.substring(prefix.length())), props.getProperty(key));
+                } catch (NumberFormatException ignore) {
+                }
             }
         }
 
@@ -119,7 +889,15 @@ public class WebProxyOptions {
             return defaultValue;
         }
 
-        return values.toArray(new String[values.size()]);
+        return values.values().toArray(new String[values.size()]);
+    }
+
+    private String stringProp(Properties props, String name, String defaultValue) {
+        String sVal = props.getProperty(name);
+        if (sVal == null || sVal.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return sVal.trim();
     }
 
     private int intProp(Properties props, String name, int defaultValue) {
@@ -129,8 +907,9 @@ public class WebProxyOptions {
         }
 
         try {
-            return Integer.parseInt(sVal);
+            return Integer.parseInt(sVal.trim());
         } catch (NumberFormatException nfe) {
+            errors.add(name + ": not a number: " + sVal);
             return defaultValue;
         }
     }
@@ -1,52 +1,247 @@
 package com.dpaulenk.webproxy;
 
+import com.dpaulenk.webproxy.accesslog.AccessLog;
+import com.dpaulenk.webproxy.admin.AdminServer;
 import com.dpaulenk.webproxy.cache.ResponseCache;
+import com.dpaulenk.webproxy.common.HeaderRewriter;
+import com.dpaulenk.webproxy.common.IdleReaper;
+import com.dpaulenk.webproxy.filter.BlockList;
+import com.dpaulenk.webproxy.inbound.AdmissionController;
+import com.dpaulenk.webproxy.inbound.ClientShares;
+import com.dpaulenk.webproxy.inbound.ConnectionLimiter;
 import com.dpaulenk.webproxy.inbound.InboundInitializer;
+import com.dpaulenk.webproxy.metrics.ProxyMetrics;
+import com.dpaulenk.webproxy.outbound.ConnectionPrewarmer;
+import com.dpaulenk.webproxy.outbound.ConnectionRacer;
+import com.dpaulenk.webproxy.outbound.HedgingPolicy;
+import com.dpaulenk.webproxy.outbound.ParentProxies;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import org.apache.log4j.Logger;
 
-public class WebProxyServer {
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
 
-    private final static WebProxyOptions options = WebProxyOptions.getInstance();
+public class WebProxyServer {
+    private static final Logger logger = Logger.getLogger(WebProxyServer.class);
 
     private final int port;
 
     private final ResponseCache responseCache;
 
+    private final ProxyMetrics metrics;
+
+    private final AccessLog accessLog;
+
+    private final ByteBufAllocator allocator;
+
+    //idle checks of all channels, timeouts are seconds or minutes, so a coarse tick will do
+    private final Timer idleTimer =
+        new HashedWheelTimer(new DefaultThreadFactory("idle-reaper", true), 100, TimeUnit.MILLISECONDS, 1024);
+
+    private final ConnectionLimiter connectionLimiter = new ConnectionLimiter(this);
+
+    private final AdmissionController admissionController = new AdmissionController(this);
+
+    private final ClientShares clientShares = new ClientShares(this);
+
+    private final HedgingPolicy hedgingPolicy = new HedgingPolicy(this);
+
+    private final ConnectionRacer connectionRacer = new ConnectionRacer(this);
+
+    private final ConnectionPrewarmer connectionPrewarmer = new ConnectionPrewarmer(this);
+
+    private volatile HeaderRewriter headerRewriter;
+
+    //replaced as a whole on reload
+    private volatile BlockList blockList;
+
+    private volatile ParentProxies parentProxies;
+
     private EventLoopGroup outboundEventLoopGroup;
 
+    //null, if options are not reloaded at runtime
+    private ConfigReloader configReloader;
+
     public WebProxyServer(int port) {
+        WebProxyOptions options = options();
         this.responseCache = new ResponseCache(options);
+        this.accessLog = new AccessLog(options);
+        this.metrics = new ProxyMetrics(responseCache, accessLog, admissionController, clientShares, hedgingPolicy,
+                                       connectionPrewarmer);
+        this.allocator = createAllocator(options);
+        this.headerRewriter = new HeaderRewriter(options);
+        this.blockList = BlockList.load(options.blockListFiles(), options.blackList());
+        this.parentProxies = ParentProxies.load(options, ParentProxies.EMPTY);
         this.port = port;
     }
 
+    /**
+     * Reload options from this file, when it changes or on admin request.
+     */
+    public void watchOptions(URL optionsUrl) {
+        configReloader = new ConfigReloader(this, optionsUrl);
+    }
+
     public void start() {
+        WebProxyOptions options = options();
+
         EventLoopGroup serverGroup = new NioEventLoopGroup(options.serverThreadsCount());
         EventLoopGroup inboundGroup = new NioEventLoopGroup(options.inboundThreadsCount());
 
         outboundEventLoopGroup = new NioEventLoopGroup(options.outboundThreadsCount());
 
+        AdminServer adminServer = new AdminServer(this);
+
+        metrics.registerMBean();
+        metrics.leakReporter().install();
+        accessLog.start();
+
         try {
+            if (options.adminPort() > 0) {
+                adminServer.start(options.adminBindAddress(), options.adminPort());
+            }
+
+            if (configReloader != null) {
+                configReloader.start();
+            }
+
             ServerBootstrap b = new ServerBootstrap();
             b.group(serverGroup, inboundGroup)
                     .channel(NioServerSocketChannel.class)
                     .option(ChannelOption.SO_BACKLOG, options.maximumAwaitingAccept())
+                    .childOption(ChannelOption.ALLOCATOR, allocator)
                     .childHandler(new InboundInitializer(this));
 
             ChannelFuture f = b.bind(port).sync();
 
+            admissionController.start(idleTimer, f.channel(), inboundGroup, outboundEventLoopGroup);
+            clientShares.start(idleTimer);
+            hedgingPolicy.start(idleTimer);
+            connectionPrewarmer.start(idleTimer);
+
             // Wait until the server socket is closed.
             f.channel().closeFuture().sync();
         } catch (InterruptedException ignore) {
         } finally {
             // Shut down all event loops to terminate all threads.
+            if (configReloader != null) {
+                configReloader.stop();
+            }
+            adminServer.stop();
+            accessLog.stop();
+            responseCache.shutdown();
+            admissionController.stop();
+            clientShares.stop();
+            hedgingPolicy.stop();
+            connectionPrewarmer.stop();
+            idleTimer.stop();
             serverGroup.shutdownGracefully();
             inboundGroup.shutdownGracefully();
         }
     }
 
+    /**
+     * Allocator for client and upstream channels.
+     */
+    public ByteBufAllocator allocator() {
+        return allocator;
+    }
+
+    private static ByteBufAllocator createAllocator(WebProxyOptions options) {
+        //the detector is global, it samples buffers of every allocator
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.valueOf(options.leakDetectionLevel().toUpperCase()));
+
+        boolean preferDirect = options.allocatorPreferDirect() && PlatformDependent.hasUnsafe();
+        if ("unpooled".equals(options.allocator())) {
+            return new UnpooledByteBufAllocator(preferDirect);
+        }
+
+        int chunkSize = options.allocatorPageSize() << options.allocatorMaxOrder();
+        int heapArenas = options.allocatorHeapArenas() >= 0
+            ? options.allocatorHeapArenas() : defaultArenas(chunkSize, Runtime.getRuntime().maxMemory());
+        int directArenas = options.allocatorDirectArenas() >= 0
+            ? options.allocatorDirectArenas() : defaultArenas(chunkSize, PlatformDependent.maxDirectMemory());
+
+        logger.info("Pooled allocator: " + heapArenas + " heap and " + directArenas + " direct arenas of " +
+                    (chunkSize >> 10) + "KB chunks, prefer direct: " + preferDirect);
+
+        return new PooledByteBufAllocator(preferDirect, heapArenas, directArenas,
+                                          options.allocatorPageSize(), options.allocatorMaxOrder(),
+                                          options.allocatorTinyCacheSize(), options.allocatorSmallCacheSize(),
+                                          options.allocatorNormalCacheSize());
+    }
+
+    /**
+     * Same as netty's: an arena per core, while they take no more than half of the memory with 3 chunks each.
+     */
+    private static int defaultArenas(int chunkSize, long maxMemory) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return (int) Math.max(0, Math.min(cores, maxMemory / chunkSize / 2 / 3));
+    }
+
+    public Timer idleTimer() {
+        return idleTimer;
+    }
+
+    public ConnectionLimiter connectionLimiter() {
+        return connectionLimiter;
+    }
+
+    public AdmissionController admissionController() {
+        return admissionController;
+    }
+
+    public ClientShares clientShares() {
+        return clientShares;
+    }
+
+    public HedgingPolicy hedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public ConnectionRacer connectionRacer() {
+        return connectionRacer;
+    }
+
+    public ConnectionPrewarmer connectionPrewarmer() {
+        return connectionPrewarmer;
+    }
+
+    /**
+     * Timeouts for client connections between exchanges.
+     */
+    public IdleReaper.Timeouts keepAliveTimeouts() {
+        WebProxyOptions options = options();
+        return new IdleReaper.Timeouts(options.keepAliveReadIdleMillis(), options.keepAliveWriteIdleMillis(),
+                                       options.keepAliveIdleMillis(), metrics.reapedKeepAlive);
+    }
+
+    /**
+     * Timeouts for both sides of a tunnel.
+     */
+    public IdleReaper.Timeouts tunnelTimeouts() {
+        WebProxyOptions options = options();
+        return new IdleReaper.Timeouts(options.tunnelReadIdleMillis(), options.tunnelWriteIdleMillis(),
+                                       options.tunnelIdleMillis(), metrics.reapedTunnels);
+    }
+
+    public IdleReaper.Timeouts upstreamTimeouts() {
+        WebProxyOptions options = options();
+        return new IdleReaper.Timeouts(options.upstreamReadIdleMillis(), options.upstreamWriteIdleMillis(),
+                                       options.upstreamIdleMillis(), metrics.reapedUpstream);
+    }
+
     public EventLoopGroup getOutboundEventLoopGroup() {
         return outboundEventLoopGroup;
     }
@@ -55,7 +250,54 @@ public class WebProxyServer {
         return responseCache;
     }
 
+    public ProxyMetrics metrics() {
+        return metrics;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public BlockList getBlockList() {
+        return blockList;
+    }
+
+    /**
+     * Rereads the rule files, the current rules stay in effect until the new ones are ready.
+     */
+    public BlockList reloadBlockList() {
+        WebProxyOptions options = options();
+        blockList = BlockList.load(options.blockListFiles(), options.blackList());
+        return blockList;
+    }
+
+    public ParentProxies getParentProxies() {
+        return parentProxies;
+    }
+
+    /**
+     * Rebuilds the routing rules, parents, that are still configured, keep their load and health.
+     */
+    public void reloadParentProxies() {
+        parentProxies = ParentProxies.load(options(), parentProxies);
+    }
+
+    public void reloadHeaderRewriter() {
+        headerRewriter = new HeaderRewriter(options());
+    }
+
+    public ConfigReloader getConfigReloader() {
+        return configReloader;
+    }
+
+    public HeaderRewriter getHeaderRewriter() {
+        return headerRewriter;
+    }
+
+    /**
+     * Current snapshot, may be replaced between two calls.
+     */
     public WebProxyOptions options() {
-        return options;
+        return WebProxyOptions.getInstance();
     }
 }
@@ -0,0 +1,368 @@
+package com.dpaulenk.webproxy.accesslog;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Per-request log, written off the event loops, in squid's native format:
+ * <pre>
+ *   time.millis elapsed-ms client action/status bytes method uri
+ *   1286536308.779    180 192.168.0.224 TCP_MISS/200 411 GET http://example.com/
+ * </pre>
+ * Event loops fill preallocated records of a bounded ring (multiple producers, single consumer),
+ * a background thread formats them in batches and writes them to size-rotated files.
+ * If the writer falls behind and the ring is full, new records are dropped and counted, never waited for.
+ */
+public class AccessLog {
+    private static final Logger logger = Logger.getLogger(AccessLog.class);
+
+    public static final String TCP_HIT = "TCP_HIT";
+    public static final String TCP_IMS_HIT = "TCP_IMS_HIT";
+    public static final String TCP_MISS = "TCP_MISS";
+    public static final String TCP_DENIED = "TCP_DENIED";
+    public static final String TCP_TUNNEL = "TCP_TUNNEL";
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    //longest record, strings are truncated to fit
+    private static final int MAX_RECORD_SIZE = 8 * 1024;
+    //kept for numbers and separators, strings never take it
+    private static final int RECORD_TAIL = 256;
+
+    private final String fileName;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final long flushNanos;
+
+    private final Record[] records;
+    //sequence == position: free for the producer of that position, position + 1: ready for the writer
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    //writer thread only
+    private long head;
+    private final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+    private int bufferSize;
+    //strings of the record being formatted end before that
+    private int recordLimit;
+    private OutputStream out;
+    private long fileSize;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    public AccessLog(WebProxyOptions options) {
+        fileName = options.accessLogFile();
+        maxFileSize = options.accessLogMaxFileSize();
+        maxFiles = options.accessLogMaxFiles();
+        flushNanos = options.accessLogFlushMillis() * 1000000L;
+
+        int capacity = powerOfTwo(Math.max(2, options.accessLogBufferSize()));
+        records = new Record[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean isEnabled() {
+        return fileName != null && !fileName.isEmpty();
+    }
+
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Called by event loops, never blocks: the record is dropped, if the ring is full.
+     */
+    public void log(long timeMillis, long elapsedMillis, String client, String action, int status,
+                    long bytes, String method, String uri) {
+        for (;;) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Record r = records[index];
+                    r.timeMillis = timeMillis;
+                    r.elapsedMillis = elapsedMillis;
+                    r.client = client;
+                    r.action = action;
+                    r.status = status;
+                    r.bytes = bytes;
+                    r.method = method;
+                    r.uri = uri;
+                    sequences.lazySet(index, position + 1);
+                    return;
+                }
+            } else if (sequence < position) {
+                //the writer hasn't freed this slot yet
+                dropped.incrementAndGet();
+                return;
+            }
+            //else another producer took this position, retry with the next one
+        }
+    }
+
+    public long written() {
+        return written.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.nanoTime();
+        while (running || hasReady()) {
+            try {
+                int batch = drain();
+                long now = System.nanoTime();
+                if (bufferSize > 0 && (batch == 0 || now - lastFlush >= flushNanos)) {
+                    flush();
+                    lastFlush = now;
+                }
+                if (batch == 0) {
+                    LockSupport.parkNanos(Math.min(flushNanos, 10000000L));
+                }
+            } catch (IOException e) {
+                logger.error("Error writing access log " + fileName + ": ", e);
+                closeQuietly();
+                LockSupport.parkNanos(flushNanos);
+            } catch (RuntimeException e) {
+                //the writer must outlive a bad record, or every later one is lost
+                logger.error("Error formatting access log " + fileName + ": ", e);
+                LockSupport.parkNanos(flushNanos);
+            }
+        }
+        closeQuietly();
+    }
+
+    private boolean hasReady() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /**
+     * @return number of records moved from the ring into the write buffer
+     */
+    private int drain() throws IOException {
+        int count = 0;
+        int failed = 0;
+        while (hasReady()) {
+            int index = (int) head & mask;
+            Record r = records[index];
+
+            if (bufferSize + MAX_RECORD_SIZE > buffer.length) {
+                write();
+            }
+            int start = bufferSize;
+            try {
+                format(r);
+            } catch (RuntimeException e) {
+                bufferSize = start;
+                failed++;
+                dropped.incrementAndGet();
+                logger.error("Dropping access log record: ", e);
+            }
+            r.clear();
+
+            sequences.lazySet(index, head + records.length);
+            head++;
+            count++;
+        }
+        written.addAndGet(count - failed);
+        return count;
+    }
+
+    private void format(Record r) {
+        recordLimit = bufferSize + MAX_RECORD_SIZE - RECORD_TAIL;
+        append(r.timeMillis / 1000);
+        appendByte('.');
+        appendPadded(r.timeMillis % 1000, 3, '0');
+        appendByte(' ');
+        appendPadded(r.elapsedMillis, 6, ' ');
+        appendByte(' ');
+        append(r.client);
+        appendByte(' ');
+        append(r.action);
+        appendByte('/');
+        appendPadded(r.status, 3, '0');
+        appendByte(' ');
+        append(r.bytes);
+        appendByte(' ');
+        append(r.method);
+        appendByte(' ');
+        append(r.uri);
+        appendByte('\n');
+    }
+
+    private void append(String s) {
+        if (s == null) {
+            appendByte('-');
+            return;
+        }
+        //whatever the earlier strings left of the record
+        int len = Math.max(0, Math.min(s.length(), recordLimit - bufferSize));
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            buffer[bufferSize++] = (byte) (c < 128 && c > ' ' ? c : '?');
+        }
+    }
+
+    private void append(long n) {
+        appendPadded(n, 1, ' ');
+    }
+
+    private void appendPadded(long n, int width, char pad) {
+        if (n < 0) {
+            appendByte('-');
+            n = -n;
+        }
+        int digits = 1;
+        for (long t = n; t >= 10; t /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            appendByte(pad);
+        }
+        int end = bufferSize + digits;
+        for (int i = end - 1; i >= bufferSize; i--) {
+            buffer[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        bufferSize = end;
+    }
+
+    private void appendByte(char c) {
+        buffer[bufferSize++] = (byte) c;
+    }
+
+    private void write() throws IOException {
+        if (bufferSize == 0) {
+            return;
+        }
+        if (out == null || fileSize >= maxFileSize) {
+            open();
+        }
+        out.write(buffer, 0, bufferSize);
+        fileSize += bufferSize;
+        bufferSize = 0;
+    }
+
+    private void flush() throws IOException {
+        write();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    private void open() throws IOException {
+        File file = new File(fileName);
+        if (out != null) {
+            out.close();
+            out = null;
+            rotate(file);
+        } else if (file.length() >= maxFileSize) {
+            rotate(file);
+        }
+        out = new FileOutputStream(file, true);
+        fileSize = file.length();
+    }
+
+    /**
+     * access.log -> access.log.1 -> access.log.2 ... the oldest one is deleted.
+     */
+    private void rotate(File file) {
+        new File(fileName + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(fileName + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(fileName + "." + (i + 1)));
+            }
+        }
+        if (maxFiles > 0) {
+            file.renameTo(new File(fileName + ".1"));
+        } else {
+            file.delete();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            flush();
+        } catch (IOException ignore) {
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+            out = null;
+        }
+        bufferSize = 0;
+    }
+
+    private static int powerOfTwo(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    private static final class Record {
+        long timeMillis;
+        long elapsedMillis;
+        String client;
+        String action;
+        int status;
+        long bytes;
+        String method;
+        String uri;
+
+        //don't keep uris alive until the slot is reused
+        void clear() {
+            client = null;
+            method = null;
+            uri = null;
+        }
+    }
+}
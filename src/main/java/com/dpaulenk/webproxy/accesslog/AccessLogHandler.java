@@ -0,0 +1,157 @@
+package com.dpaulenk.webproxy.accesslog;
+
+import com.dpaulenk.webproxy.cache.CachedResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Matches responses to requests of the client connection and hands a record per exchange to {@link AccessLog}.
+ * Sits right after the codec, so it sees responses from the cache and the filter as well as proxied ones.
+ * Tunnels are logged once, when they are closed, with the number of bytes sent to the client.
+ */
+public class AccessLogHandler extends ChannelDuplexHandler {
+    private final AccessLog accessLog;
+
+    private String client = "-";
+
+    //requests waiting for a response, pipelining is rare, so it rarely grows
+    private String[] methods = new String[4];
+    private String[] uris = new String[4];
+    private long[] starts = new long[4];
+    private int head;
+    private int size;
+
+    //current response
+    private String action;
+    private int status;
+    private long bytes;
+    private boolean tunneling;
+
+    public AccessLogHandler(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        SocketAddress address = ctx.channel().remoteAddress();
+        if (address instanceof InetSocketAddress) {
+            client = ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest req = (HttpRequest) msg;
+            push(req.getMethod().name(), req.getUri(), System.currentTimeMillis());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (tunneling) {
+            if (msg instanceof ByteBuf) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            }
+        } else if (msg instanceof HttpObject) {
+            onResponse((HttpObject) msg);
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (tunneling) {
+            tunneling = false;
+            log();
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void onResponse(HttpObject msg) {
+        if (msg instanceof HttpResponse) {
+            HttpResponse res = (HttpResponse) msg;
+            status = res.getStatus().code();
+            bytes = 0;
+            action = action(res);
+        }
+
+        if (action == AccessLog.TCP_TUNNEL) {
+            //the tunnel is logged, when it's closed
+            tunneling = true;
+            return;
+        }
+
+        if (msg instanceof HttpContent) {
+            bytes += ((HttpContent) msg).content().readableBytes();
+        }
+
+        if (msg instanceof LastHttpContent && action != null) {
+            log();
+        }
+    }
+
+    private String action(HttpResponse res) {
+        if (size > 0 && HttpMethod.CONNECT.name().equals(methods[head]) && status == 200) {
+            return AccessLog.TCP_TUNNEL;
+        }
+        if (res instanceof CachedResponse) {
+            return status == 304 ? AccessLog.TCP_IMS_HIT : AccessLog.TCP_HIT;
+        }
+        if (status == 403 && res instanceof FullHttpResponse) {
+            return AccessLog.TCP_DENIED;
+        }
+        return AccessLog.TCP_MISS;
+    }
+
+    private void log() {
+        long now = System.currentTimeMillis();
+        if (size > 0) {
+            accessLog.log(now, now - starts[head], client, action, status, bytes, methods[head], uris[head]);
+            methods[head] = null;
+            uris[head] = null;
+            head = (head + 1) % methods.length;
+            size--;
+        } else {
+            //response without a request, e.g. an error before the request was decoded
+            accessLog.log(now, 0, client, action, status, bytes, null, null);
+        }
+        action = null;
+    }
+
+    private void push(String method, String uri, long start) {
+        if (size == methods.length) {
+            grow();
+        }
+        int tail = (head + size) % methods.length;
+        methods[tail] = method;
+        uris[tail] = uri;
+        starts[tail] = start;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = methods.length * 2;
+        String[] newMethods = new String[capacity];
+        String[] newUris = new String[capacity];
+        long[] newStarts = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % methods.length;
+            newMethods[i] = methods[index];
+            newUris[i] = uris[index];
+            newStarts[i] = starts[index];
+        }
+        methods = newMethods;
+        uris = newUris;
+        starts = newStarts;
+        head = 0;
+    }
+}
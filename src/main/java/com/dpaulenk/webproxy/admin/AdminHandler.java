@@ -0,0 +1,200 @@
+package com.dpaulenk.webproxy.admin;
+
+import com.dpaulenk.webproxy.ConfigReloader;
+import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.cache.BodyStore;
+import com.dpaulenk.webproxy.cache.CacheStore;
+import com.dpaulenk.webproxy.cache.PartitionedCacheStore;
+import com.dpaulenk.webproxy.cache.ResponseCache;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static com.dpaulenk.webproxy.utils.ProxyUtils.simpleResponse;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+
+/**
+ * Supported requests:
+ * <pre>
+ *   PURGE http://static.example.com/app/main.js            - exact purge, squid style
+ *   POST /purge?uri=http://static.example.com/app/main.js  - exact purge
+ *   POST /purge?prefix=http://static.example.com/app/      - purge by uri prefix
+ *   POST /purge?tag=app-v42                                - purge by surrogate key
+ *   GET  /cache/stats                                      - cache hit/miss/eviction/expiration counters
+ *   GET  /cache/partitions                                 - per host partition counters
+ *   GET  /blocklist                                        - loaded blocking rules
+ *   POST /blocklist/reload                                 - reread blocking rule files
+ *   GET  /parents                                          - parent proxies with their load and health
+ *   GET  /prewarm                                          - hot origins with their warm connections
+ *   GET  /config                                           - current options
+ *   GET  /metrics                                          - latencies and counters, prometheus text format
+ *   GET  /buffers                                          - buffered bytes by use, recent leak reports
+ *   POST /config/reload                                    - reread the options file
+ * </pre>
+ */
+public class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static final Logger logger = Logger.getLogger(AdminHandler.class);
+
+    public static final HttpMethod PURGE = new HttpMethod("PURGE");
+
+    private final WebProxyServer proxyServer;
+
+    public AdminHandler(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+        FullHttpResponse res;
+        try {
+            res = handle(req);
+        } catch (Exception e) {
+            logger.error("Error handling admin request: " + req.getUri(), e);
+            res = simpleResponse(INTERNAL_SERVER_ERROR, e.toString());
+        }
+
+        res.headers().set(HttpHeaders.Names.CONNECTION, "close");
+        ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private FullHttpResponse handle(FullHttpRequest req) {
+        String uri = req.getUri();
+        HttpMethod method = req.getMethod();
+
+        if (PURGE.equals(method) && uri.contains("://")) {
+            return purged(proxyServer.getResponseCache().purge(uri));
+        }
+
+        QueryStringDecoder decoder = new QueryStringDecoder(uri);
+        String path = decoder.path();
+        Map<String, List<String>> params = decoder.parameters();
+
+        if ("/purge".equals(path)) {
+            if (!HttpMethod.POST.equals(method) && !PURGE.equals(method)) {
+                return simpleResponse(METHOD_NOT_ALLOWED, "Use POST or PURGE for " + path);
+            }
+            return purge(params);
+        }
+
+        if ("/cache/stats".equals(path)) {
+            ResponseCache cache = proxyServer.getResponseCache();
+            String stats = "entries " + cache.size() + "\n" + cache.stats();
+
+            BodyStore bodies = cache.bodyStore();
+            if (bodies != null) {
+                stats += "shared_bodies " + bodies.size() + "\n" +
+                         "shared_body_hits " + bodies.sharedHits() + "\n" +
+                         "shared_body_saved_bytes " + bodies.savedBytes() + "\n";
+            }
+            return simpleResponse(OK, stats);
+        }
+
+        if ("/cache/partitions".equals(path)) {
+            CacheStore store = proxyServer.getResponseCache().store();
+            if (!(store instanceof PartitionedCacheStore)) {
+                return simpleResponse(NOT_FOUND, "Cache is not partitioned");
+            }
+            return simpleResponse(OK, store.toString());
+        }
+
+        if ("/blocklist".equals(path)) {
+            return simpleResponse(OK, proxyServer.getBlockList().toString());
+        }
+
+        if ("/blocklist/reload".equals(path)) {
+            if (!HttpMethod.POST.equals(method)) {
+                return simpleResponse(METHOD_NOT_ALLOWED, "Use POST for " + path);
+            }
+            long start = System.currentTimeMillis();
+            String loaded = proxyServer.reloadBlockList().toString();
+            logger.info("Reloaded block list in " + (System.currentTimeMillis() - start) + "ms");
+            return simpleResponse(OK, loaded);
+        }
+
+        if ("/parents".equals(path)) {
+            return simpleResponse(OK, proxyServer.getParentProxies().toString());
+        }
+
+        if ("/prewarm".equals(path)) {
+            return simpleResponse(OK, proxyServer.connectionPrewarmer().toString());
+        }
+
+        if ("/metrics".equals(path)) {
+            FullHttpResponse res = simpleResponse(OK, proxyServer.metrics().toPrometheus());
+            res.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain; version=0.0.4; charset=UTF-8");
+            return res;
+        }
+
+        if ("/buffers".equals(path)) {
+            return simpleResponse(OK, proxyServer.metrics().buffersReport());
+        }
+
+        if ("/config".equals(path)) {
+            StringBuilder sb = new StringBuilder();
+            Properties source = proxyServer.options().source();
+            for (String name : new TreeSet<String>(source.stringPropertyNames())) {
+                sb.append(name).append(" = ").append(source.getProperty(name)).append('\n');
+            }
+            return simpleResponse(OK, sb.toString());
+        }
+
+        if ("/config/reload".equals(path)) {
+            if (!HttpMethod.POST.equals(method)) {
+                return simpleResponse(METHOD_NOT_ALLOWED, "Use POST for " + path);
+            }
+            ConfigReloader reloader = proxyServer.getConfigReloader();
+            if (reloader == null) {
+                return simpleResponse(NOT_FOUND, "Options are not reloadable");
+            }
+            return simpleResponse(OK, reloader.reload());
+        }
+
+        return simpleResponse(NOT_FOUND, "Unknown admin request: " + uri);
+    }
+
+    private FullHttpResponse purge(Map<String, List<String>> params) {
+        ResponseCache cache = proxyServer.getResponseCache();
+
+        long start = System.nanoTime();
+
+        int purged = 0;
+        boolean matched = false;
+        if (params.containsKey("uri")) {
+            matched = true;
+            for (String uri : params.get("uri")) {
+                purged += cache.purge(uri);
+            }
+        }
+        if (params.containsKey("prefix")) {
+            matched = true;
+            for (String prefix : params.get("prefix")) {
+                purged += cache.purgePrefix(prefix);
+            }
+        }
+        if (params.containsKey("tag")) {
+            matched = true;
+            for (String tag : params.get("tag")) {
+                purged += cache.purgeTag(tag);
+            }
+        }
+
+        if (!matched) {
+            return simpleResponse(BAD_REQUEST, "One of 'uri', 'prefix' or 'tag' parameters is required");
+        }
+
+        logger.info("Purged " + purged + " entries in " + (System.nanoTime() - start) / 1000 + "us, request: " + params);
+
+        return purged(purged);
+    }
+
+    private FullHttpResponse purged(int count) {
+        return simpleResponse(OK, "purged: " + count + "\n");
+    }
+}
@@ -0,0 +1,61 @@
+package com.dpaulenk.webproxy.admin;
+
+import com.dpaulenk.webproxy.WebProxyServer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import org.apache.log4j.Logger;
+
+/**
+ * Serves administrative requests (cache purges) on a separate port.
+ * It has its own event loop, so long running purges never stall proxied traffic.
+ */
+public class AdminServer {
+    private static final Logger logger = Logger.getLogger(AdminServer.class);
+
+    private final WebProxyServer proxyServer;
+
+    private EventLoopGroup adminGroup;
+    private Channel serverChannel;
+
+    public AdminServer(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    public void start(String bindAddress, int port) throws InterruptedException {
+        adminGroup = new NioEventLoopGroup(1);
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(adminGroup)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    ChannelPipeline p = ch.pipeline();
+                    p.addLast("httpcodec", new HttpServerCodec());
+                    p.addLast("aggregator", new HttpObjectAggregator(65536));
+                    p.addLast("admin", new AdminHandler(proxyServer));
+                }
+            });
+
+        serverChannel = b.bind(bindAddress, port).sync().channel();
+
+        logger.info("Admin endpoint listening on " + bindAddress + ":" + port);
+    }
+
+    public void stop() {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (adminGroup != null) {
+            adminGroup.shutdownGracefully();
+        }
+    }
+}
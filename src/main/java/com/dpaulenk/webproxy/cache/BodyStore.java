@@ -0,0 +1,250 @@
+package com.dpaulenk.webproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed storage of cached bodies: byte-identical bodies of different uris
+ * are kept once and shared by all entries pointing at them.
+ * <p>
+ * One of the entries using a body is charged for its bytes, the rest weigh next to nothing.
+ * If the charged entry leaves the cache first, the charge moves over to another one, which is weighed anew.
+ */
+public class BodyStore {
+    //below this size the map entry costs more than the bytes it saves
+    private static final int MIN_SHARED_SIZE = 256;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final ConcurrentMap<BodyKey, Body> bodies = new ConcurrentHashMap<BodyKey, Body>();
+
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * Takes ownership of the content: it's either stored, or released in favour of an identical stored body.
+     * @return body with one reference for the caller, or null if the content is too small to be worth sharing
+     */
+    public SharedBody share(ByteBuf content) {
+        int size = content.readableBytes();
+        if (size < MIN_SHARED_SIZE) {
+            return null;
+        }
+
+        BodyKey key = new BodyKey(digest(content), size);
+
+        for (;;) {
+            Body existing = bodies.get(key);
+            if (existing == null) {
+                Body body = new Body(key, content);
+                existing = bodies.putIfAbsent(key, body);
+                if (existing == null) {
+                    return body.handle();
+                }
+            }
+
+            if (!existing.tryRetain()) {
+                //last user is just leaving, wait for it to be removed
+                bodies.remove(key, existing);
+                continue;
+            }
+
+            if (!ByteBufUtil.equals(existing.content, content)) {
+                //digest collision, keep this one private
+                existing.release();
+                return new Body(null, content).handle();
+            }
+
+            content.release();
+
+            sharedHits.incrementAndGet();
+            savedBytes.addAndGet(size);
+
+            return existing.handle();
+        }
+    }
+
+    public int size() {
+        return bodies.size();
+    }
+
+    public long sharedHits() {
+        return sharedHits.get();
+    }
+
+    public long savedBytes() {
+        return savedBytes.get();
+    }
+
+    private static byte[] digest(ByteBuf content) {
+        MessageDigest digest = digests.get();
+        for (ByteBuffer buffer : content.nioBuffers()) {
+            digest.update(buffer);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Told, when the charge for a body moves over to this entry.
+     */
+    public interface ChargeListener {
+        void charged(SharedBody body);
+    }
+
+    /**
+     * Handle of one entry, that uses the body.
+     */
+    public class SharedBody {
+        private final Body body;
+        private volatile boolean charged;
+        private volatile ChargeListener listener;
+
+        private SharedBody(Body body, boolean charged) {
+            this.body = body;
+            this.charged = charged;
+        }
+
+        /**
+         * @return independent view of the content, sharing its reference count
+         */
+        public ByteBuf content() {
+            return body.content.duplicate();
+        }
+
+        /**
+         * @return true for the entry, that is charged with the body's bytes
+         */
+        public boolean isCharged() {
+            return charged;
+        }
+
+        /**
+         * Set before the entry is stored, so a charge moving over meanwhile is weighed either way.
+         */
+        public void setChargeListener(ChargeListener listener) {
+            this.listener = listener;
+        }
+
+        public void release() {
+            body.drop(this);
+        }
+
+        private void chargeMoved() {
+            ChargeListener listener = this.listener;
+            if (listener != null) {
+                listener.charged(this);
+            }
+        }
+    }
+
+    private final class Body {
+        private final BodyKey key;
+        private final ByteBuf content;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        //guarded by this, exactly one of them is charged
+        private final Set<SharedBody> handles = new HashSet<SharedBody>();
+
+        Body(BodyKey key, ByteBuf content) {
+            this.key = key;
+            this.content = content;
+        }
+
+        /**
+         * Called with a reference taken for the handle.
+         */
+        synchronized SharedBody handle() {
+            //the first one, or the only one left after the charged one has gone
+            SharedBody handle = new SharedBody(this, handles.isEmpty());
+            handles.add(handle);
+            return handle;
+        }
+
+        void drop(SharedBody handle) {
+            SharedBody heir = null;
+            synchronized (this) {
+                if (!handles.remove(handle)) {
+                    return;
+                }
+                if (handle.charged && !handles.isEmpty()) {
+                    heir = handles.iterator().next();
+                    heir.charged = true;
+                }
+            }
+            if (heir != null) {
+                //still holding the reference, the body can't go meanwhile
+                heir.chargeMoved();
+            }
+            release();
+        }
+
+        boolean tryRetain() {
+            for (;;) {
+                int current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                if (key != null) {
+                    bodies.remove(key, this);
+                }
+                content.release();
+            }
+        }
+    }
+
+    private static final class BodyKey {
+        private final byte[] digest;
+        private final int size;
+        private final int hash;
+
+        BodyKey(byte[] digest, int size) {
+            this.digest = digest;
+            this.size = size;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BodyKey)) {
+                return false;
+            }
+            BodyKey other = (BodyKey) o;
+            return size == other.size && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.dpaulenk.webproxy.cache;
+
+import com.dpaulenk.webproxy.utils.HttpDates;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.List;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CACHE_CONTROL;
+import static io.netty.handler.codec.http.HttpHeaders.Names.EXPIRES;
+
+/**
+ * Caching directives of a single request or response: http://tools.ietf.org/html/rfc2616#section-14.9
+ * <p>
+ * Headers are scanned once per message, char by char, without splitting them into strings.
+ * Messages without Cache-Control and Expires headers share {@link #NONE}.
+ * <p>
+ * All durations are in milliseconds, -1 if the directive is missing or malformed.
+ */
+public final class CachePolicy {
+    public static final int NO_CACHE         = 1;
+    public static final int NO_STORE         = 1 << 1;
+    public static final int PRIVATE          = 1 << 2;
+    public static final int PUBLIC           = 1 << 3;
+    public static final int MUST_REVALIDATE  = 1 << 4;
+    public static final int PROXY_REVALIDATE = 1 << 5;
+    public static final int NO_TRANSFORM     = 1 << 6;
+    public static final int ONLY_IF_CACHED   = 1 << 7;
+    public static final int IMMUTABLE        = 1 << 8;
+
+    public static final CachePolicy NONE = new CachePolicy();
+
+    //delta-seconds beyond 2^31 are treated as 2^31: http://tools.ietf.org/html/rfc7234#section-1.2.1
+    private static final long MAX_DELTA_SECONDS = Integer.MAX_VALUE;
+
+    private int flags;
+
+    private long maxAge = -1;
+    private long sMaxAge = -1;
+    private long maxStale = -1;
+    private long minFresh = -1;
+    private long staleWhileRevalidate = -1;
+    private long staleIfError = -1;
+
+    //absolute time
+    private long expires = -1;
+
+    private CachePolicy() {}
+
+    public static CachePolicy parse(HttpHeaders headers) {
+        String expiresValue = headers.get(EXPIRES);
+        if (expiresValue == null && !headers.contains(CACHE_CONTROL)) {
+            return NONE;
+        }
+
+        CachePolicy policy = new CachePolicy();
+
+        List<String> cacheControls = headers.getAll(CACHE_CONTROL);
+        for (int i = 0; i < cacheControls.size(); i++) {
+            policy.parseDirectives(cacheControls.get(i));
+        }
+
+        policy.expires = HttpDates.parse(expiresValue);
+
+        return policy;
+    }
+
+    public boolean has(int flagsMask) {
+        return (flags & flagsMask) != 0;
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    public long maxAge() {
+        return maxAge;
+    }
+
+    public long sMaxAge() {
+        return sMaxAge;
+    }
+
+    /**
+     * s-maxage overrides max-age for shared caches: http://tools.ietf.org/html/rfc2616#section-14.9.3
+     */
+    public long sharedMaxAge() {
+        return sMaxAge >= 0 ? sMaxAge : maxAge;
+    }
+
+    public long maxStale() {
+        return maxStale;
+    }
+
+    public long minFresh() {
+        return minFresh;
+    }
+
+    public long staleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public long staleIfError() {
+        return staleIfError;
+    }
+
+    public long expires() {
+        return expires;
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc2616#section-13.2.4
+     * @return how long the response stays fresh in a shared cache, or -1 if it has no explicit expiration time
+     */
+    public long freshnessLifetime(long currentTime) {
+        long age = sharedMaxAge();
+        if (age >= 0) {
+            return age;
+        }
+
+        if (expires >= 0) {
+            return Math.max(0, expires - currentTime);
+        }
+
+        return -1;
+    }
+
+    private void parseDirectives(String value) {
+        int len = value.length();
+        int i = 0;
+
+        while (i < len) {
+            char c = value.charAt(i);
+            if (c == ',' || c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+
+            int nameStart = i;
+            while (i < len && (c = value.charAt(i)) != '=' && c != ',') {
+                i++;
+            }
+            int nameEnd = i;
+            while (nameEnd > nameStart && isWhitespace(value.charAt(nameEnd - 1))) {
+                nameEnd--;
+            }
+
+            long seconds = -1;
+            if (i < len && c == '=') {
+                i++;
+                while (i < len && isWhitespace(value.charAt(i))) {
+                    i++;
+                }
+
+                boolean quoted = i < len && value.charAt(i) == '"';
+                if (quoted) {
+                    i++;
+                }
+
+                int digitsStart = i;
+                long n = 0;
+                while (i < len && (c = value.charAt(i)) >= '0' && c <= '9') {
+                    n = Math.min(n * 10 + (c - '0'), MAX_DELTA_SECONDS);
+                    i++;
+                }
+                if (i > digitsStart) {
+                    seconds = n;
+                }
+
+                //skip the rest of the value, e.g. field names of no-cache="Set-Cookie"
+                while (i < len && ((c = value.charAt(i)) != ',' || quoted)) {
+                    if (c == '"') {
+                        quoted = !quoted;
+                    }
+                    i++;
+                }
+            }
+
+            directive(value, nameStart, nameEnd - nameStart, seconds);
+        }
+    }
+
+    private void directive(String value, int start, int len, long seconds) {
+        //first char narrows the candidates down to one or two
+        switch (Character.toLowerCase(value.charAt(start))) {
+            case 'm':
+                if (is(value, start, len, "max-age")) {
+                    maxAge = first(maxAge, seconds);
+                } else if (is(value, start, len, "max-stale")) {
+                    //max-stale without a value accepts any staleness
+                    maxStale = seconds < 0 ? MAX_DELTA_SECONDS * 1000 : first(maxStale, seconds);
+                } else if (is(value, start, len, "min-fresh")) {
+                    minFresh = first(minFresh, seconds);
+                } else if (is(value, start, len, "must-revalidate")) {
+                    flags |= MUST_REVALIDATE;
+                }
+                break;
+            case 'n':
+                if (is(value, start, len, "no-cache")) {
+                    flags |= NO_CACHE;
+                } else if (is(value, start, len, "no-store")) {
+                    flags |= NO_STORE;
+                } else if (is(value, start, len, "no-transform")) {
+                    flags |= NO_TRANSFORM;
+                }
+                break;
+            case 'p':
+                if (is(value, start, len, "private")) {
+                    flags |= PRIVATE;
+                } else if (is(value, start, len, "public")) {
+                    flags |= PUBLIC;
+                } else if (is(value, start, len, "proxy-revalidate")) {
+                    flags |= PROXY_REVALIDATE;
+                }
+                break;
+            case 's':
+                if (is(value, start, len, "s-maxage")) {
+                    sMaxAge = first(sMaxAge, seconds);
+                } else if (is(value, start, len, "stale-while-revalidate")) {
+                    staleWhileRevalidate = first(staleWhileRevalidate, seconds);
+                } else if (is(value, start, len, "stale-if-error")) {
+                    staleIfError = first(staleIfError, seconds);
+                }
+                break;
+            case 'o':
+                if (is(value, start, len, "only-if-cached")) {
+                    flags |= ONLY_IF_CACHED;
+                }
+                break;
+            case 'i':
+                if (is(value, start, len, "immutable")) {
+                    flags |= IMMUTABLE;
+                }
+                break;
+        }
+    }
+
+    /**
+     * The first occurrence of a directive wins, malformed values are ignored.
+     */
+    private static long first(long current, long seconds) {
+        if (current >= 0 || seconds < 0) {
+            return current;
+        }
+        return seconds * 1000;
+    }
+
+    private static boolean is(String value, int start, int len, String directive) {
+        return len == directive.length() && value.regionMatches(true, start, directive, 0, len);
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,90 @@
+package com.dpaulenk.webproxy.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong removals = new AtomicLong();
+    private final AtomicLong purges = new AtomicLong();
+    private final AtomicLong bypasses = new AtomicLong();
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public void recordStore() {
+        stores.incrementAndGet();
+    }
+
+    public void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    public void recordExpiration() {
+        expirations.incrementAndGet();
+    }
+
+    public void recordRemoval() {
+        removals.incrementAndGet();
+    }
+
+    public void recordPurges(int count) {
+        purges.addAndGet(count);
+    }
+
+    public void recordBypass() {
+        bypasses.incrementAndGet();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long stores() {
+        return stores.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public long expirations() {
+        return expirations.get();
+    }
+
+    public long removals() {
+        return removals.get();
+    }
+
+    public long purges() {
+        return purges.get();
+    }
+
+    public long bypasses() {
+        return bypasses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits " + hits() + "\n" +
+               "misses " + misses() + "\n" +
+               "stores " + stores() + "\n" +
+               "evictions " + evictions() + "\n" +
+               "expirations " + expirations() + "\n" +
+               "removals " + removals() + "\n" +
+               "purges " + purges() + "\n" +
+               "bypasses " + bypasses() + "\n";
+    }
+}
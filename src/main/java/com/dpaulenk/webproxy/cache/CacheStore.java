@@ -0,0 +1,37 @@
+package com.dpaulenk.webproxy.cache;
+
+/**
+ * Bounded storage behind {@link ResponseCache}. Implementations evict on their own
+ * and report evicted entries to the listener they were created with.
+ */
+public interface CacheStore {
+    CachedResponse get(String uri);
+
+    /**
+     * Lookup without side effects: the entry is neither promoted nor counted as a hit or a miss.
+     */
+    CachedResponse peek(String uri);
+
+    /**
+     * @return replaced response or null
+     */
+    CachedResponse put(String uri, CachedResponse res);
+
+    CachedResponse remove(String uri);
+
+    boolean remove(String uri, CachedResponse expected);
+
+    /**
+     * Replaces the entry, if it's still the expected one, weighing it anew.
+     */
+    boolean replace(String uri, CachedResponse expected, CachedResponse res);
+
+    boolean containsKey(String uri);
+
+    int size();
+
+    /**
+     * Resizes the store in place, shrinking evicts least recently used entries right away.
+     */
+    void setCapacity(long capacity);
+}
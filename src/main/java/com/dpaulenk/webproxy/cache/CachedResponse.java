@@ -6,6 +6,7 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 
 public class CachedResponse extends DefaultFullHttpResponse {
+    private static final String[] NO_KEYS = new String[0];
 
     private final int contentSize;
 
@@ -15,14 +16,30 @@ public class CachedResponse extends DefaultFullHttpResponse {
 
     private long lastModified;
 
+    private String[] surrogateKeys = NO_KEYS;
+
+    private volatile ResponseCache.Expiry expiry;
+
+    private volatile boolean discarded;
+
+    private final BodyStore.SharedBody sharedBody;
+
     public CachedResponse(HttpVersion version, HttpResponseStatus status) {
         super(version, status);
         contentSize = 0;
+        sharedBody = null;
     }
 
     public CachedResponse(HttpVersion version, HttpResponseStatus status, ByteBuf content) {
         super(version, status, content);
         contentSize = content.readableBytes();
+        sharedBody = null;
+    }
+
+    public CachedResponse(HttpVersion version, HttpResponseStatus status, BodyStore.SharedBody sharedBody) {
+        super(version, status, sharedBody.content());
+        contentSize = content().readableBytes();
+        this.sharedBody = sharedBody;
     }
 
     public void setBirthTime(long birthTime) {
@@ -37,6 +54,33 @@ public class CachedResponse extends DefaultFullHttpResponse {
         this.lastModified = lastModified;
     }
 
+    public void setSurrogateKeys(String[] surrogateKeys) {
+        this.surrogateKeys = surrogateKeys == null ? NO_KEYS : surrogateKeys;
+    }
+
+    public String[] getSurrogateKeys() {
+        return surrogateKeys;
+    }
+
+    void setExpiry(ResponseCache.Expiry expiry) {
+        this.expiry = expiry;
+    }
+
+    ResponseCache.Expiry getExpiry() {
+        return expiry;
+    }
+
+    public void markDiscarded() {
+        discarded = true;
+    }
+
+    /**
+     * @return true, once the entry has left the cache
+     */
+    public boolean isDiscarded() {
+        return discarded;
+    }
+
     public long getLastModified() {
         return lastModified;
     }
@@ -45,10 +89,49 @@ public class CachedResponse extends DefaultFullHttpResponse {
         return contentSize;
     }
 
+    BodyStore.SharedBody getSharedBody() {
+        return sharedBody;
+    }
+
+    /**
+     * Shared bodies are weighed only for the entry, that is charged for them.
+     */
+    public int getWeight() {
+        if (sharedBody != null && !sharedBody.isCharged()) {
+            return 0;
+        }
+        return contentSize;
+    }
+
+    /**
+     * Drops the cache's reference to the content, a shared body is freed with its last user.
+     */
+    public void releaseBody() {
+        if (sharedBody != null) {
+            sharedBody.release();
+        } else {
+            release();
+        }
+    }
+
     public long currentAge() {
         return System.currentTimeMillis() - birthTime;
     }
 
+    /**
+     * @return milliseconds left until the response expires, or -1 if it has no explicit expiration time
+     */
+    public long expiresIn() {
+        if (maxAge < 0) {
+            return -1;
+        }
+        return Math.max(0, birthTime + maxAge - System.currentTimeMillis());
+    }
+
+    public boolean expired() {
+        return maxAge >= 0 && currentAge() >= maxAge;
+    }
+
     public boolean expired(long maxAge) {
         long currentAge = currentAge();
         return currentAge >= maxAge || currentAge >= this.maxAge;
@@ -57,4 +140,14 @@ public class CachedResponse extends DefaultFullHttpResponse {
     public boolean modifiedSince(long modifiedSince) {
         return lastModified > 0 && lastModified > modifiedSince;
     }
+
+    /**
+     * Every write drains the content's reader index and releases it once,
+     * so each hit is served from its own view of the shared content.
+     */
+    public CachedResponse retainedDuplicate() {
+        CachedResponse dup = new CachedResponse(getProtocolVersion(), getStatus(), content().duplicate().retain());
+        dup.headers().add(headers());
+        return dup;
+    }
 }
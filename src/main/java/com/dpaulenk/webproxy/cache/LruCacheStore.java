@@ -0,0 +1,67 @@
+package com.dpaulenk.webproxy.cache;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+/**
+ * Single LRU map shared by all event loops.
+ */
+public class LruCacheStore implements CacheStore {
+    private final ConcurrentLinkedHashMap<String, CachedResponse> cachedResponses;
+
+    public LruCacheStore(long capacity, int concurrencyLevel,
+                         Weigher<CachedResponse> weigher, EvictionListener<String, CachedResponse> listener) {
+        cachedResponses = new ConcurrentLinkedHashMap.Builder<String, CachedResponse>()
+            .concurrencyLevel(concurrencyLevel)
+            .maximumWeightedCapacity(capacity)
+            .weigher(weigher)
+            .listener(listener)
+            .build();
+    }
+
+    @Override
+    public CachedResponse get(String uri) {
+        return cachedResponses.get(uri);
+    }
+
+    @Override
+    public CachedResponse peek(String uri) {
+        return cachedResponses.getQuietly(uri);
+    }
+
+    @Override
+    public CachedResponse put(String uri, CachedResponse res) {
+        return cachedResponses.put(uri, res);
+    }
+
+    @Override
+    public CachedResponse remove(String uri) {
+        return cachedResponses.remove(uri);
+    }
+
+    @Override
+    public boolean remove(String uri, CachedResponse expected) {
+        return cachedResponses.remove(uri, expected);
+    }
+
+    @Override
+    public boolean replace(String uri, CachedResponse expected, CachedResponse res) {
+        return cachedResponses.replace(uri, expected, res);
+    }
+
+    @Override
+    public boolean containsKey(String uri) {
+        return cachedResponses.containsKey(uri);
+    }
+
+    @Override
+    public int size() {
+        return cachedResponses.size();
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        cachedResponses.setCapacity(capacity);
+    }
+}
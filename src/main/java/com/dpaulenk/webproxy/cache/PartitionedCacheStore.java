@@ -0,0 +1,225 @@
+package com.dpaulenk.webproxy.cache;
+
+import com.dpaulenk.webproxy.utils.ProxyUtils;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the cache into per-host partitions with their own byte quotas and LRU order,
+ * plus a shared overflow pool for all other hosts. A host filling its partition
+ * only evicts its own entries, so one busy origin can't flush everyone else.
+ * <p>
+ * Quotas are hard limits: a full partition evicts its own entries and never borrows room from the overflow pool,
+ * even while the pool is idle. The pool gets whatever the quotas leave of the cache size.
+ * <p>
+ * Partitions are configured as "host-pattern quota-in-bytes", where pattern is
+ * a host name, that may contain '*' wildcards: "*.internal.example.com 10485760"
+ */
+public class PartitionedCacheStore implements CacheStore {
+    private static final Logger logger = Logger.getLogger(PartitionedCacheStore.class);
+
+    //host -> partition lookups are memoized, the memo is reset if it grows beyond this
+    private static final int MAX_RESOLVED_HOSTS = 65536;
+
+    private final Partition[] partitions;
+    private final Partition overflow;
+
+    private final ConcurrentMap<String, Partition> resolvedHosts = new ConcurrentHashMap<String, Partition>();
+
+    public PartitionedCacheStore(long capacity, int concurrencyLevel, String[] partitionsConfig,
+                                 Weigher<CachedResponse> weigher, EvictionListener<String, CachedResponse> listener) {
+        List<Partition> configured = new ArrayList<Partition>();
+
+        long reserved = 0;
+        for (String config : partitionsConfig) {
+            String[] parts = config.trim().split("\\s+");
+            if (parts.length != 2) {
+                logger.error("Ignoring malformed cache partition, expected 'host-pattern quota': " + config);
+                continue;
+            }
+
+            long quota;
+            try {
+                quota = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                logger.error("Ignoring cache partition with malformed quota: " + config);
+                continue;
+            }
+
+            configured.add(new Partition(parts[0], ProxyUtils.hostPattern(parts[0]), quota, concurrencyLevel,
+                                         weigher, listener));
+            reserved += quota;
+        }
+
+        partitions = configured.toArray(new Partition[configured.size()]);
+        overflow = new Partition("overflow", null, overflowCapacity(capacity, reserved), concurrencyLevel, weigher, listener);
+    }
+
+    @Override
+    public CachedResponse get(String uri) {
+        return partition(uri).get(uri);
+    }
+
+    @Override
+    public CachedResponse peek(String uri) {
+        return partition(uri).map.getQuietly(uri);
+    }
+
+    @Override
+    public CachedResponse put(String uri, CachedResponse res) {
+        return partition(uri).map.put(uri, res);
+    }
+
+    @Override
+    public CachedResponse remove(String uri) {
+        return partition(uri).map.remove(uri);
+    }
+
+    @Override
+    public boolean remove(String uri, CachedResponse expected) {
+        return partition(uri).map.remove(uri, expected);
+    }
+
+    @Override
+    public boolean replace(String uri, CachedResponse expected, CachedResponse res) {
+        return partition(uri).map.replace(uri, expected, res);
+    }
+
+    @Override
+    public boolean containsKey(String uri) {
+        return partition(uri).map.containsKey(uri);
+    }
+
+    @Override
+    public int size() {
+        int size = overflow.map.size();
+        for (Partition partition : partitions) {
+            size += partition.map.size();
+        }
+        return size;
+    }
+
+    /**
+     * Partition quotas stay as configured, only the overflow pool is resized.
+     */
+    @Override
+    public void setCapacity(long capacity) {
+        long reserved = 0;
+        for (Partition partition : partitions) {
+            reserved += partition.map.capacity();
+        }
+        overflow.map.setCapacity(overflowCapacity(capacity, reserved));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Partition partition : partitions) {
+            sb.append(partition).append('\n');
+        }
+        sb.append(overflow).append('\n');
+        return sb.toString();
+    }
+
+    private static long overflowCapacity(long capacity, long reserved) {
+        long overflowCapacity = capacity - reserved;
+        if (overflowCapacity <= 0) {
+            logger.warn("Cache partitions reserve " + reserved + " of " + capacity +
+                        " bytes, the overflow pool is limited to a single entry");
+            overflowCapacity = 1;
+        }
+        return overflowCapacity;
+    }
+
+    private Partition partition(String uri) {
+        String host = host(uri);
+
+        Partition partition = resolvedHosts.get(host);
+        if (partition != null) {
+            return partition;
+        }
+
+        partition = overflow;
+        for (Partition p : partitions) {
+            if (p.hostPattern.matcher(host).matches()) {
+                partition = p;
+                break;
+            }
+        }
+
+        if (resolvedHosts.size() >= MAX_RESOLVED_HOSTS) {
+            resolvedHosts.clear();
+        }
+        resolvedHosts.put(host, partition);
+
+        return partition;
+    }
+
+    private static String host(String uri) {
+        String hostAndPort = ProxyUtils.getHostAndPort(uri);
+
+        int colonPos = hostAndPort.indexOf(':');
+        if (colonPos != -1) {
+            hostAndPort = hostAndPort.substring(0, colonPos);
+        }
+        return hostAndPort.toLowerCase();
+    }
+
+    private static class Partition {
+        final String name;
+        final Pattern hostPattern;
+        final ConcurrentLinkedHashMap<String, CachedResponse> map;
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+
+        Partition(String name, Pattern hostPattern, long quota, int concurrencyLevel,
+                  Weigher<CachedResponse> weigher, final EvictionListener<String, CachedResponse> listener) {
+            this.name = name;
+            this.hostPattern = hostPattern;
+            this.map = new ConcurrentLinkedHashMap.Builder<String, CachedResponse>()
+                .concurrencyLevel(concurrencyLevel)
+                .maximumWeightedCapacity(quota)
+                .weigher(weigher)
+                .listener(new EvictionListener<String, CachedResponse>() {
+                    @Override
+                    public void onEviction(String key, CachedResponse value) {
+                        evictions.incrementAndGet();
+                        listener.onEviction(key, value);
+                    }
+                })
+                .build();
+        }
+
+        CachedResponse get(String uri) {
+            CachedResponse res = map.get(uri);
+            if (res == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "partition " + name +
+                   " entries=" + map.size() +
+                   " bytes=" + map.weightedSize() +
+                   " quota=" + map.capacity() +
+                   " hits=" + hits.get() +
+                   " misses=" + misses.get() +
+                   " evictions=" + evictions.get();
+        }
+    }
+}
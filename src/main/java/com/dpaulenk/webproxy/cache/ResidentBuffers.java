@@ -0,0 +1,64 @@
+package com.dpaulenk.webproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.buffer.UnpooledUnsafeDirectByteBuf;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates buffers for cached bodies and counts the bytes they hold until they're freed.
+ * <p>
+ * Bodies are copied out of the buffers they were read into: those come from the channel's allocator,
+ * usually as slices of larger read buffers, and would pin whole pool chunks for as long as the entry lives.
+ * The copies are exact-sized and unpooled, so cache memory is never mixed with short-living traffic.
+ */
+final class ResidentBuffers {
+    private final AtomicLong bytes = new AtomicLong();
+
+    ByteBuf allocate(int size) {
+        return PlatformDependent.hasUnsafe() ? new UnsafeResidentBuf(this, size) : new ResidentBuf(this, size);
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    private static final class ResidentBuf extends UnpooledDirectByteBuf {
+        private final ResidentBuffers owner;
+        private final int allocated;
+
+        ResidentBuf(ResidentBuffers owner, int size) {
+            super(UnpooledByteBufAllocator.DEFAULT, size, size);
+            this.owner = owner;
+            this.allocated = size;
+            owner.bytes.addAndGet(size);
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            owner.bytes.addAndGet(-allocated);
+        }
+    }
+
+    private static final class UnsafeResidentBuf extends UnpooledUnsafeDirectByteBuf {
+        private final ResidentBuffers owner;
+        private final int allocated;
+
+        UnsafeResidentBuf(ResidentBuffers owner, int size) {
+            super(UnpooledByteBufAllocator.DEFAULT, size, size);
+            this.owner = owner;
+            this.allocated = size;
+            owner.bytes.addAndGet(size);
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            owner.bytes.addAndGet(-allocated);
+        }
+    }
+}
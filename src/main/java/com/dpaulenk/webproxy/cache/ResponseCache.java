@@ -1,49 +1,380 @@
 package com.dpaulenk.webproxy.cache;
 
 import com.dpaulenk.webproxy.WebProxyOptions;
-import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.googlecode.concurrentlinkedhashmap.Weigher;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.apache.log4j.Logger;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
 public class ResponseCache {
     private static final Logger logger = Logger.getLogger(ResponseCache.class);
 
-    private final ConcurrentLinkedHashMap<String, CachedResponse> cachedResponses;
+    private final CacheStore cachedResponses;
+
+    //sorted view of the cached uris, so prefix purges don't have to scan the whole map
+    private final ConcurrentSkipListSet<String> keyIndex = new ConcurrentSkipListSet<String>();
+
+    //surrogate key -> uris tagged with it
+    private final ConcurrentMap<String, Set<String>> tagIndex = new ConcurrentHashMap<String, Set<String>>();
+
+    private final CacheStats stats = new CacheStats();
+
+    private final ResidentBuffers residentBuffers = new ResidentBuffers();
+
+    private final UncachableMemo uncachable;
+
+    //null, when deduplication is disabled
+    private final BodyStore bodyStore;
+
+    //releases entries as soon as their max-age is over, instead of waiting for LRU pressure or a lookup
+    private final Timer expiryTimer;
 
     public ResponseCache(WebProxyOptions options) {
+        expiryTimer = new HashedWheelTimer(new DefaultThreadFactory("cache-expiry", true),
+                                           options.cacheExpiryTickMillis(), TimeUnit.MILLISECONDS,
+                                           options.cacheExpiryWheelSize());
+
+        bodyStore = options.cacheDeduplication() ? new BodyStore() : null;
+
+        uncachable = new UncachableMemo(options.uncachableMemoSize(), options.uncachableMemoMillis());
+
+        Weigher<CachedResponse> weigher = new Weigher<CachedResponse>() {
+            @Override
+            public int weightOf(CachedResponse value) {
+                //weights must be positive, even for empty bodies
+                return Math.max(1, value.getWeight());
+            }
+        };
+
+        EvictionListener<String, CachedResponse> evictionListener = new EvictionListener<String, CachedResponse>() {
+            @Override
+            public void onEviction(String key, CachedResponse value) {
+                logger.debug("Evicting from cache: " + key);
+                stats.recordEviction();
+                discard(key, value);
+            }
+        };
+
+        cachedResponses = createStore(options, weigher, evictionListener);
+    }
+
+    private static CacheStore createStore(WebProxyOptions options, Weigher<CachedResponse> weigher,
+                                          EvictionListener<String, CachedResponse> evictionListener) {
+        if ("sharded".equals(options.cacheStore())) {
+            return new ShardedCacheStore(options.maximumCacheSize(), options.cacheShards(),
+                                         options.cacheConcurrencyLevel(), options.cacheHotSetSize(),
+                                         weigher, evictionListener);
+        }
+
+        if ("partitioned".equals(options.cacheStore())) {
+            return new PartitionedCacheStore(options.maximumCacheSize(), options.cacheConcurrencyLevel(),
+                                             options.cachePartitions(), weigher, evictionListener);
+        }
+
         //create LRU cache
-        cachedResponses = new ConcurrentLinkedHashMap.Builder<String, CachedResponse>()
-            .concurrencyLevel(options.cacheConcurrencyLevel())
-            .maximumWeightedCapacity(options.maximumCacheSize())
-            .weigher(new Weigher<CachedResponse>() {
-                @Override
-                public int weightOf(CachedResponse value) {
-                    return value.getContentSize();
-                }
-            })
-            .listener(new EvictionListener<String, CachedResponse>() {
-                @Override
-                public void onEviction(String key, CachedResponse value) {
-                    logger.debug("Evicting from cache: " + key);
-                }
-            })
-            .build();
+        return new LruCacheStore(options.maximumCacheSize(), options.cacheConcurrencyLevel(), weigher, evictionListener);
     }
 
     public CachedResponse get(String uri) {
         return cachedResponses.get(uri);
     }
 
-    public void put(String uri, CachedResponse res) {
-        cachedResponses.put(uri, res);
+    public void put(final String uri, final CachedResponse res) {
+        BodyStore.SharedBody sharedBody = res.getSharedBody();
+        if (sharedBody != null) {
+            sharedBody.setChargeListener(new BodyStore.ChargeListener() {
+                @Override
+                public void charged(BodyStore.SharedBody body) {
+                    //the entry charged before has left, this one takes over its bytes
+                    cachedResponses.replace(uri, res, res);
+                }
+            });
+        }
+
+        CachedResponse old = cachedResponses.put(uri, res);
+        if (old != null && old != res) {
+            discard(uri, old);
+        }
+        //after the put, so an unindex of an earlier entry either sees it in the map or is followed by this
+        keyIndex.add(uri);
+
+        indexTags(uri, res);
+        scheduleExpiry(uri, res);
+
+        stats.recordStore();
     }
 
     public void remove(String uri, CachedResponse expected) {
         if (expected == null) {
-            cachedResponses.remove(uri);
+            CachedResponse removed = cachedResponses.remove(uri);
+            if (removed != null) {
+                stats.recordRemoval();
+                discard(uri, removed);
+            }
         } else {
-            cachedResponses.remove(uri, expected);
+            if (cachedResponses.remove(uri, expected)) {
+                stats.recordRemoval();
+                discard(uri, expected);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry, that was found expired on lookup, before the expiry timer got to it.
+     */
+    public void expire(String uri, CachedResponse expected) {
+        if (cachedResponses.remove(uri, expected)) {
+            stats.recordExpiration();
+            discard(uri, expected);
+        }
+    }
+
+    /**
+     * Removes the entry cached for exactly this uri.
+     * @return number of purged entries
+     */
+    public int purge(String uri) {
+        int purged = purgeEntry(uri);
+        stats.recordPurges(purged);
+        return purged;
+    }
+
+    /**
+     * Removes all entries whose uri starts with the prefix, e.g. "http://static.example.com/app/".
+     * @return number of purged entries
+     */
+    public int purgePrefix(String prefix) {
+        NavigableSet<String> matched = keyIndex.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+
+        int purged = 0;
+        for (String uri : matched) {
+            purged += purgeEntry(uri);
+        }
+        stats.recordPurges(purged);
+        return purged;
+    }
+
+    /**
+     * Removes all entries tagged with the surrogate key.
+     * @return number of purged entries
+     */
+    public int purgeTag(String tag) {
+        Set<String> uris = tagIndex.remove(tag);
+        if (uris == null) {
+            return 0;
+        }
+
+        int purged = 0;
+        for (String uri : uris) {
+            purged += purgeEntry(uri);
+        }
+        stats.recordPurges(purged);
+        return purged;
+    }
+
+    public int size() {
+        return cachedResponses.size();
+    }
+
+    public void setCapacity(long capacity) {
+        cachedResponses.setCapacity(capacity);
+    }
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+    public UncachableMemo uncachable() {
+        return uncachable;
+    }
+
+    public CacheStore store() {
+        return cachedResponses;
+    }
+
+    public BodyStore bodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Buffer for a body about to be cached, counted in {@link #residentBytes()} until it's freed.
+     */
+    public ByteBuf allocateBody(int size) {
+        return residentBuffers.allocate(size);
+    }
+
+    /**
+     * Bytes of cached bodies, including bodies of evicted entries, that are still being served.
+     */
+    public long residentBytes() {
+        return residentBuffers.bytes();
+    }
+
+    /**
+     * Takes ownership of a body about to be cached.
+     * @return body shared with identical cached bodies, or null if it should be stored as is
+     */
+    public BodyStore.SharedBody shareBody(ByteBuf content) {
+        if (bodyStore == null) {
+            return null;
+        }
+        return bodyStore.share(content);
+    }
+
+    public void shutdown() {
+        expiryTimer.stop();
+    }
+
+    private int purgeEntry(String uri) {
+        CachedResponse removed = cachedResponses.remove(uri);
+        if (removed == null) {
+            return 0;
+        }
+        discard(uri, removed);
+        return 1;
+    }
+
+    private void scheduleExpiry(String uri, CachedResponse res) {
+        long expiresIn = res.expiresIn();
+        if (expiresIn < 0) {
+            //no explicit expiration time, only validators; leave it to LRU
+            return;
+        }
+
+        Expiry expiry = new Expiry(uri, res);
+        res.setExpiry(expiry);
+        expiryTimer.newTimeout(expiry, expiresIn, TimeUnit.MILLISECONDS);
+        if (res.isDiscarded()) {
+            //left the cache, before it had an expiry to clear
+            expiry.clear();
+        }
+    }
+
+    /**
+     * Expires an entry, unless it left the cache before.
+     * <p>
+     * Never cancelled: cancelling on the wheel of netty 4.0.21 can lose timeouts, that other threads add at the
+     * same time. A discarded entry clears its expiry instead, so the entry can be collected long before it fires.
+     */
+    final class Expiry implements TimerTask {
+        private volatile String uri;
+        private volatile CachedResponse res;
+
+        Expiry(String uri, CachedResponse res) {
+            this.uri = uri;
+            this.res = res;
+        }
+
+        void clear() {
+            res = null;
+            uri = null;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            String uri = this.uri;
+            CachedResponse res = this.res;
+            if (uri == null || res == null) {
+                return;
+            }
+            if (cachedResponses.remove(uri, res)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Expiring from cache: " + uri);
+                }
+                stats.recordExpiration();
+                discard(uri, res);
+            }
+        }
+    }
+
+    /**
+     * Called exactly once for every entry, that left the map: either evicted, expired, purged or replaced.
+     */
+    private void discard(String uri, CachedResponse res) {
+        //per-thread hot sets check this flag before handing out their references
+        res.markDiscarded();
+
+        unindex(uri, res);
+
+        Expiry expiry = res.getExpiry();
+        if (expiry != null) {
+            expiry.clear();
+        }
+
+        //the cache holds the only long-living reference, responses in flight hold their own
+        res.releaseBody();
+    }
+
+    private void indexTags(String uri, CachedResponse res) {
+        for (String tag : res.getSurrogateKeys()) {
+            indexTag(uri, tag);
+        }
+    }
+
+    private void indexTag(String uri, String tag) {
+        for (;;) {
+            Set<String> uris = tagIndex.get(tag);
+            if (uris == null) {
+                Set<String> newUris = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                uris = tagIndex.putIfAbsent(tag, newUris);
+                if (uris == null) {
+                    uris = newUris;
+                }
+            }
+            uris.add(uri);
+            //an unindex may have dropped the set as empty meanwhile
+            if (tagIndex.get(tag) == uris) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs concurrently with a put of the same uri, so whatever it removes is checked against the map again.
+     */
+    private void unindex(String uri, CachedResponse res) {
+        if (!cachedResponses.containsKey(uri)) {
+            keyIndex.remove(uri);
+            if (cachedResponses.containsKey(uri)) {
+                keyIndex.add(uri);
+            }
+        }
+        unindexTags(uri, res);
+    }
+
+    private void unindexTags(String uri, CachedResponse res) {
+        String[] tags = res.getSurrogateKeys();
+        for (String tag : tags) {
+            Set<String> uris = tagIndex.get(tag);
+            if (uris != null) {
+                uris.remove(uri);
+                if (uris.isEmpty()) {
+                    tagIndex.remove(tag, uris);
+                }
+            }
+        }
+
+        CachedResponse current = tags.length > 0 ? cachedResponses.peek(uri) : null;
+        if (current != null && current != res) {
+            for (String tag : tags) {
+                if (Arrays.asList(current.getSurrogateKeys()).contains(tag)) {
+                    indexTag(uri, tag);
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+package com.dpaulenk.webproxy.cache;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+/**
+ * Two level store for many event loops hitting the cache at once:
+ * <ul>
+ *     <li>L0 - small direct-mapped table per thread (i.e. per event loop) for the hottest keys,
+ *         read and written only by its own thread, so hits take no locks and allocate nothing</li>
+ *     <li>L1 - shared LRU striped into independent shards, so reordering buffers
+ *         of one shard are contended only by lookups of the keys it owns</li>
+ * </ul>
+ * L1 is the only owner of entries. L0 keeps plain references and drops them
+ * as soon as it sees an entry was discarded from L1.
+ */
+public class ShardedCacheStore implements CacheStore {
+    //every 64th hot set hit is replayed against L1
+    private static final int TOUCH_INTERVAL_MASK = 63;
+
+    private final ConcurrentLinkedHashMap<String, CachedResponse>[] shards;
+    private final int shardMask;
+
+    private final int hotSetSize;
+
+    private final ThreadLocal<HotSet> hotSets = new ThreadLocal<HotSet>() {
+        @Override
+        protected HotSet initialValue() {
+            return new HotSet(hotSetSize);
+        }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedCacheStore(long capacity, int shardsCount, int concurrencyLevel, int hotSetSize,
+                             Weigher<CachedResponse> weigher, EvictionListener<String, CachedResponse> listener) {
+        shardsCount = powerOfTwo(shardsCount);
+
+        this.shards = new ConcurrentLinkedHashMap[shardsCount];
+        this.shardMask = shardsCount - 1;
+        this.hotSetSize = hotSetSize > 0 ? powerOfTwo(hotSetSize) : 0;
+
+        long shardCapacity = Math.max(1, capacity / shardsCount);
+        for (int i = 0; i < shardsCount; i++) {
+            shards[i] = new ConcurrentLinkedHashMap.Builder<String, CachedResponse>()
+                .concurrencyLevel(concurrencyLevel)
+                .maximumWeightedCapacity(shardCapacity)
+                .weigher(weigher)
+                .listener(listener)
+                .build();
+        }
+    }
+
+    @Override
+    public CachedResponse get(String uri) {
+        int hash = spread(uri.hashCode());
+
+        if (hotSetSize == 0) {
+            return shard(hash).get(uri);
+        }
+
+        HotSet hotSet = hotSets.get();
+        CachedResponse res = hotSet.get(uri, hash);
+        if (res != null) {
+            if (hotSet.shouldTouch()) {
+                //let L1 see the hot key once in a while, otherwise it ages out as least recently used
+                shard(hash).get(uri);
+            }
+            return res;
+        }
+
+        res = shard(hash).get(uri);
+        if (res != null) {
+            hotSet.offer(uri, hash, res);
+        }
+        return res;
+    }
+
+    @Override
+    public CachedResponse peek(String uri) {
+        return shard(spread(uri.hashCode())).getQuietly(uri);
+    }
+
+    @Override
+    public CachedResponse put(String uri, CachedResponse res) {
+        return shard(spread(uri.hashCode())).put(uri, res);
+    }
+
+    @Override
+    public CachedResponse remove(String uri) {
+        return shard(spread(uri.hashCode())).remove(uri);
+    }
+
+    @Override
+    public boolean remove(String uri, CachedResponse expected) {
+        return shard(spread(uri.hashCode())).remove(uri, expected);
+    }
+
+    @Override
+    public boolean replace(String uri, CachedResponse expected, CachedResponse res) {
+        return shard(spread(uri.hashCode())).replace(uri, expected, res);
+    }
+
+    @Override
+    public boolean containsKey(String uri) {
+        return shard(spread(uri.hashCode())).containsKey(uri);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (ConcurrentLinkedHashMap<String, CachedResponse> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        long shardCapacity = Math.max(1, capacity / shards.length);
+        for (ConcurrentLinkedHashMap<String, CachedResponse> shard : shards) {
+            shard.setCapacity(shardCapacity);
+        }
+    }
+
+    private ConcurrentLinkedHashMap<String, CachedResponse> shard(int hash) {
+        //upper bits pick the shard, lower bits pick the hot set slot
+        return shards[(hash >>> 16) & shardMask];
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static int powerOfTwo(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    /**
+     * Direct-mapped, thread confined. A collision simply overwrites the slot.
+     * A key is admitted on its second consecutive L1 hit for the slot, so one-off keys
+     * don't keep replacing hot ones (and don't pay for reference stores into the tables).
+     */
+    private static final class HotSet {
+        private final String[] keys;
+        private final CachedResponse[] values;
+        private final int[] candidates;
+        private final int mask;
+
+        private int hits;
+
+        HotSet(int size) {
+            keys = new String[size];
+            values = new CachedResponse[size];
+            candidates = new int[size];
+            mask = size - 1;
+        }
+
+        CachedResponse get(String uri, int hash) {
+            int slot = hash & mask;
+
+            String key = keys[slot];
+            if (key == null || (key != uri && !key.equals(uri))) {
+                return null;
+            }
+
+            CachedResponse res = values[slot];
+            if (res.isDiscarded()) {
+                keys[slot] = null;
+                values[slot] = null;
+                return null;
+            }
+            return res;
+        }
+
+        boolean shouldTouch() {
+            return (++hits & TOUCH_INTERVAL_MASK) == 0;
+        }
+
+        void offer(String uri, int hash, CachedResponse res) {
+            int slot = hash & mask;
+            if (candidates[slot] != hash) {
+                candidates[slot] = hash;
+                return;
+            }
+            keys[slot] = uri;
+            values[slot] = res;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.dpaulenk.webproxy.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of uris, whose responses were recently found uncacheable, so their requests skip the cache lookup.
+ * <p>
+ * Two generations are kept: uris are added to the current one and looked up in both. The current one becomes
+ * the previous one, when it's full or older than the memo time, so a uri is remembered for two generations
+ * at most, and the false positive rate stays bounded however many uris are seen.
+ * A false positive only costs a cache miss.
+ */
+public class UncachableMemo {
+    private static final int HASHES = 4;
+
+    private final int bits;
+    private final int capacity;
+    private final long generationNanos;
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    /**
+     * @param capacity uris per generation, 0 disables the memo
+     */
+    public UncachableMemo(int capacity, long generationMillis) {
+        this.capacity = capacity;
+        //~10 bits per uri give ~1% false positives with 4 hashes
+        this.bits = capacity <= 0 ? 64 : Integer.highestOneBit(Math.max(64, capacity * 10 - 1)) << 1;
+        this.generationNanos = generationMillis * 1000000L;
+
+        current = new Generation(bits);
+        previous = new Generation(bits);
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    public boolean mightContain(String uri) {
+        if (capacity <= 0) {
+            return false;
+        }
+
+        int h1 = uri.hashCode();
+        int h2 = spread(h1);
+        return current.mightContain(h1, h2) || previous.mightContain(h1, h2);
+    }
+
+    public void add(String uri) {
+        if (capacity <= 0) {
+            return;
+        }
+
+        Generation generation = current;
+        if (generation.added.get() >= capacity || System.nanoTime() - generation.birthTime > generationNanos) {
+            generation = rotate(generation);
+        }
+
+        int h1 = uri.hashCode();
+        if (generation.add(h1, spread(h1))) {
+            generation.added.incrementAndGet();
+        }
+    }
+
+    private synchronized Generation rotate(Generation full) {
+        if (current != full) {
+            //rotated by another thread
+            return current;
+        }
+        Generation fresh = new Generation(bits);
+        previous = full;
+        current = fresh;
+        return fresh;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) | 1;
+    }
+
+    private static final class Generation {
+        final AtomicLongArray words;
+        final int mask;
+        final AtomicInteger added = new AtomicInteger();
+        final long birthTime = System.nanoTime();
+
+        Generation(int bits) {
+            words = new AtomicLongArray(bits >>> 6);
+            mask = bits - 1;
+        }
+
+        boolean mightContain(int h1, int h2) {
+            //double hashing: h1 + i * h2
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true, if some bit was not set yet
+         */
+        boolean add(int h1, int h2) {
+            boolean changed = false;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                int index = bit >>> 6;
+                long flag = 1L << bit;
+                long word;
+                while (((word = words.get(index)) & flag) == 0) {
+                    if (words.compareAndSet(index, word, word | flag)) {
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            return changed;
+        }
+    }
+}
@@ -12,7 +12,14 @@ import io.netty.handler.codec.http.HttpObject;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public abstract class AbstractProxyHandler<R extends HttpMessage, S> extends SimpleChannelInboundHandler<Object> {
+    //reasons to pause reading
+    public static final int PAUSED_BY_SPOOL = 1;
+    public static final int PAUSED_BY_THROTTLE = 1 << 1;
+    //until the upstream is connected, at most one read is held back meanwhile
+    public static final int PAUSED_BY_CONNECT = 1 << 2;
 
     protected volatile ChannelHandlerContext ctx;
     protected volatile Channel channel;
@@ -21,6 +28,9 @@ public abstract class AbstractProxyHandler<R extends HttpMessage, S> extends Sim
 
     protected boolean tunneling = false;
 
+    //bits of the reasons reading is paused for, set from both event loops
+    private final AtomicInteger readPauses = new AtomicInteger();
+
     public S getCurrentState() {
         return currentState;
     }
@@ -42,6 +52,10 @@ public abstract class AbstractProxyHandler<R extends HttpMessage, S> extends Sim
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         this.ctx = ctx;
         this.channel = ctx.channel();
+        //paused, before the channel was there
+        if (readPauses.get() != 0) {
+            channel.config().setAutoRead(false);
+        }
         super.channelRegistered(ctx);
     }
 
@@ -66,10 +80,41 @@ public abstract class AbstractProxyHandler<R extends HttpMessage, S> extends Sim
     }
 
     public void stopReading() {
-        channel.config().setAutoRead(false);
+        pauseReading(PAUSED_BY_CONNECT);
     }
 
+    /**
+     * Resumes reading, unless it's paused for one of the other reasons.
+     */
     public void startReading() {
-        channel.config().setAutoRead(true);
+        resumeReading(PAUSED_BY_CONNECT);
+    }
+
+    public void pauseReading(int reason) {
+        for (;;) {
+            int current = readPauses.get();
+            if (readPauses.compareAndSet(current, current | reason)) {
+                break;
+            }
+        }
+        if (channel != null) {
+            channel.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Resumes reading, when no other reason is left.
+     */
+    public void resumeReading(int reason) {
+        for (;;) {
+            int current = readPauses.get();
+            int next = current & ~reason;
+            if (readPauses.compareAndSet(current, next)) {
+                if (next == 0 && current != 0 && channel != null) {
+                    channel.config().setAutoRead(true);
+                }
+                return;
+            }
+        }
     }
 }
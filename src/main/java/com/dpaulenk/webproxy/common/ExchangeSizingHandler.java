@@ -0,0 +1,83 @@
+package com.dpaulenk.webproxy.common;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * Switches the channel's receive buffers to the bulk profile for the body of a large message:
+ * a big Content-Length or a content type, that is usually big (video, archives).
+ * Switches back to the default profile, when the message ends. Tunnels are treated as bulk traffic.
+ * <p>
+ * Goes right after the codec, which cuts content at the read size, so larger reads mean fewer, larger chunks.
+ */
+public class ExchangeSizingHandler extends ChannelInboundHandlerAdapter {
+    private final ReceiveBufferSizer sizer;
+    private final ReceiveBufferSizer.Profile defaultProfile;
+    private final ReceiveBufferSizer.Profile bulkProfile;
+    private final long bulkContentLength;
+    private final String[] bulkContentTypes;
+
+    public ExchangeSizingHandler(ReceiveBufferSizer sizer, ReceiveBufferSizer.Profile defaultProfile,
+                                 ReceiveBufferSizer.Profile bulkProfile, long bulkContentLength,
+                                 String[] bulkContentTypes) {
+        this.sizer = sizer;
+        this.defaultProfile = defaultProfile;
+        this.bulkProfile = bulkProfile;
+        this.bulkContentLength = bulkContentLength;
+        this.bulkContentTypes = bulkContentTypes;
+    }
+
+    /**
+     * Sets up receive buffer sizing of a new channel.
+     * @param tunnel true, if the channel carries a tunnel from the start
+     * @return handler to be added after the codec
+     */
+    public static ExchangeSizingHandler forChannel(Channel ch, WebProxyOptions options, boolean tunnel) {
+        ReceiveBufferSizer.Profile defaultProfile = new ReceiveBufferSizer.Profile(
+            options.recvBufferMin(), options.recvBufferInitial(), options.recvBufferMax());
+        ReceiveBufferSizer.Profile bulkProfile = new ReceiveBufferSizer.Profile(
+            options.bulkRecvBufferMin(), options.bulkRecvBufferInitial(), options.bulkRecvBufferMax());
+
+        ReceiveBufferSizer sizer = new ReceiveBufferSizer(tunnel ? bulkProfile : defaultProfile);
+        ch.config().setRecvByteBufAllocator(sizer);
+
+        return new ExchangeSizingHandler(sizer, defaultProfile, bulkProfile,
+                                         options.bulkContentLength(), options.bulkContentTypes());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpMessage) {
+            sizer.use(isBulk((HttpMessage) msg) ? bulkProfile : defaultProfile);
+        }
+        if (msg instanceof LastHttpContent) {
+            sizer.use(defaultProfile);
+        } else if (msg instanceof ByteBuf) {
+            //the codec is gone, it's a tunnel
+            sizer.use(bulkProfile);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private boolean isBulk(HttpMessage msg) {
+        if (HttpHeaders.getContentLength(msg, -1) >= bulkContentLength) {
+            return true;
+        }
+
+        String contentType = msg.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+        if (contentType != null) {
+            for (String bulkType : bulkContentTypes) {
+                if (contentType.regionMatches(true, 0, bulkType, 0, bulkType.length())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
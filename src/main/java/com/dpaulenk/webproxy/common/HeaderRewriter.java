@@ -0,0 +1,228 @@
+package com.dpaulenk.webproxy.common;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.utils.ProxyUtils;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites headers of proxied messages in place. Everything, that doesn't depend on the message,
+ * is computed once: header names are netty entities with precomputed hashes and encoded bytes,
+ * and the Via value is resolved at startup instead of for every message.
+ * <p>
+ * Configured rules are applied after the standard proxy rewriting, in order:
+ * <pre>
+ *   add Name value      - adds a value, keeping existing ones
+ *   set Name value      - replaces all values
+ *   remove Name         - removes the header
+ *   rename Name NewName - moves all values to the new name
+ * </pre>
+ */
+public class HeaderRewriter {
+    private static final Logger logger = Logger.getLogger(HeaderRewriter.class);
+
+    /**
+     * see: http://tools.ietf.org/html/rfc2616#section-13.5.1
+     */
+    private static final CharSequence[] HOP_HEADERS = entities(ProxyUtils.HOP_HEADERS);
+
+    private static final CharSequence CONNECTION = HttpHeaders.newEntity(HttpHeaders.Names.CONNECTION);
+    private static final CharSequence PROXY_CONNECTION = HttpHeaders.newEntity(ProxyUtils.PROXY_CONNECTION);
+    private static final CharSequence VIA = HttpHeaders.newEntity(HttpHeaders.Names.VIA);
+    private static final CharSequence TRANSFER_ENCODING = HttpHeaders.newEntity(HttpHeaders.Names.TRANSFER_ENCODING);
+
+    private static final CharSequence KEEP_ALIVE = HttpHeaders.newEntity(HttpHeaders.Values.KEEP_ALIVE);
+    private static final CharSequence CLOSE = HttpHeaders.newEntity(HttpHeaders.Values.CLOSE);
+    private static final CharSequence CHUNKED = HttpHeaders.newEntity(HttpHeaders.Values.CHUNKED);
+
+    private static final int ADD = 0;
+    private static final int SET = 1;
+    private static final int REMOVE = 2;
+    private static final int RENAME = 3;
+
+    private final CharSequence via;
+    private final String viaSuffix;
+    //purge tags of the origin, not meant for clients; null, if not configured
+    private final CharSequence surrogateKeyHeader;
+
+    private final Rule[] requestRules;
+    private final Rule[] responseRules;
+
+    public HeaderRewriter(WebProxyOptions options) {
+        String viaValue = "1.1 " + ProxyUtils.getLocalHostName();
+        via = HttpHeaders.newEntity(viaValue);
+        viaSuffix = ", " + viaValue;
+        surrogateKeyHeader = options.surrogateKeyHeader().isEmpty()
+            ? null : HttpHeaders.newEntity(options.surrogateKeyHeader());
+
+        requestRules = rules(options.requestHeaderRules());
+        responseRules = rules(options.responseHeaderRules());
+    }
+
+    public void rewriteRequest(HttpRequest req) {
+        rewriteRequest(req, false);
+    }
+
+    /**
+     * @param toParent the request goes to a parent proxy, so the uri is kept absolute
+     */
+    public void rewriteRequest(HttpRequest req, boolean toParent) {
+        req.setUri(toParent ? ProxyUtils.getAbsoluteUri(req) : ProxyUtils.getUriWithoutHostAndPort(req));
+
+        HttpHeaders headers = req.headers();
+
+        boolean chunked = HttpHeaders.isTransferEncodingChunked(req);
+        removeHopHeaders(headers);
+        rechunk(headers, chunked);
+
+        //clients use Proxy-Connection header instead of Connection, when using proxy
+        String proxyConnection = headers.get(PROXY_CONNECTION);
+        if (proxyConnection != null) {
+            headers.set(CONNECTION, proxyConnection);
+            headers.remove(PROXY_CONNECTION);
+        }
+
+        addVia(headers);
+
+        apply(requestRules, headers);
+    }
+
+    public void rewriteResponse(HttpResponse res) {
+        rewriteResponse(res, false);
+    }
+
+    /**
+     * @param cached the response goes through the cache, that reads the surrogate keys and strips them itself
+     */
+    public void rewriteResponse(HttpResponse res, boolean cached) {
+        boolean keepAlive = HttpHeaders.isKeepAlive(res);
+
+        HttpHeaders headers = res.headers();
+
+        boolean chunked = HttpHeaders.isTransferEncodingChunked(res);
+        removeHopHeaders(headers);
+        rechunk(headers, chunked);
+        addVia(headers);
+
+        headers.set(CONNECTION, keepAlive ? KEEP_ALIVE : CLOSE);
+        if (!cached && surrogateKeyHeader != null) {
+            headers.remove(surrogateKeyHeader);
+        }
+
+        apply(responseRules, headers);
+    }
+
+    /**
+     * For responses generated by the proxy itself.
+     */
+    public void addVia(HttpMessage msg) {
+        msg.headers().set(VIA, via);
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc2616#section-14.45
+     */
+    private void addVia(HttpHeaders headers) {
+        String received = headers.get(VIA);
+        if (received == null) {
+            headers.set(VIA, via);
+        } else {
+            headers.set(VIA, received + viaSuffix);
+        }
+    }
+
+    private static void removeHopHeaders(HttpHeaders headers) {
+        //headers listed in Connection are hop-by-hop too
+        String connection = headers.get(CONNECTION);
+        if (connection != null &&
+            !HttpHeaders.Values.KEEP_ALIVE.equalsIgnoreCase(connection) &&
+            !HttpHeaders.Values.CLOSE.equalsIgnoreCase(connection)) {
+            for (String token : connection.split(",")) {
+                headers.remove(token.trim());
+            }
+        }
+
+        for (CharSequence hopHeader : HOP_HEADERS) {
+            headers.remove(hopHeader);
+        }
+    }
+
+    /**
+     * Transfer-Encoding is hop-by-hop, but the body is framed again by our encoder,
+     * which chunks it only if the message says so. Without it, a body of unknown length never ends.
+     */
+    private static void rechunk(HttpHeaders headers, boolean chunked) {
+        if (chunked) {
+            headers.set(TRANSFER_ENCODING, CHUNKED);
+        }
+    }
+
+    private static void apply(Rule[] rules, HttpHeaders headers) {
+        for (Rule rule : rules) {
+            switch (rule.op) {
+                case ADD:
+                    headers.add(rule.name, rule.value);
+                    break;
+                case SET:
+                    headers.set(rule.name, rule.value);
+                    break;
+                case REMOVE:
+                    headers.remove(rule.name);
+                    break;
+                case RENAME:
+                    if (headers.contains(rule.name)) {
+                        List<String> values = headers.getAll(rule.name);
+                        headers.remove(rule.name);
+                        headers.add(rule.value, values);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static Rule[] rules(String[] config) {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String ruleConfig : config) {
+            String[] parts = ruleConfig.trim().split("\\s+", 3);
+
+            String op = parts[0].toLowerCase();
+            if (("add".equals(op) || "set".equals(op)) && parts.length == 3) {
+                rules.add(new Rule("add".equals(op) ? ADD : SET, parts[1], parts[2]));
+            } else if ("remove".equals(op) && parts.length == 2) {
+                rules.add(new Rule(REMOVE, parts[1], null));
+            } else if ("rename".equals(op) && parts.length == 3) {
+                rules.add(new Rule(RENAME, parts[1], parts[2].trim()));
+            } else {
+                logger.error("Ignoring malformed header rule: " + ruleConfig);
+            }
+        }
+        return rules.toArray(new Rule[rules.size()]);
+    }
+
+    private static CharSequence[] entities(String[] names) {
+        CharSequence[] entities = new CharSequence[names.length];
+        for (int i = 0; i < names.length; i++) {
+            entities[i] = HttpHeaders.newEntity(names[i]);
+        }
+        return entities;
+    }
+
+    private static final class Rule {
+        final int op;
+        final CharSequence name;
+        //header value, or the new name for RENAME
+        final CharSequence value;
+
+        Rule(int op, String name, String value) {
+            this.op = op;
+            this.name = HttpHeaders.newEntity(name);
+            this.value = value == null ? null : HttpHeaders.newEntity(value);
+        }
+    }
+}
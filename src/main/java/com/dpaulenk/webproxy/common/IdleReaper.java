@@ -0,0 +1,199 @@
+package com.dpaulenk.webproxy.common;
+
+import com.dpaulenk.webproxy.metrics.StripedCounter;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes a channel, that had no reads, no writes, or neither for too long.
+ * <p>
+ * Unlike netty's IdleStateHandler, checks run on a shared timer wheel rather than as event loop tasks,
+ * and reads and writes only store a timestamp. A check, that finds the channel active, is rescheduled
+ * for the earliest time it could become idle. Timeouts are switched, when the channel changes its role,
+ * e.g. from a keep-alive connection to a tunnel, or suspended, while an exchange is waiting for the origin.
+ * <p>
+ * Checks are never cancelled, a replaced one finds it's no longer current and does nothing: cancelling
+ * on the wheel of netty 4.0.21 can lose timeouts, that other threads add at the same time. Checks are at most
+ * MAX_CHECK_NANOS apart, so those of closed channels don't hold on to them for long.
+ */
+public class IdleReaper extends ChannelDuplexHandler implements TimerTask {
+    private static final Logger logger = Logger.getLogger(IdleReaper.class);
+
+    private static final long MAX_CHECK_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Timeouts of a channel role, 0 disables a timeout.
+     */
+    public static final class Timeouts {
+        final long readNanos;
+        final long writeNanos;
+        final long idleNanos;
+        //incremented, when a channel is closed by these timeouts
+        final StripedCounter reaped;
+
+        public Timeouts(int readMillis, int writeMillis, int idleMillis, StripedCounter reaped) {
+            this.readNanos = TimeUnit.MILLISECONDS.toNanos(readMillis);
+            this.writeNanos = TimeUnit.MILLISECONDS.toNanos(writeMillis);
+            this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            this.reaped = reaped;
+        }
+
+        boolean isEnabled() {
+            return readNanos > 0 || writeNanos > 0 || idleNanos > 0;
+        }
+    }
+
+    private final Timer timer;
+
+    private volatile ChannelHandlerContext ctx;
+    private volatile Timeouts timeouts;
+    private volatile boolean suspended;
+
+    private volatile long lastRead;
+    private volatile long lastWrite;
+
+    private Timeout check;
+
+    public IdleReaper(Timer timer, Timeouts timeouts) {
+        this.timer = timer;
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Applies new timeouts, counting from now.
+     */
+    public void use(Timeouts timeouts) {
+        this.timeouts = timeouts;
+        touch();
+        reschedule();
+    }
+
+    /**
+     * Stops reaping, until {@link #resume()}, e.g. while the other side is responsible for the exchange.
+     */
+    public void suspend() {
+        suspended = true;
+    }
+
+    public void resume() {
+        touch();
+        suspended = false;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        touch();
+        reschedule();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancel();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastRead = System.nanoTime();
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastWrite = System.nanoTime();
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        ChannelHandlerContext ctx;
+        synchronized (this) {
+            ctx = this.ctx;
+            if (timeout != check || ctx == null || !ctx.channel().isOpen()) {
+                return;
+            }
+        }
+
+        Timeouts timeouts = this.timeouts;
+        if (suspended || !timeouts.isEnabled()) {
+            schedule(timeouts, timeouts.isEnabled() ? minTimeout(timeouts) : 0);
+            return;
+        }
+
+        long now = System.nanoTime();
+        long read = lastRead;
+        long write = lastWrite;
+
+        long next = Long.MAX_VALUE;
+        if (timeouts.readNanos > 0) {
+            next = Math.min(next, timeouts.readNanos - (now - read));
+        }
+        if (timeouts.writeNanos > 0) {
+            next = Math.min(next, timeouts.writeNanos - (now - write));
+        }
+        if (timeouts.idleNanos > 0) {
+            next = Math.min(next, timeouts.idleNanos - (now - Math.max(read, write)));
+        }
+
+        if (next <= 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Closing idle connection " + ctx.channel());
+            }
+            timeouts.reaped.increment();
+            ctx.channel().close();
+            return;
+        }
+
+        schedule(timeouts, next);
+    }
+
+    private void touch() {
+        long now = System.nanoTime();
+        lastRead = now;
+        lastWrite = now;
+    }
+
+    private synchronized void reschedule() {
+        check = null;
+        Timeouts timeouts = this.timeouts;
+        if (ctx != null && timeouts.isEnabled()) {
+            check = newCheck(minTimeout(timeouts));
+        }
+    }
+
+    private synchronized void schedule(Timeouts timeouts, long delayNanos) {
+        //disabled timeouts wait for use() to start the checks again, new ones are scheduled by use() itself
+        if (ctx != null && delayNanos > 0 && timeouts == this.timeouts) {
+            check = newCheck(delayNanos);
+        }
+    }
+
+    private Timeout newCheck(long delayNanos) {
+        return timer.newTimeout(this, Math.min(delayNanos, MAX_CHECK_NANOS), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void cancel() {
+        check = null;
+        ctx = null;
+    }
+
+    private static long minTimeout(Timeouts timeouts) {
+        return minEnabled(minEnabled(timeouts.readNanos, timeouts.writeNanos), timeouts.idleNanos);
+    }
+
+    private static long minEnabled(long a, long b) {
+        if (a <= 0) {
+            return b;
+        }
+        return b <= 0 ? a : Math.min(a, b);
+    }
+}
@@ -0,0 +1,80 @@
+package com.dpaulenk.webproxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+
+/**
+ * Receive buffer sizing of a single channel: grows the buffer when reads fill it,
+ * shrinks it after two reads in a row use less than half of it, like netty's adaptive allocator.
+ * <p>
+ * Unlike netty's, the bounds can be switched while the channel is open: a channel caches the handle
+ * it got first, so the allocator is also the handle and a new instance is set for every channel.
+ */
+public final class ReceiveBufferSizer implements RecvByteBufAllocator, RecvByteBufAllocator.Handle {
+
+    /**
+     * Bounds for a kind of traffic, in bytes.
+     */
+    public static final class Profile {
+        final int min;
+        final int initial;
+        final int max;
+
+        public Profile(int min, int initial, int max) {
+            this.min = min;
+            this.initial = Math.max(min, Math.min(initial, max));
+            this.max = max;
+        }
+    }
+
+    private Profile profile;
+    private int next;
+    private boolean decreaseNow;
+
+    public ReceiveBufferSizer(Profile profile) {
+        use(profile);
+    }
+
+    /**
+     * Starts from the profile's initial size, unless it's already active.
+     */
+    public void use(Profile profile) {
+        if (this.profile == profile) {
+            return;
+        }
+        this.profile = profile;
+        next = profile.initial;
+        decreaseNow = false;
+    }
+
+    @Override
+    public Handle newHandle() {
+        return this;
+    }
+
+    @Override
+    public ByteBuf allocate(ByteBufAllocator alloc) {
+        return alloc.ioBuffer(next);
+    }
+
+    @Override
+    public int guess() {
+        return next;
+    }
+
+    @Override
+    public void record(int actualReadBytes) {
+        if (actualReadBytes <= next >>> 1) {
+            if (decreaseNow) {
+                next = Math.max(next >>> 1, profile.min);
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else if (actualReadBytes >= next) {
+            next = Math.min(next << 1, profile.max);
+            decreaseNow = false;
+        }
+    }
+}
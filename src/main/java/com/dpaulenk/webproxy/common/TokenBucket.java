@@ -0,0 +1,65 @@
+package com.dpaulenk.webproxy.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket, that is refilled lazily, when tokens are taken. Taking more than there is
+ * leaves a debt, that is paid by waiting, so a large message is never split or held back.
+ * <p>
+ * Rate and burst are passed with every call, so new options apply at once. Not thread-safe.
+ */
+public final class TokenBucket {
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double burst, long now) {
+        this.tokens = burst;
+        this.lastRefill = now;
+    }
+
+    /**
+     * @return nanos until the bucket is out of debt, 0 if it isn't in debt or the rate is 0, i.e. unlimited
+     */
+    public long take(double amount, double ratePerSecond, double burst, long now) {
+        if (ratePerSecond <= 0) {
+            return 0;
+        }
+        refill(ratePerSecond, burst, now);
+        tokens -= amount;
+        return debtNanos(ratePerSecond);
+    }
+
+    public long waitNanos(double ratePerSecond, double burst, long now) {
+        if (ratePerSecond <= 0) {
+            return 0;
+        }
+        refill(ratePerSecond, burst, now);
+        return debtNanos(ratePerSecond);
+    }
+
+    /**
+     * Whether the bucket has refilled to the burst, an unlimited one always has.
+     */
+    public boolean isFull(double ratePerSecond, double burst, long now) {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        refill(ratePerSecond, burst, now);
+        return tokens >= burst;
+    }
+
+    private void refill(double ratePerSecond, double burst, long now) {
+        //callers may pass a time taken before the last one, it's not worth a refill
+        if (now <= lastRefill) {
+            return;
+        }
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+
+    private long debtNanos(double ratePerSecond) {
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * NANOS_PER_SECOND / ratePerSecond);
+    }
+}
@@ -0,0 +1,306 @@
+package com.dpaulenk.webproxy.common;
+
+import com.dpaulenk.webproxy.metrics.ProxyMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Spools encoded writes for a slow peer to a temp file, so the other side is read at full speed,
+ * instead of piling its data up in memory: responses for slow clients and request bodies for slow origins.
+ * <p>
+ * Writes go straight to the socket, until more than the memory threshold of them is not sent yet.
+ * From then on they are appended to the file and sent from it with zero-copy file regions, one at a time,
+ * until the peer has caught up. The file is then truncated and kept for the next time, until the channel closes.
+ * Write promises complete, when their bytes are sent, so close-on-flush still waits for the whole response.
+ * When the file reaches its size limit, or all spools together reach theirs, {@link Event#FULL} is fired,
+ * {@link Event#DRAINED} once the file is sent. The other side is expected to stop reading in between.
+ */
+public class WriteSpooler extends ChannelDuplexHandler {
+    private static final Logger logger = Logger.getLogger(WriteSpooler.class);
+
+    //bytes sent from the file per region
+    private static final long REGION_SIZE = 1024 * 1024;
+
+    public enum Event {
+        FULL, DRAINED
+    }
+
+    private final int memoryThreshold;
+    private final long maxFileSize;
+    private final long maxTotalSize;
+    private final File directory;
+    private final ProxyMetrics metrics;
+
+    //bytes passed to the socket, not sent yet. Not the outbound buffer's pending bytes,
+    //those include writes from the other side's event loop, that haven't reached this handler
+    private long unsent;
+
+    //null, until the first spooling
+    private File path;
+    private RandomAccessFile file;
+
+    private boolean spooling;
+    private long writePosition;
+    private long sendPosition;
+    private boolean sending;
+    private boolean full;
+
+    private final Queue<SpooledWrite> spooledWrites = new ArrayDeque<SpooledWrite>();
+
+    /**
+     * @param maxTotalSize limit for all spools together
+     * @param directory null for the default temp directory
+     */
+    public WriteSpooler(int memoryThreshold, long maxFileSize, long maxTotalSize, File directory,
+                        ProxyMetrics metrics) {
+        this.memoryThreshold = memoryThreshold;
+        this.maxFileSize = maxFileSize;
+        this.maxTotalSize = maxTotalSize;
+        this.directory = directory;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        //everything below the codec is a ByteBuf
+        if (!(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        ByteBuf buf = (ByteBuf) msg;
+        if (!spooling && (memoryThreshold <= 0 || unsent + buf.readableBytes() <= memoryThreshold)) {
+            writeUnspooled(ctx, buf, promise);
+            return;
+        }
+
+        try {
+            if (!spooling) {
+                startSpooling(ctx);
+            }
+
+            int length = buf.readableBytes();
+            FileChannel channel = file.getChannel();
+            while (buf.isReadable()) {
+                buf.readBytes(channel, buf.readableBytes());
+            }
+            writePosition += length;
+            metrics.spooledBytes.add(length);
+
+            spooledWrites.add(new SpooledWrite(writePosition, promise));
+        } catch (IOException e) {
+            logger.warn("Error spooling writes to " + path + ": ", e);
+            promise.setFailure(e);
+            ctx.close();
+            return;
+        } finally {
+            buf.release();
+        }
+
+        if (!full && (writePosition >= maxFileSize || metrics.spooledBytes.get() >= maxTotalSize)) {
+            full = true;
+            ctx.fireUserEventTriggered(Event.FULL);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (spooling) {
+            sendNext(ctx);
+        }
+        ctx.flush();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failSpooledWrites(new ClosedChannelException());
+        close();
+        super.channelInactive(ctx);
+    }
+
+    private void writeUnspooled(ChannelHandlerContext ctx, ByteBuf buf, ChannelPromise promise) {
+        if (memoryThreshold <= 0) {
+            ctx.write(buf, promise);
+            return;
+        }
+
+        final int length = buf.readableBytes();
+        unsent += length;
+        if (promise == ctx.voidPromise()) {
+            //the codec writes all parts of a message but the last one with the void promise
+            promise = ctx.newPromise();
+        }
+        promise.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                unsent -= length;
+            }
+        });
+        ctx.write(buf, promise);
+    }
+
+    private void sendNext(final ChannelHandlerContext ctx) {
+        if (sending || !spooling) {
+            return;
+        }
+
+        if (sendPosition == writePosition) {
+            //client has caught up
+            stopSpooling();
+            if (full) {
+                full = false;
+                ctx.fireUserEventTriggered(Event.DRAINED);
+            }
+            return;
+        }
+
+        long count = Math.min(writePosition - sendPosition, REGION_SIZE);
+        final SpoolRegion region = new SpoolRegion(file.getChannel(), sendPosition, count);
+        sendPosition += count;
+        sending = true;
+
+        ctx.writeAndFlush(region).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                sending = false;
+                metrics.spooledBytes.add(-region.count());
+                if (!future.isSuccess()) {
+                    failSpooledWrites(future.cause());
+                    close();
+                    return;
+                }
+
+                long sent = region.position() + region.count();
+                while (!spooledWrites.isEmpty() && spooledWrites.peek().end <= sent) {
+                    spooledWrites.poll().promise.trySuccess();
+                }
+                sendNext(ctx);
+            }
+        });
+    }
+
+    private void startSpooling(ChannelHandlerContext ctx) throws IOException {
+        if (file == null) {
+            path = File.createTempFile("webproxy-spool-", ".tmp", directory);
+            file = new RandomAccessFile(path, "rw");
+        }
+        spooling = true;
+        metrics.spools.increment();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Spooling writes to " + ctx.channel().remoteAddress() + " in " + path);
+        }
+    }
+
+    private void stopSpooling() {
+        spooling = false;
+        writePosition = 0;
+        sendPosition = 0;
+        try {
+            file.setLength(0);
+        } catch (IOException e) {
+            logger.warn("Error truncating spool " + path + ": ", e);
+        }
+    }
+
+    private void close() {
+        if (file == null) {
+            return;
+        }
+
+        metrics.spooledBytes.add(-(writePosition - sendPosition));
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.warn("Error closing spool " + path + ": ", e);
+        }
+        if (!path.delete()) {
+            logger.warn("Can't delete spool " + path);
+        }
+
+        file = null;
+        path = null;
+        spooling = false;
+        writePosition = 0;
+        sendPosition = 0;
+    }
+
+    private void failSpooledWrites(Throwable cause) {
+        SpooledWrite write;
+        while ((write = spooledWrites.poll()) != null) {
+            write.promise.tryFailure(cause);
+        }
+    }
+
+    private static final class SpooledWrite {
+        //file position, after which the write is sent
+        final long end;
+        final ChannelPromise promise;
+
+        SpooledWrite(long end, ChannelPromise promise) {
+            this.end = end;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * Region of the spool file, which stays open for the next ones.
+     */
+    private static final class SpoolRegion extends AbstractReferenceCounted implements FileRegion {
+        private final FileChannel file;
+        private final long position;
+        private final long count;
+        private long transfered;
+
+        SpoolRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public long transfered() {
+            return transfered;
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long position) throws IOException {
+            long written = file.transferTo(this.position + position, count - position, target);
+            if (written > 0) {
+                transfered += written;
+            }
+            return written;
+        }
+
+        @Override
+        protected void deallocate() {
+            //the file is closed by the spooler
+        }
+    }
+}
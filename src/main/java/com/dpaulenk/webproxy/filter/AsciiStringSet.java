@@ -0,0 +1,131 @@
+package com.dpaulenk.webproxy.filter;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing set of lowercase ASCII strings, packed into a single byte pool,
+ * so millions of rules cost a few arrays instead of millions of String objects.
+ * <p>
+ * The hash is chosen by the caller, which lets it roll the hash over a region of a longer string
+ * one char at a time and probe every candidate length without substrings.
+ * The set is filled once and then only read, so it can be shared by all event loops.
+ */
+final class AsciiStringSet {
+    private byte[] pool = new byte[1024];
+    private int poolSize;
+
+    //string i occupies pool[offsets[i], offsets[i + 1])
+    private int[] offsets = new int[65];
+    private int count;
+
+    //slot -> string index + 1, 0 for an empty slot
+    private int[] slots = new int[64];
+    private int[] hashes = new int[64];
+    private int mask = 63;
+
+    static int lower(char c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * @param s lowercase ASCII string
+     * @return false, if it is already present
+     */
+    boolean add(String s, int hash) {
+        int len = s.length();
+        if (contains(s, 0, len, hash)) {
+            return false;
+        }
+
+        if ((count + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+
+        if (poolSize + len > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + len));
+        }
+        for (int i = 0; i < len; i++) {
+            pool[poolSize + i] = (byte) s.charAt(i);
+        }
+        poolSize += len;
+
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        count++;
+        offsets[count] = poolSize;
+
+        insert(count - 1, hash);
+        return true;
+    }
+
+    /**
+     * Compares s[start, end) ignoring case of its ASCII letters.
+     */
+    boolean contains(CharSequence s, int start, int end, int hash) {
+        int len = end - start;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if (index == 0) {
+                return false;
+            }
+            if (hashes[slot] == hash && matches(index - 1, s, start, len)) {
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Drops the spare capacity of the pool, once all strings are added.
+     */
+    void trim() {
+        pool = Arrays.copyOf(pool, poolSize);
+        offsets = Arrays.copyOf(offsets, count + 1);
+    }
+
+    private boolean matches(int index, CharSequence s, int start, int len) {
+        int offset = offsets[index];
+        if (offsets[index + 1] - offset != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (pool[offset + i] != lower(s.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int index, int hash) {
+        int slot = spread(hash) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index + 1;
+        hashes[slot] = hash;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldSlots = slots;
+        int[] oldHashes = hashes;
+
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                insert(oldSlots[i] - 1, oldHashes[i]);
+            }
+        }
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
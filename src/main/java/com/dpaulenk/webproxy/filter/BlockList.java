@@ -0,0 +1,314 @@
+package com.dpaulenk.webproxy.filter;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable set of blocking rules, checked once per request without allocations:
+ * <ul>
+ *     <li>domains - block the domain and all its subdomains. Host suffixes are probed at every label boundary,
+ *         hashing the host right to left, i.e. label by label in reversed order</li>
+ *     <li>uri prefixes - "example.com/ads/" blocks every uri, that starts with it, whatever the scheme.
+ *         The uri is hashed left to right and probed only at lengths, that some rule has</li>
+ *     <li>regular expressions - matched against the whole uri, all combined into a single pattern</li>
+ * </ul>
+ * Rule files are read line by line:
+ * <pre>
+ *   # comment
+ *   ads.example.com              - domain
+ *   0.0.0.0 tracker.example.com  - domain, hosts file style
+ *   example.com/banners/         - uri prefix
+ *   re:.*\.example\.org/track.*  - regular expression
+ * </pre>
+ * Reloading builds a new instance and swaps the reference, requests in flight keep using the old one.
+ */
+public final class BlockList {
+    private static final Logger logger = Logger.getLogger(BlockList.class);
+
+    public static final BlockList EMPTY = new BlockList(new AsciiStringSet(), new AsciiStringSet(), new long[1], 0, null, 0);
+
+    private static final String REGEX_PREFIX = "re:";
+
+    private final AsciiStringSet domains;
+
+    private final AsciiStringSet prefixes;
+    //bit N is set, if there is a prefix of length N
+    private final long[] prefixLengths;
+    private final int maxPrefixLength;
+
+    //null, if there are no patterns
+    private final Pattern pattern;
+    private final int patternsCount;
+
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>() {
+        @Override
+        protected Matcher initialValue() {
+            return pattern.matcher("");
+        }
+    };
+
+    private BlockList(AsciiStringSet domains, AsciiStringSet prefixes, long[] prefixLengths, int maxPrefixLength,
+                      Pattern pattern, int patternsCount) {
+        this.domains = domains;
+        this.prefixes = prefixes;
+        this.prefixLengths = prefixLengths;
+        this.maxPrefixLength = maxPrefixLength;
+        this.pattern = pattern;
+        this.patternsCount = patternsCount;
+    }
+
+    /**
+     * @param files rule files, unreadable ones are skipped
+     * @param patterns regular expressions from the options, for compatibility with the old black list
+     */
+    public static BlockList load(String[] files, String[] patterns) {
+        Builder builder = new Builder();
+
+        for (String pattern : patterns) {
+            builder.addPattern(pattern);
+        }
+
+        for (String file : files) {
+            long start = System.currentTimeMillis();
+            try {
+                int rules = builder.addFile(file);
+                logger.info("Loaded " + rules + " blocking rules from " + file +
+                            " in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                logger.error("Error reading block list " + file + ": ", e);
+            }
+        }
+
+        return builder.build();
+    }
+
+    public boolean isEmpty() {
+        return domains.size() == 0 && prefixes.size() == 0 && pattern == null;
+    }
+
+    /**
+     * @param hostHeader used, when the uri has no host, e.g. for transparent proxying
+     */
+    public boolean isBlocked(String uri, String hostHeader) {
+        int schemeEnd = uri.indexOf("://");
+        int start = schemeEnd == -1 ? 0 : schemeEnd + 3;
+
+        if (domains.size() > 0) {
+            if (schemeEnd != -1 || !uri.startsWith("/")) {
+                //absolute uri or CONNECT's host:port
+                if (isBlockedHost(uri, start, hostEnd(uri, start))) {
+                    return true;
+                }
+            } else if (hostHeader != null && isBlockedHost(hostHeader, 0, hostEnd(hostHeader, 0))) {
+                return true;
+            }
+        }
+
+        if (prefixes.size() > 0 && isBlockedPrefix(uri, start)) {
+            return true;
+        }
+
+        return pattern != null && matchers.get().reset(uri).matches();
+    }
+
+    @Override
+    public String toString() {
+        return "domains " + domains.size() + "\n" +
+               "prefixes " + prefixes.size() + "\n" +
+               "patterns " + patternsCount + "\n";
+    }
+
+    private boolean isBlockedHost(String s, int start, int end) {
+        //fully qualified "example.com."
+        if (end > start && s.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        int hash = 0;
+        for (int i = end - 1; i >= start; i--) {
+            hash = hash * 31 + AsciiStringSet.lower(s.charAt(i));
+            if ((i == start || s.charAt(i - 1) == '.') && domains.contains(s, i, end, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBlockedPrefix(String uri, int start) {
+        int end = Math.min(uri.length(), start + maxPrefixLength);
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + AsciiStringSet.lower(uri.charAt(i));
+            int len = i - start + 1;
+            if ((prefixLengths[len >>> 6] & (1L << len)) != 0 && prefixes.contains(uri, start, i + 1, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Host ends at the path, port or query, user info is not expected in proxied uris.
+     */
+    private static int hostEnd(String s, int start) {
+        int len = s.length();
+        for (int i = start; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '/' || c == ':' || c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    private static int reversedHash(String s) {
+        int hash = 0;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            hash = hash * 31 + s.charAt(i);
+        }
+        return hash;
+    }
+
+    private static int hash(String s) {
+        int hash = 0;
+        for (int i = 0; i < s.length(); i++) {
+            hash = hash * 31 + s.charAt(i);
+        }
+        return hash;
+    }
+
+    private static final class Builder {
+        final AsciiStringSet domains = new AsciiStringSet();
+        final AsciiStringSet prefixes = new AsciiStringSet();
+        long[] prefixLengths = new long[1];
+        int maxPrefixLength;
+
+        final List<String> patterns = new ArrayList<String>();
+
+        int nonAscii;
+
+        int addFile(String file) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                int rules = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (addRule(line.trim())) {
+                        rules++;
+                    }
+                }
+                return rules;
+            } finally {
+                reader.close();
+            }
+        }
+
+        boolean addRule(String rule) {
+            if (rule.isEmpty() || rule.charAt(0) == '#') {
+                return false;
+            }
+
+            if (rule.startsWith(REGEX_PREFIX)) {
+                return addPattern(rule.substring(REGEX_PREFIX.length()));
+            }
+
+            //hosts file: "0.0.0.0 example.com"
+            int space = rule.indexOf(' ');
+            if (space == -1) {
+                space = rule.indexOf('\t');
+            }
+            if (space != -1) {
+                rule = rule.substring(space + 1).trim();
+            }
+
+            rule = rule.toLowerCase(Locale.ROOT);
+            if (!isAscii(rule)) {
+                //domains are expected in punycode
+                nonAscii++;
+                return false;
+            }
+
+            int schemeEnd = rule.indexOf("://");
+            if (schemeEnd != -1) {
+                rule = rule.substring(schemeEnd + 3);
+            }
+
+            if (rule.indexOf('/') == -1) {
+                if (rule.endsWith(".")) {
+                    rule = rule.substring(0, rule.length() - 1);
+                }
+                return !rule.isEmpty() && domains.add(rule, reversedHash(rule));
+            }
+
+            return addPrefix(rule);
+        }
+
+        boolean addPrefix(String prefix) {
+            int len = prefix.length();
+            if (len >> 6 >= prefixLengths.length) {
+                long[] grown = new long[(len >> 6) + 1];
+                System.arraycopy(prefixLengths, 0, grown, 0, prefixLengths.length);
+                prefixLengths = grown;
+            }
+            prefixLengths[len >>> 6] |= 1L << len;
+            maxPrefixLength = Math.max(maxPrefixLength, len);
+
+            return prefixes.add(prefix, hash(prefix));
+        }
+
+        boolean addPattern(String pattern) {
+            try {
+                Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                //ignore mailformed patterns
+                logger.warn("Ignoring malformed blocking pattern: " + pattern);
+                return false;
+            }
+            patterns.add(pattern);
+            return true;
+        }
+
+        BlockList build() {
+            if (nonAscii > 0) {
+                logger.warn("Ignored " + nonAscii + " blocking rules with non-ASCII characters");
+            }
+
+            domains.trim();
+            prefixes.trim();
+
+            Pattern combined = null;
+            if (!patterns.isEmpty()) {
+                StringBuilder sb = new StringBuilder();
+                for (String pattern : patterns) {
+                    if (sb.length() > 0) {
+                        sb.append('|');
+                    }
+                    sb.append("(?:").append(pattern).append(')');
+                }
+                combined = Pattern.compile(sb.toString());
+            }
+
+            return new BlockList(domains, prefixes, prefixLengths, maxPrefixLength, combined, patterns.size());
+        }
+
+        private static boolean isAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) > 127) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
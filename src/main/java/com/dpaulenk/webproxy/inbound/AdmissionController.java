@@ -0,0 +1,233 @@
+package com.dpaulenk.webproxy.inbound;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.metrics.StripedCounter;
+import io.netty.channel.Channel;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits exchanges, that go to origins, while the event loops fall behind.
+ * <p>
+ * Every probe period a task is submitted to each event loop, the time it waits in the queue is the loop's
+ * scheduling lag. The limit of exchanges in flight follows AIMD: it's cut by a percentage on every probe,
+ * that finds the slowest loop lagging more than the target or with too many pending tasks, and grows by
+ * a step, while the loops keep up and the exchanges in flight come close to the limit. Exchanges over the
+ * limit are answered with 503 right away, rather than queueing behind everyone else.
+ * <p>
+ * Cache hits are served before the admission check, so they are neither counted nor rejected.
+ * When the lag gets much worse, accepting new connections is paused, they wait in the listen backlog.
+ */
+public class AdmissionController implements TimerTask {
+    private static final Logger logger = Logger.getLogger(AdmissionController.class);
+
+    private final WebProxyServer proxyServer;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final StripedCounter rejected = new StripedCounter();
+
+    private volatile int limit;
+    //smoothed lag and pending tasks of the slowest loop, as of the last probe
+    private volatile long lagNanos;
+    private volatile int pendingTasks;
+    private volatile boolean acceptPaused;
+    private volatile boolean overloaded;
+
+    private final List<Probe> probes = new ArrayList<Probe>();
+    private Timer timer;
+    private Channel serverChannel;
+    private long periodNanos;
+    private volatile boolean stopped;
+
+    public AdmissionController(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+        this.limit = proxyServer.options().admissionInitialLimit();
+    }
+
+    /**
+     * Starts probing the loops of these groups; the server channel is paused, when they are far behind.
+     */
+    public synchronized void start(Timer timer, Channel serverChannel, EventExecutorGroup... groups) {
+        this.timer = timer;
+        this.serverChannel = serverChannel;
+        for (EventExecutorGroup group : groups) {
+            for (EventExecutor loop : group) {
+                probes.add(new Probe(loop));
+            }
+        }
+        periodNanos = TimeUnit.MILLISECONDS.toNanos(proxyServer.options().admissionProbeMillis());
+        timer.newTimeout(this, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Takes a slot for an exchange, every successful call is paired with {@link #release(int)}.
+     */
+    public boolean tryAdmit() {
+        if (!proxyServer.options().admissionControl()) {
+            //still counted, so the limit has a sensible starting point, when turned on
+            inFlight.incrementAndGet();
+            return true;
+        }
+
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(int exchanges) {
+        inFlight.addAndGet(-exchanges);
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (stopped) {
+            return;
+        }
+
+        try {
+            long now = System.nanoTime();
+            long maxLag = 0;
+            int maxPending = 0;
+            for (Probe probe : probes) {
+                maxLag = Math.max(maxLag, probe.sample(now));
+                maxPending = Math.max(maxPending, probe.pendingTasks());
+            }
+            lagNanos = maxLag;
+            pendingTasks = maxPending;
+
+            adjust(proxyServer.options(), maxLag, maxPending);
+        } finally {
+            //a probe, that is never run again, would leave the limit, or a paused accept, as it is
+            timer.newTimeout(this, periodNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void adjust(WebProxyOptions options, long lag, int pending) {
+        long maxLag = TimeUnit.MILLISECONDS.toNanos(options.admissionMaxLagMillis());
+        boolean overloaded = lag > maxLag ||
+                             (options.admissionMaxPendingTasks() > 0 && pending > options.admissionMaxPendingTasks());
+        this.overloaded = overloaded;
+
+        int current = limit;
+        if (overloaded) {
+            current = current * options.admissionBackoffPercent() / 100;
+        } else if (inFlight.get() * 2 >= current) {
+            //only grow a limit, that is actually used
+            current += options.admissionLimitIncrease();
+        }
+        limit = Math.max(options.admissionMinLimit(), Math.min(options.admissionMaxLimit(), current));
+
+        long pauseLag = TimeUnit.MILLISECONDS.toNanos(options.admissionPauseAcceptLagMillis());
+        if (!acceptPaused && pauseLag > 0 && lag > pauseLag) {
+            logger.warn("Event loops lag " + TimeUnit.NANOSECONDS.toMillis(lag) + "ms behind, pausing accept");
+            setAccepting(false);
+        } else if (acceptPaused && (pauseLag == 0 || lag <= maxLag)) {
+            logger.warn("Event loops caught up, resuming accept");
+            setAccepting(true);
+        }
+    }
+
+    private void setAccepting(boolean accepting) {
+        acceptPaused = !accepting;
+        if (serverChannel != null) {
+            serverChannel.config().setAutoRead(accepting);
+        }
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public long lagMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lagNanos);
+    }
+
+    public int pendingTasks() {
+        return pendingTasks;
+    }
+
+    /**
+     * Whether the last probe found a loop over the lag or pending tasks limits.
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    public boolean isAcceptPaused() {
+        return acceptPaused;
+    }
+
+    /**
+     * Measures how long a task waits in the queue of one loop.
+     */
+    private static final class Probe implements Runnable {
+        private final EventExecutor loop;
+
+        //0, unless a probe is queued
+        private volatile long submitted;
+        private volatile long lastLag;
+
+        //timer thread only
+        private long smoothed;
+
+        Probe(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        @Override
+        public void run() {
+            lastLag = System.nanoTime() - submitted;
+            submitted = 0;
+        }
+
+        long sample(long now) {
+            long queued = submitted;
+            long lag;
+            if (queued != 0) {
+                //still waiting, so the lag is at least that
+                lag = now - queued;
+            } else {
+                lag = lastLag;
+                submitted = now;
+                loop.execute(this);
+            }
+            //reacts at once to a growing lag, but forgets a single slow probe over a few periods
+            smoothed = lag > smoothed ? lag : smoothed - (smoothed - lag) / 4;
+            return smoothed;
+        }
+
+        int pendingTasks() {
+            return loop instanceof SingleThreadEventExecutor ? ((SingleThreadEventExecutor) loop).pendingTasks() : 0;
+        }
+    }
+}
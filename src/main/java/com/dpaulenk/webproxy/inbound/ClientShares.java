@@ -0,0 +1,266 @@
+package com.dpaulenk.webproxy.inbound;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.common.TokenBucket;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request and byte budgets of client addresses, shared by all their connections.
+ * <p>
+ * Each address has token buckets for requests/s and bytes/s. While the proxy is congested, i.e. the event
+ * loops lag behind or traffic reaches fairShareBandwidth, bytes are also scheduled deficit round robin:
+ * every round each active address is given the same quantum, addresses that used less than an equal split
+ * of the last round keep what they need, and the rest is split between the heavy ones. An address over its
+ * quantum waits for the next round, carrying its debt. Every address has its own lock, there is none shared.
+ */
+public class ClientShares implements TimerTask {
+    //a debt beyond that many quanta is forgiven, an address that overran a round by far isn't starved for long
+    private static final int MAX_DEBT_ROUNDS = 10;
+
+    private final WebProxyServer proxyServer;
+
+    //entries are removed by the rounds, once they have no connections and their buckets are full again,
+    //so a client can't get a new burst by reconnecting
+    private final ConcurrentMap<InetAddress, Share> shares = new ConcurrentHashMap<InetAddress, Share>();
+
+    private Timer timer;
+    private long roundNanos;
+    private volatile long nextRound;
+    //bytes per address and round, 0 while not congested
+    private volatile long quantum;
+    //bytes all addresses may get in a round, while sharing
+    private long roundCapacity;
+    private volatile boolean stopped;
+
+    public ClientShares(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    public synchronized void start(Timer timer) {
+        this.timer = timer;
+        this.roundNanos = TimeUnit.MILLISECONDS.toNanos(proxyServer.options().fairShareRoundMillis());
+        this.nextRound = System.nanoTime() + roundNanos;
+        timer.newTimeout(this, roundNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public Share acquire(InetAddress address) {
+        for (;;) {
+            Share share = shares.get(address);
+            if (share == null) {
+                share = new Share(this, System.nanoTime());
+                if (shares.putIfAbsent(address, share) == null) {
+                    return share;
+                }
+                continue;
+            }
+
+            int value = share.connections.get();
+            //-1 means the share is being removed, a new one is put instead
+            if (value >= 0 && share.connections.compareAndSet(value, value + 1)) {
+                return share;
+            }
+        }
+    }
+
+    public void release(Share share) {
+        share.connections.decrementAndGet();
+    }
+
+    public int clients() {
+        return shares.size();
+    }
+
+    public long quantum() {
+        return quantum;
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (stopped) {
+            return;
+        }
+        try {
+            round();
+        } finally {
+            //a round, that is never run again, would leave addresses in debt paused
+            timer.newTimeout(this, roundNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void round() {
+        WebProxyOptions options = proxyServer.options();
+
+        long now = System.nanoTime();
+        long total = 0;
+        int active = 0;
+        boolean debts = false;
+        for (Map.Entry<InetAddress, Share> entry : shares.entrySet()) {
+            Share share = entry.getValue();
+            if (share.isUnused(now) && share.connections.compareAndSet(0, -1)) {
+                shares.remove(entry.getKey(), share);
+                continue;
+            }
+            long used = share.endRound();
+            //an address waiting out its debt is still active, though it had nothing this round
+            if (used > 0 || share.isInDebt()) {
+                total += used;
+                active++;
+                debts |= share.isInDebt();
+            }
+        }
+
+        long capacity = options.fairShareBandwidth() * roundNanos / TimeUnit.SECONDS.toNanos(1);
+        //while sharing, the traffic is low, because heavy addresses are paused; it goes on until they paid
+        boolean congested = proxyServer.admissionController().isOverloaded() || (capacity > 0 && total >= capacity) ||
+                            (quantum > 0 && debts);
+
+        long next = 0;
+        if (options.fairShare() && congested && active > 1) {
+            if (capacity > 0) {
+                roundCapacity = capacity;
+            } else {
+                //what the loops managed, when sharing began; the pauses would shrink it round after round
+                roundCapacity = quantum > 0 ? Math.max(roundCapacity, total) : total;
+            }
+            next = fairQuantum(roundCapacity, active);
+        }
+
+        quantum = next;
+        nextRound = System.nanoTime() + roundNanos;
+        for (Share share : shares.values()) {
+            share.startRound(next);
+        }
+    }
+
+    /**
+     * Max-min fair split: addresses under the equal split keep their usage, the rest goes to the others.
+     */
+    private long fairQuantum(long total, int active) {
+        long equal = total / active;
+        long light = 0;
+        int heavy = 0;
+        for (Share share : shares.values()) {
+            long used = share.lastRoundBytes;
+            if (used >= equal || share.isInDebt()) {
+                heavy++;
+            } else if (used > 0) {
+                light += used;
+            }
+        }
+        return Math.max(1, heavy > 0 ? (total - light) / heavy : equal);
+    }
+
+    /**
+     * Budget of one client address.
+     */
+    public static final class Share {
+        private final ClientShares owner;
+        final AtomicInteger connections = new AtomicInteger(1);
+
+        private final TokenBucket requests;
+        private final TokenBucket bytes;
+
+        private long roundBytes;
+        //written under the lock, read by the round
+        private volatile long lastRoundBytes;
+        //bytes left in this round, while fair sharing
+        private long allowance;
+        private boolean sharing;
+
+        Share(ClientShares owner, long now) {
+            this.owner = owner;
+            WebProxyOptions options = owner.proxyServer.options();
+            this.requests = new TokenBucket(options.clientRequestBurst(), now);
+            this.bytes = new TokenBucket(options.clientBytesBurst(), now);
+        }
+
+        /**
+         * @return nanos to pause reading for, 0 to go on
+         */
+        public synchronized long takeRequest(long now) {
+            WebProxyOptions options = owner.proxyServer.options();
+            return requests.take(1, options.clientRequestsPerSecond(), options.clientRequestBurst(), now);
+        }
+
+        public synchronized long requestWaitNanos(long now) {
+            WebProxyOptions options = owner.proxyServer.options();
+            return requests.waitNanos(options.clientRequestsPerSecond(), options.clientRequestBurst(), now);
+        }
+
+        /**
+         * @return nanos until the byte rate allows more, 0 to go on
+         */
+        public synchronized long takeBytes(long count, long now) {
+            roundBytes += count;
+            if (sharing) {
+                allowance -= count;
+            }
+            WebProxyOptions options = owner.proxyServer.options();
+            return bytes.take(count, options.clientBytesPerSecond(), options.clientBytesBurst(), now);
+        }
+
+        /**
+         * @return nanos until the next round, if the address is over its quantum
+         */
+        public synchronized long fairShareWait(long now) {
+            if (!sharing || allowance >= 0) {
+                return 0;
+            }
+            //never less than a tenth of a round, the round may run a little late
+            return Math.max(owner.nextRound - now, owner.roundNanos / 10);
+        }
+
+        /**
+         * @return nanos until requests and bytes are both within budget
+         */
+        public synchronized long waitNanos(boolean includeRequests, long now) {
+            WebProxyOptions options = owner.proxyServer.options();
+            long wait = bytes.waitNanos(options.clientBytesPerSecond(), options.clientBytesBurst(), now);
+            if (includeRequests) {
+                wait = Math.max(wait, requests.waitNanos(options.clientRequestsPerSecond(),
+                                                         options.clientRequestBurst(), now));
+            }
+            return Math.max(wait, fairShareWait(now));
+        }
+
+        /**
+         * Whether a new share would be the same.
+         */
+        synchronized boolean isUnused(long now) {
+            WebProxyOptions options = owner.proxyServer.options();
+            return connections.get() == 0 &&
+                   requests.isFull(options.clientRequestsPerSecond(), options.clientRequestBurst(), now) &&
+                   bytes.isFull(options.clientBytesPerSecond(), options.clientBytesBurst(), now);
+        }
+
+        synchronized long endRound() {
+            lastRoundBytes = roundBytes;
+            roundBytes = 0;
+            return lastRoundBytes;
+        }
+
+        synchronized boolean isInDebt() {
+            return sharing && allowance < 0;
+        }
+
+        synchronized void startRound(long quantum) {
+            sharing = quantum > 0;
+            //a debt is carried to the next round, unused bytes are not
+            allowance = sharing ? Math.max(Math.min(allowance, 0), -MAX_DEBT_ROUNDS * quantum) + quantum : 0;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.dpaulenk.webproxy.inbound;
+
+import com.dpaulenk.webproxy.metrics.ProxyMetrics;
+import com.dpaulenk.webproxy.metrics.StripedCounter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a client connection within the budget of its address, see {@link ClientShares}.
+ * <p>
+ * Nothing is buffered here: requests and body bytes read from the client pause reading the client,
+ * bytes written to it pause reading the origin, until the budget allows more. Pauses are passed to
+ * the proxy handler as {@link Event}s. Tunnels are throttled by their bytes, like bodies.
+ */
+public class ClientThrottle extends ChannelDuplexHandler {
+
+    public enum Event {
+        PAUSE_CLIENT, RESUME_CLIENT, PAUSE_UPSTREAM, RESUME_UPSTREAM
+    }
+
+    private final ClientShares shares;
+    private final ProxyMetrics metrics;
+
+    private ChannelHandlerContext ctx;
+    private ClientShares.Share share;
+
+    //event loop only
+    private boolean clientPaused;
+    private boolean upstreamPaused;
+    //what the last throttled bytes were over, counted when they cause a pause
+    private StripedCounter bytesPauseReason;
+
+    private final Runnable resumeClient = new Runnable() {
+        @Override
+        public void run() {
+            if (share == null) {
+                return;
+            }
+            long wait = share.waitNanos(true, System.nanoTime());
+            if (wait > 0) {
+                schedule(this, wait);
+            } else {
+                clientPaused = false;
+                ctx.fireUserEventTriggered(Event.RESUME_CLIENT);
+            }
+        }
+    };
+
+    private final Runnable resumeUpstream = new Runnable() {
+        @Override
+        public void run() {
+            if (share == null) {
+                return;
+            }
+            long wait = share.waitNanos(false, System.nanoTime());
+            if (wait > 0) {
+                schedule(this, wait);
+            } else {
+                upstreamPaused = false;
+                ctx.fireUserEventTriggered(Event.RESUME_UPSTREAM);
+            }
+        }
+    };
+
+    public ClientThrottle(ClientShares shares, ProxyMetrics metrics) {
+        this.shares = shares;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+        this.share = shares.acquire(address);
+
+        //clients with a request per connection are held here, pausing their other connections wouldn't do
+        long wait = share.requestWaitNanos(System.nanoTime());
+        if (wait > 0) {
+            pauseClient(wait, metrics.throttledRequests);
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (share != null) {
+            shares.release(share);
+            share = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (share != null) {
+            long now = System.nanoTime();
+            if (msg instanceof HttpRequest) {
+                long wait = share.takeRequest(now);
+                if (wait > 0) {
+                    pauseClient(wait, metrics.throttledRequests);
+                }
+            }
+            int size = size(msg);
+            if (size > 0) {
+                long wait = throttleBytes(size, now);
+                if (wait > 0) {
+                    pauseClient(wait, bytesPauseReason);
+                }
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (share != null) {
+            int size = size(msg);
+            if (size > 0) {
+                long wait = throttleBytes(size, System.nanoTime());
+                if (wait > 0 && !upstreamPaused) {
+                    upstreamPaused = true;
+                    bytesPauseReason.increment();
+                    ctx.fireUserEventTriggered(Event.PAUSE_UPSTREAM);
+                    schedule(resumeUpstream, wait);
+                }
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    private long throttleBytes(int size, long now) {
+        long wait = share.takeBytes(size, now);
+        long fair = share.fairShareWait(now);
+        bytesPauseReason = fair > wait ? metrics.fairSharePauses : metrics.throttledBytes;
+        return Math.max(wait, fair);
+    }
+
+    private void pauseClient(long wait, StripedCounter reason) {
+        if (!clientPaused) {
+            clientPaused = true;
+            reason.increment();
+            ctx.fireUserEventTriggered(Event.PAUSE_CLIENT);
+            schedule(resumeClient, wait);
+        }
+    }
+
+    private void schedule(Runnable task, long delayNanos) {
+        ctx.executor().schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static int size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,110 @@
+package com.dpaulenk.webproxy.inbound;
+
+import com.dpaulenk.webproxy.WebProxyServer;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Closes client connections over the global or the per client address limit, as soon as they are accepted.
+ * Limits are read from the current options, so a reload applies to the next connections.
+ */
+@ChannelHandler.Sharable
+public class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = Logger.getLogger(ConnectionLimiter.class);
+
+    private final WebProxyServer proxyServer;
+
+    private final AtomicInteger total = new AtomicInteger();
+    //entries are removed, when their count drops to 0
+    private final ConcurrentMap<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+    public ConnectionLimiter(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    public int connections() {
+        return total.get();
+    }
+
+    public int clientAddresses() {
+        return perAddress.size();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        int maxConnections = proxyServer.options().maxClientConnections();
+        int maxPerAddress = proxyServer.options().maxConnectionsPerClientAddress();
+
+        if (total.incrementAndGet() > maxConnections && maxConnections > 0) {
+            total.decrementAndGet();
+            proxyServer.metrics().rejectedByGlobalLimit.increment();
+            reject(ctx, "connection limit " + maxConnections);
+            return;
+        }
+
+        final InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+        final AtomicInteger count = acquire(address);
+        if (count.get() > maxPerAddress && maxPerAddress > 0) {
+            release(address, count);
+            total.decrementAndGet();
+            proxyServer.metrics().rejectedByAddressLimit.increment();
+            reject(ctx, "connection limit per address " + maxPerAddress);
+            return;
+        }
+
+        ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                release(address, count);
+                total.decrementAndGet();
+            }
+        });
+
+        super.channelActive(ctx);
+    }
+
+    private void reject(ChannelHandlerContext ctx, String reason) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Rejecting " + ctx.channel().remoteAddress() + ", reason: " + reason);
+        }
+        ctx.close();
+    }
+
+    /**
+     * @return incremented counter of the address
+     */
+    private AtomicInteger acquire(InetAddress address) {
+        for (;;) {
+            AtomicInteger count = perAddress.get(address);
+            if (count == null) {
+                count = new AtomicInteger(1);
+                if (perAddress.putIfAbsent(address, count) == null) {
+                    return count;
+                }
+                continue;
+            }
+
+            int value = count.get();
+            //0 means the counter is being removed, a new one is put instead
+            if (value > 0 && count.compareAndSet(value, value + 1)) {
+                return count;
+            }
+        }
+    }
+
+    private void release(InetAddress address, AtomicInteger count) {
+        if (count.decrementAndGet() == 0) {
+            perAddress.remove(address, count);
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package com.dpaulenk.webproxy.inbound;
 
 import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.cache.BodyStore;
+import com.dpaulenk.webproxy.cache.CachePolicy;
 import com.dpaulenk.webproxy.cache.CachedResponse;
 import com.dpaulenk.webproxy.cache.ResponseCache;
-import io.netty.buffer.CompositeByteBuf;
-import io.netty.buffer.Unpooled;
+import com.dpaulenk.webproxy.metrics.ProxyMetrics;
+import com.dpaulenk.webproxy.utils.HttpDates;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.http.*;
+import io.netty.util.IllegalReferenceCountException;
 import io.netty.util.ReferenceCountUtil;
 import org.apache.log4j.Logger;
 
@@ -21,28 +25,36 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
     private static final Logger logger = Logger.getLogger(InboundCacheHandler.class);
 
     private final ResponseCache responseCache;
+    private final ProxyMetrics metrics;
 
-    private final Queue<HttpRequest> requestsQueue = new LinkedList<HttpRequest>();
+    private final Queue<PendingRequest> requestsQueue = new ArrayDeque<PendingRequest>();
 
     private final int maxCachedResponseSize;
-    private final int maxCumulationBufferComponents;
+    private final String surrogateKeyHeader;
 
     private boolean servingFromCache;
 
-    private HttpRequest currentRequest;
+    private PendingRequest currentRequest;
     private HttpResponse currentResponse;
+    //read from the head, which is written without them
+    private String[] currentSurrogateKeys;
+    private CachePolicy currentResponsePolicy;
 
     private int currentContentLength;
     private boolean isCachable;
 
-    private final List<HttpContent> currentResponseChunks = new ArrayList<HttpContent>();
+    //the rest of an uncacheable response is written without looking at it
+    private boolean bypassing;
+
+    private final List<ByteBuf> currentResponseChunks = new ArrayList<ByteBuf>();
 
     private boolean passThrough = false;
 
     public InboundCacheHandler(WebProxyServer proxyServer) {
         responseCache = proxyServer.getResponseCache();
+        metrics = proxyServer.metrics();
         maxCachedResponseSize = proxyServer.options().getMaxCachedResponseSize();
-        maxCumulationBufferComponents = proxyServer.options().getMaxCumulationBufferComponents();
+        surrogateKeyHeader = proxyServer.options().surrogateKeyHeader();
     }
 
     public void setPassThrough(boolean passThrough) {
@@ -55,18 +67,22 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
             servingFromCache = false;
 
             HttpRequest req = (HttpRequest) msg;
+            PendingRequest pending = new PendingRequest(req);
 
-            ReferenceCountUtil.retain(req);
-
-            requestsQueue.add(req);
-
-            HttpResponse response = cachedResponse(req);
+            long lookupStart = System.nanoTime();
+            HttpResponse response = cachedResponse(req, pending);
+            metrics.cacheLookup.recordSince(lookupStart);
             if (response != null) {
-                logger.info("Serving response from cache for uri: " + req.getUri());
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Serving response from cache for uri: " + pending.uri);
+                }
                 servingFromCache = true;
                 ctx.channel().writeAndFlush(response);
                 return;
             }
+
+            //cached responses bypass the queue, only origin responses are matched against it
+            requestsQueue.add(pending);
         }
 
         if (servingFromCache && msg instanceof HttpContent) {
@@ -78,72 +94,111 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        if (passThrough || msg instanceof CachedResponse) {
+        if (msg instanceof CachedResponse) {
             super.write(ctx, msg, promise);
             return;
         }
 
+        String[] surrogateKeys = null;
         if (msg instanceof HttpResponse) {
-            currentRequest = requestsQueue.poll();
-            currentResponse = (HttpResponse) msg;
-            currentContentLength = 0;
+            //purge tags are for the cache, clients don't get them
+            HttpHeaders headers = ((HttpResponse) msg).headers();
+            surrogateKeys = surrogateKeys(headers.getAll(surrogateKeyHeader));
+            headers.remove(surrogateKeyHeader);
+        }
 
-            isCachable = isCachable(currentRequest, currentResponse);
+        if (passThrough) {
+            super.write(ctx, msg, promise);
+            return;
+        }
 
-            ReferenceCountUtil.retain(currentResponse);
+        if (bypassing) {
+            if (msg instanceof LastHttpContent) {
+                bypassing = false;
+            }
+            super.write(ctx, msg, promise);
+            return;
         }
 
-        if (isCachable && msg instanceof HttpContent) {
-            if (!(msg instanceof HttpResponse)) {
-                ReferenceCountUtil.retain(msg);
+        if (msg instanceof HttpResponse) {
+            PendingRequest request = requestsQueue.poll();
+            HttpResponse response = (HttpResponse) msg;
+
+            //decided by the head, the body of an uncacheable response is never looked at
+            CachePolicy policy = request == null ? null : cachablePolicy(request, response);
+            if (policy == null) {
+                if (request != null) {
+                    updateFromNonCachableResponse(request, response);
+                }
+                bypassing = !(msg instanceof LastHttpContent);
+                super.write(ctx, msg, promise);
+                return;
             }
 
+            currentRequest = request;
+            currentResponse = response;
+            currentSurrogateKeys = surrogateKeys;
+            currentResponsePolicy = policy;
+            currentContentLength = 0;
+            isCachable = true;
+
+            ReferenceCountUtil.retain(currentResponse);
+        }
+
+        if (isCachable && msg instanceof HttpContent) {
             HttpContent content = (HttpContent) msg;
 
             currentContentLength += content.content().readableBytes();
             if (currentContentLength > maxCachedResponseSize) {
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Skip caching " + currentRequest.getUri() + "" +
+                    logger.debug("Skip caching " + currentRequest.uri + "" +
                                  ", reason: response length exceeds Maximum Size of : " + maxCachedResponseSize + " bytes");
                 }
 
-                isCachable = false;
-                currentResponseChunks.clear();
-            } else {
-                currentResponseChunks.add(content);
-            }
-        }
-
-        if (msg instanceof LastHttpContent) {
-            if (isCachable) {
-                cacheResponse(currentRequest, currentResponse, currentContentLength, currentResponseChunks);
-            } else {
                 updateFromNonCachableResponse(currentRequest, currentResponse);
+                resetCurrentResponse();
+                bypassing = !(msg instanceof LastHttpContent);
+                super.write(ctx, msg, promise);
+                return;
             }
 
-            ReferenceCountUtil.release(currentResponse);
-            ReferenceCountUtil.release(currentRequest);
+            //writing the chunk drains its reader index before the response is complete, keep our own view
+            currentResponseChunks.add(content.content().duplicate().retain());
+            metrics.pendingChunkBytes.add(content.content().readableBytes());
+        }
 
-            isCachable = false;
-            currentContentLength = 0;
-            currentResponseChunks.clear();
-            currentRequest = null;
-            currentResponse = null;
+        if (isCachable && msg instanceof LastHttpContent) {
+            //the body is copied, chunks are released below
+            cacheResponse(currentRequest, currentResponse, currentResponsePolicy, (LastHttpContent) msg,
+                          currentContentLength, currentResponseChunks);
+            resetCurrentResponse();
         }
 
         super.write(ctx, msg, promise);
     }
 
-    private void updateFromNonCachableResponse(HttpRequest currentRequest, HttpResponse currentResponse) {
-        //update from 304 NOT MODIFIED responses
-        CachedResponse cached = responseCache.get(currentRequest.getUri());
+    private void resetCurrentResponse() {
+        ReferenceCountUtil.release(currentResponse);
+
+        isCachable = false;
+        currentContentLength = 0;
+        releaseChunks();
+        currentRequest = null;
+        currentResponse = null;
+        currentSurrogateKeys = null;
+        currentResponsePolicy = null;
+    }
+
+    private void updateFromNonCachableResponse(PendingRequest currentRequest, HttpResponse currentResponse) {
+        //the entry seen by the lookup, there is nothing to update, if there was none
+        CachedResponse cached = currentRequest.lookedUp ? currentRequest.cached : responseCache.get(currentRequest.uri);
         if (currentResponse.getStatus().code() == 304) {
-            long lastModified = determineLastModified(currentResponse);
+            long lastModified = HttpDates.parse(currentResponse.headers().get(LAST_MODIFIED));
             if (lastModified > 0) {
                 if (cached != null) {
                     if (cached.getLastModified() < lastModified) {
                         if (logger.isDebugEnabled()) {
-                            logger.debug("Removing " + currentRequest.getUri() + " - reason: expired Last-Modified");
+                            logger.debug("Removing " + currentRequest.uri + " - reason: expired Last-Modified");
                         }
 
                         removeFromCache(currentRequest, cached);
@@ -152,7 +207,7 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
             }
         } else if (cached != null) {
             if (logger.isDebugEnabled()) {
-                logger.debug("Removing " + currentRequest.getUri() + " - reason: non-cashable request received");
+                logger.debug("Removing " + currentRequest.uri + " - reason: non-cashable request received");
             }
             removeFromCache(currentRequest, cached);
         }
@@ -160,114 +215,151 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
 
     /**
      * http://tools.ietf.org/html/rfc2616#section-13.4
+     * @return policy of a cacheable response, null for an uncacheable one
      */
-    private boolean isCachable(HttpRequest currentRequest, HttpResponse currentResponse) {
+    private CachePolicy cachablePolicy(PendingRequest currentRequest, HttpResponse currentResponse) {
         //only cache responses with 200 OK status
-        String uri = currentRequest.getUri();
+        String uri = currentRequest.uri;
         if (currentResponse.getStatus().code() != 200) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Skip caching " + uri + ", reason: response status code: " + currentResponse.getStatus().code());
             }
-            return false;
+            return null;
         }
 
         //only cache GET requests
-        if (!HttpMethod.GET.equals(currentRequest.getMethod())) {
+        if (!HttpMethod.GET.equals(currentRequest.method)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skip caching " + uri + ", reason: request http method: " + currentRequest.method);
+            }
+            return null;
+        }
+
+        // http://tools.ietf.org/html/rfc2616#section-14.9
+        if (bypassesCache(currentRequest.policy)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skip caching " + uri + ", reason: request has Cache-Control: " +
+                             currentResponse.headers().getAll(CACHE_CONTROL));
+            }
+            return null;
+        }
+
+        //the lookup was skipped, so a response is not stored either, until the uri is forgotten
+        if (currentRequest.remembered) {
             if (logger.isDebugEnabled()) {
-                logger.debug("Skip caching " + uri + ", reason: request http method: " + currentRequest.getMethod());
+                logger.debug("Skip caching " + uri + ", reason: remembered as uncacheable");
             }
-            return false;
+            return null;
         }
 
+        //the checks above depend on the request, the ones below on the uri's response, which is remembered
+        CachePolicy responsePolicy = CachePolicy.parse(currentResponse.headers());
+
         // http://tools.ietf.org/html/rfc2616#section-13.4
         //  "If there is neither a cache validator nor an explicit expiration
         //   time associated with a response, we do not expect it to be cached"
-        if (!currentRequest.headers().contains(ETAG) && determineMaxAge(currentResponse) == -1) {
+        if (!currentRequest.hasEtag && responsePolicy.freshnessLifetime(System.currentTimeMillis()) == -1) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Skip caching " + uri + ", reason: request has no explicit expiration time");
             }
-            return false;
+            responseCache.uncachable().add(uri);
+            return null;
         }
 
-        // http://tools.ietf.org/html/rfc2616#section-14.9
-        if (hasCacheControlValues(currentRequest, "no-cache", "no-store", "max-age=0")) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Skip caching " + uri + ", reason: request has Cache-Control: " +
-                             currentResponse.headers().getAll(CACHE_CONTROL));
-            }
-            return false;
-        }
-        if (hasCacheControlValues(currentResponse, "private", "no-cache", "max-age=0", "must-revalidate")) {
+        if (responsePolicy.has(CachePolicy.PRIVATE | CachePolicy.NO_CACHE | CachePolicy.NO_STORE | CachePolicy.MUST_REVALIDATE) ||
+            responsePolicy.sharedMaxAge() == 0) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Skip caching " + uri + ", reason: response has Cache-Control: " +
                              currentResponse.headers().getAll(CACHE_CONTROL));
             }
-            return false;
+            responseCache.uncachable().add(uri);
+            return null;
         }
 
-        return true;
+        return responsePolicy;
     }
 
-    private void cacheResponse(HttpRequest currentRequest, HttpResponse currentResponse,
-                               int currentContentLength, List<HttpContent> currentResponseChunks) {
-        logger.info("Caching response for uri: " + currentRequest.getUri());
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        //closed in the middle of a response, its remaining chunks won't be cached
+        resetCurrentResponse();
+        bypassing = false;
+        super.channelInactive(ctx);
+    }
 
-        String uri = currentRequest.getUri();
+    private void releaseChunks() {
+        for (ByteBuf chunk : currentResponseChunks) {
+            metrics.pendingChunkBytes.add(-chunk.readableBytes());
+            chunk.release();
+        }
+        currentResponseChunks.clear();
+    }
+
+    private void cacheResponse(PendingRequest currentRequest, HttpResponse currentResponse, CachePolicy responsePolicy,
+                               LastHttpContent lastChunk, int currentContentLength, List<ByteBuf> currentResponseChunks) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Caching response for uri: " + currentRequest.uri);
+        }
 
-        CachedResponse cached = mergedResponse(currentResponse, currentContentLength, currentResponseChunks);
+        String uri = currentRequest.uri;
+
+        CachedResponse cached = mergedResponse(currentResponse, lastChunk, currentContentLength, currentResponseChunks);
 
         long currentTime = System.currentTimeMillis();
-        long maxAge = determineMaxAge(currentTime, currentResponse);
-        long lastModified = determineLastModified(currentResponse);
+        long maxAge = responsePolicy.freshnessLifetime(currentTime);
+        long lastModified = HttpDates.parse(currentResponse.headers().get(LAST_MODIFIED));
 
         cached.setBirthTime(currentTime);
         cached.setMaxAge(maxAge);
         cached.setLastModified(lastModified);
+        cached.setSurrogateKeys(currentSurrogateKeys);
 
         responseCache.put(uri, cached);
     }
 
-    private CachedResponse mergedResponse(HttpResponse currentResponse, int currentContentLength, List<HttpContent> chunks) {
-        CompositeByteBuf content = Unpooled.compositeBuffer(maxCumulationBufferComponents);
-
-        int contetLength = 0;
-        for (HttpContent chunk : chunks) {
-            contetLength += chunk.content().readableBytes();
-            content.addComponent(chunk.content());
+    private CachedResponse mergedResponse(HttpResponse currentResponse, LastHttpContent lastChunk,
+                                          int currentContentLength, List<ByteBuf> chunks) {
+        int contentLength = 0;
+        for (ByteBuf chunk : chunks) {
+            contentLength += chunk.readableBytes();
         }
-        content.writerIndex(content.writerIndex() + contetLength);
 
-        CachedResponse res =
-            new CachedResponse(currentResponse.getProtocolVersion(), currentResponse.getStatus(), content);
+        ByteBuf content = responseCache.allocateBody(contentLength);
+        for (ByteBuf chunk : chunks) {
+            content.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+        }
 
-        assert !chunks.isEmpty();
+        BodyStore.SharedBody sharedBody = responseCache.shareBody(content);
 
-        LastHttpContent lastChunk = (LastHttpContent) chunks.get(chunks.size() - 1);
+        CachedResponse res = sharedBody == null
+            ? new CachedResponse(currentResponse.getProtocolVersion(), currentResponse.getStatus(), content)
+            : new CachedResponse(currentResponse.getProtocolVersion(), currentResponse.getStatus(), sharedBody);
 
         res.headers().add(currentResponse.headers());
         res.headers().add(lastChunk.trailingHeaders());
-        res.headers().add(CONTENT_LENGTH, currentContentLength);
-
-        ReferenceCountUtil.retain(res);
+        //the body is complete now, it's served with its length rather than in chunks
+        res.headers().remove(TRANSFER_ENCODING);
+        res.headers().set(CONTENT_LENGTH, currentContentLength);
 
         return res;
     }
 
-    private HttpResponse cachedResponse(HttpRequest req) {
+    private HttpResponse cachedResponse(HttpRequest req, PendingRequest pending) {
         //only cache GET requests
-        HttpMethod method = req.getMethod();
+        HttpMethod method = pending.method;
         if (!HttpMethod.GET.equals(method)) {
             // resource might be modified: http://tools.ietf.org/html/rfc2616#section-13.10
             if (HttpMethod.PUT.equals(method) ||
                 HttpMethod.DELETE.equals(method) ||
                 HttpMethod.POST.equals(method)) {
 
-                CachedResponse cached = responseCache.get(req.getUri());
+                CachedResponse cached = responseCache.get(pending.uri);
+                pending.lookedUp = true;
                 if (cached != null) {
                     if (logger.isDebugEnabled()) {
-                        logger.debug("Removing " + req.getUri() + " - reason: modification request: " + method);
+                        logger.debug("Removing " + pending.uri + " - reason: modification request: " + method);
                     }
-                    removeFromCache(req, cached);
+                    removeFromCache(pending, cached);
                 }
             }
 
@@ -275,40 +367,62 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
         }
 
         // http://tools.ietf.org/html/rfc2616#section-14.9
-        if (hasCacheControlValues(req, "no-cache", "no-store", "max-age=0")) {
+        if (bypassesCache(pending.policy)) {
             if (logger.isDebugEnabled()) {
-                logger.debug("Skip lookup for " + req.getUri() +
+                logger.debug("Skip lookup for " + pending.uri +
                              " - reason: Control-Cache: " + req.headers().getAll(CACHE_CONTROL));
             }
             return null;
         }
 
-        String uri = req.getUri();
+        String uri = pending.uri;
+
+        if (responseCache.uncachable().mightContain(uri)) {
+            //its last response was uncacheable, so is most likely this one
+            pending.remembered = true;
+            responseCache.stats().recordBypass();
+            return null;
+        }
 
         CachedResponse cachedResponse = responseCache.get(uri);
+        pending.lookedUp = true;
+        pending.cached = cachedResponse;
         if (cachedResponse == null) {
             if (logger.isDebugEnabled()) {
-                logger.debug("No cached entry for " + req.getUri());
+                logger.debug("No cached entry for " + uri);
             }
+            responseCache.stats().recordMiss();
             return null;
         }
 
-        long age = determineMaxAge(req);
+        if (cachedResponse.expired()) {
+            //expiry timer has not fired yet
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cached response expired for " + uri + "; resp.currentAge:" + cachedResponse.currentAge());
+            }
+            responseCache.expire(uri, cachedResponse);
+            responseCache.stats().recordMiss();
+            return null;
+        }
+
+        long age = pending.policy.maxAge();
         if (age != -1 && cachedResponse.expired(age)) {
             if (logger.isDebugEnabled()) {
-                logger.debug("Cached response expired for " + req.getUri() +
+                logger.debug("Cached response expired for " + uri +
                              "; req.Cached-Control: " + req.headers().getAll(CACHE_CONTROL) +
                              "; resp.currentAge:" + cachedResponse.currentAge());
             }
+            responseCache.stats().recordMiss();
             return null;
         }
 
-        Date ifModifiedSince = parseDate(req.headers().get(IF_MODIFIED_SINCE));
-        if (ifModifiedSince != null) {
-            if (!cachedResponse.modifiedSince(ifModifiedSince.getTime())) {
+        long ifModifiedSince = HttpDates.parse(req.headers().get(IF_MODIFIED_SINCE));
+        if (ifModifiedSince != -1) {
+            if (!cachedResponse.modifiedSince(ifModifiedSince)) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Sending '304 Not Modifed' for " + uri);
                 }
+                responseCache.stats().recordHit();
                 return notModifiedResponse(cachedResponse);
             }
 
@@ -316,10 +430,21 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
                 logger.debug("Cached response is modifed since: " + req.headers().get(IF_MODIFIED_SINCE));
             }
 
+            responseCache.stats().recordMiss();
+            return null;
+        }
+
+        CachedResponse served;
+        try {
+            served = cachedResponse.retainedDuplicate();
+        } catch (IllegalReferenceCountException e) {
+            //released by a concurrent eviction or purge after our lookup
+            responseCache.stats().recordMiss();
             return null;
         }
 
-        return cachedResponse;
+        responseCache.stats().recordHit();
+        return served;
     }
 
     private HttpResponse notModifiedResponse(HttpResponse original) {
@@ -328,7 +453,37 @@ public class InboundCacheHandler extends ChannelDuplexHandler {
         return response;
     }
 
-    private void removeFromCache(HttpRequest currentRequest, CachedResponse expected) {
-        responseCache.remove(currentRequest.getUri(), expected);
+    private void removeFromCache(PendingRequest currentRequest, CachedResponse expected) {
+        responseCache.remove(currentRequest.uri, expected);
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc2616#section-14.9
+     */
+    private static boolean bypassesCache(CachePolicy requestPolicy) {
+        return requestPolicy.has(CachePolicy.NO_CACHE | CachePolicy.NO_STORE) || requestPolicy.maxAge() == 0;
+    }
+
+    /**
+     * What the response side needs to know about its request, taken before the request is passed on.
+     */
+    private static final class PendingRequest {
+        final String uri;
+        final HttpMethod method;
+        final CachePolicy policy;
+        final boolean hasEtag;
+
+        //set by the lookup, the entry is only compared and never served from here, so it's not retained
+        boolean lookedUp;
+        CachedResponse cached;
+        //the lookup was skipped for an uncacheable uri
+        boolean remembered;
+
+        PendingRequest(HttpRequest req) {
+            uri = req.getUri();
+            method = req.getMethod();
+            policy = CachePolicy.parse(req.headers());
+            hasEtag = req.headers().contains(ETAG);
+        }
     }
 }
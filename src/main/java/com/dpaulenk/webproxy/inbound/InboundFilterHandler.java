@@ -1,77 +1,52 @@
 package com.dpaulenk.webproxy.inbound;
 
-import com.dpaulenk.webproxy.cache.CachedResponse;
-import com.dpaulenk.webproxy.utils.ProxyUtils;
+import com.dpaulenk.webproxy.WebProxyServer;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
 import org.apache.log4j.Logger;
 
-import java.util.regex.Pattern;
-
 import static com.dpaulenk.webproxy.utils.ProxyUtils.simpleResponse;
 
-public class InboundFilterHandler extends SimpleChannelInboundHandler<HttpObject> {
+public class InboundFilterHandler extends ChannelInboundHandlerAdapter {
     private static final Logger logger = Logger.getLogger(InboundFilterHandler.class);
 
-    private final Pattern[] blackList;
+    private final WebProxyServer proxyServer;
 
     private boolean blockingRequest;
 
-    public InboundFilterHandler(String[] blackList) {
-        this.blackList = new Pattern[blackList.length];
-        for (int i = 0; i < blackList.length; i++) {
-            try {
-                this.blackList[i] = Pattern.compile(blackList[i]);
-            } catch (Exception e) {
-                //ignore mailformed patterns
-                this.blackList[i] = null;
-            }
-        }
+    public InboundFilterHandler(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, HttpObject obj) throws Exception {
-        if (obj instanceof HttpRequest) {
-            HttpRequest req = (HttpRequest) obj;
-            if (shouldBlock(req)) {
-                logger.info("Blocking black-listed request: " + req.getUri());
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest req = (HttpRequest) msg;
+            //rules are read once per request, a reload takes effect with the next one
+            blockingRequest = proxyServer.getBlockList().isBlocked(req.getUri(), req.headers().get(HttpHeaders.Names.HOST));
+            if (blockingRequest) {
+                proxyServer.metrics().blockListHits.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Blocking black-listed request: " + req.getUri());
+                }
                 sendForbidden(ctx, req);
-                blockingRequest = true;
-            } else {
-                ctx.fireChannelRead(obj);
             }
         }
 
-        if (obj instanceof HttpContent && blockingRequest) {
-            if (obj instanceof LastHttpContent) {
+        if (blockingRequest) {
+            if (msg instanceof LastHttpContent) {
                 blockingRequest = false;
             }
+            ReferenceCountUtil.release(msg);
             return;
         }
 
-        ctx.fireChannelRead(obj);
-    }
-
-    private void sendForbidden(final ChannelHandlerContext ctx, HttpRequest req) {
-        final InboundCacheHandler cacheHandler = (InboundCacheHandler) ctx.pipeline().remove("caching");
-        cacheHandler.setPassThrough(true);
-        ctx.writeAndFlush(
-            simpleResponse(HttpResponseStatus.FORBIDDEN, req.getUri() + " is black-listed.")
-        ).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                cacheHandler.setPassThrough(false);
-            }
-        });
+        ctx.fireChannelRead(msg);
     }
 
-    private boolean shouldBlock(HttpRequest req) {
-        String uri = req.getUri();
-        for (Pattern blockPattern : blackList) {
-            if (blockPattern != null && blockPattern.matcher(uri).matches()) {
-                return true;
-            }
-        }
-        return false;
+    private void sendForbidden(ChannelHandlerContext ctx, HttpRequest req) {
+        //written from here, the response doesn't pass the cache handler
+        ctx.writeAndFlush(simpleResponse(HttpResponseStatus.FORBIDDEN, req.getUri() + " is black-listed."));
     }
 }
@@ -2,35 +2,56 @@ package com.dpaulenk.webproxy.inbound;
 
 import com.dpaulenk.webproxy.WebProxyOptions;
 import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.accesslog.AccessLogHandler;
+import com.dpaulenk.webproxy.common.ExchangeSizingHandler;
+import com.dpaulenk.webproxy.common.IdleReaper;
+import com.dpaulenk.webproxy.common.WriteSpooler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpServerCodec;
 
+import java.io.File;
+
 public class InboundInitializer extends ChannelInitializer<SocketChannel> {
     private final WebProxyServer proxyServer;
-    private final int maxChunkSize;
-    private final boolean cachingEnabled;
-    private final String[] blackList;
 
     public InboundInitializer(WebProxyServer proxyServer) {
         this.proxyServer = proxyServer;
-        maxChunkSize = proxyServer.options().maxChunkSize();
-        cachingEnabled = proxyServer.options().cachingEnabled();
-        blackList = proxyServer.options().blackList();
     }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline p = ch.pipeline();
 
+        //every connection is set up with the options current at the time it's accepted
+        WebProxyOptions options = proxyServer.options();
+        int maxChunkSize = options.maxChunkSize();
+
+        p.addLast("metrics", proxyServer.metrics().clientHandler());
+        p.addLast("limits", proxyServer.connectionLimiter());
+        p.addLast("idle", new IdleReaper(proxyServer.idleTimer(), proxyServer.keepAliveTimeouts()));
+        if (options.spoolMemoryThreshold() > 0) {
+            //below the codec, it spools encoded bytes
+            String directory = options.spoolDirectory();
+            p.addLast("spool", new WriteSpooler(options.spoolMemoryThreshold(), options.spoolMaxFileSize(),
+                                                options.spoolMaxTotalSize(),
+                                                directory.isEmpty() ? null : new File(directory),
+                                                proxyServer.metrics()));
+        }
         p.addLast("httpcodec", new HttpServerCodec(8192, 8192 * 2, maxChunkSize));
+        p.addLast("sizing", ExchangeSizingHandler.forChannel(ch, options, false));
+        p.addLast("throttle", new ClientThrottle(proxyServer.clientShares(), proxyServer.metrics()));
+
+        if (proxyServer.getAccessLog().isEnabled()) {
+            p.addLast("accesslog", new AccessLogHandler(proxyServer.getAccessLog()));
+        }
 
-        if (blackList != null && blackList.length > 0) {
-            p.addLast("filter", new InboundFilterHandler(blackList));
+        if (!proxyServer.getBlockList().isEmpty()) {
+            p.addLast("filter", new InboundFilterHandler(proxyServer));
         }
 
-        if (cachingEnabled) {
+        if (options.cachingEnabled()) {
             p.addLast("caching", new InboundCacheHandler(proxyServer));
         }
         p.addLast("proxy", new InboundProxyHandler(proxyServer));
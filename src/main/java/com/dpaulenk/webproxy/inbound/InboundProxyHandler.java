@@ -2,36 +2,90 @@ package com.dpaulenk.webproxy.inbound;
 
 import com.dpaulenk.webproxy.WebProxyServer;
 import com.dpaulenk.webproxy.common.AbstractProxyHandler;
+import com.dpaulenk.webproxy.common.HeaderRewriter;
+import com.dpaulenk.webproxy.common.IdleReaper;
+import com.dpaulenk.webproxy.common.WriteSpooler;
+import com.dpaulenk.webproxy.metrics.ProxyMetrics;
+import com.dpaulenk.webproxy.outbound.ConnectionPrewarmer;
+import com.dpaulenk.webproxy.outbound.HedgingPolicy;
 import com.dpaulenk.webproxy.outbound.OutboundInitializer;
 import com.dpaulenk.webproxy.outbound.OutboundProxyHandler;
+import com.dpaulenk.webproxy.outbound.ParentConnectHandler;
+import com.dpaulenk.webproxy.outbound.ParentProxies;
+import com.dpaulenk.webproxy.outbound.ParentProxy;
 import com.dpaulenk.webproxy.utils.ProxyUtils;
-import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.apache.log4j.Logger;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.dpaulenk.webproxy.inbound.InboundHandlerState.*;
 import static com.dpaulenk.webproxy.utils.ProxyUtils.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 
 public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, InboundHandlerState> {
     private static final Logger logger = Logger.getLogger(OutboundProxyHandler.class);
 
     private final WebProxyServer proxyServer;
-
-    private OutboundProxyHandler outboundHandler;
+    private final HeaderRewriter headerRewriter;
+    private final ProxyMetrics metrics;
+    private final AdmissionController admission;
+    private final HedgingPolicy hedging;
+
+    //replaced from the outbound loops, when a parent proxy is retried or another attempt takes over
+    private volatile OutboundProxyHandler outboundHandler;
+
+    //attempts of the current exchange, they are started and finished on both loops
+    private final Object attemptsLock = new Object();
+    private int exchangeId;
+    private String exchangeHostAndPort;
+    //request, that can be sent once more, while no response has started; null for requests with a body
+    private HttpRequest replayable;
+    //the whole request was forwarded, so it can be replayed
+    private boolean replayArmed;
+    private boolean retried;
+    //attempt, that delivers the response, once it has started
+    private OutboundProxyHandler responder;
+    private OutboundProxyHandler hedge;
+    private boolean hedgeReplayed;
+    //current attempt, that has yet to replay the request; the client is held, until it has
+    private OutboundProxyHandler awaitingReplay;
+    private ScheduledFuture<?> hedgeTimer;
+    //addresses of the last lookup, further attempts to the same host reuse them
+    private volatile Resolved resolved;
+
+    //slots taken from the admission controller, exchanges are finished on the outbound loop
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    //when the current request was read, for the total exchange time
+    private long exchangeStart;
+
+    //responses pass a cache handler, that strips surrogate keys once it has read them
+    private boolean caching;
 
     public InboundProxyHandler(WebProxyServer proxyServer) {
         this.proxyServer = proxyServer;
+        this.headerRewriter = proxyServer.getHeaderRewriter();
+        this.metrics = proxyServer.metrics();
+        this.admission = proxyServer.admissionController();
+        this.hedging = proxyServer.hedgingPolicy();
         setCurrentState(INITIAL);
     }
 
@@ -53,6 +107,7 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
             case WAITING_ESTEBLISHED_RESPONSE:
                 ReferenceCountUtil.retain(msg);
                 missedChunks.add(msg);
+                metrics.pendingChunkBytes.add(contentSize(msg));
                 //we stop reading, when connecting to remote server
 //                throw new IllegalStateException("Shouldn't happen");
                 break;
@@ -66,23 +121,94 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
     }
 
     private void purgeMissedChunks() {
+        //a request may be held once more, while purging
+        List<HttpObject> missed = new ArrayList<HttpObject>(missedChunks);
+        missedChunks.clear();
+        for (HttpObject chunk : missed) {
+            metrics.pendingChunkBytes.add(-contentSize(chunk));
+            channelReadHttpObject(ctx, chunk);
+            ReferenceCountUtil.release(chunk);
+        }
+    }
+
+    private void releaseMissedChunks() {
         for (HttpObject missed : missedChunks) {
-            channelReadHttpObject(ctx, missed);
+            metrics.pendingChunkBytes.add(-contentSize(missed));
             ReferenceCountUtil.release(missed);
         }
         missedChunks.clear();
     }
 
+    private static int contentSize(HttpObject msg) {
+        return msg instanceof HttpContent ? ((HttpContent) msg).content().readableBytes() : 0;
+    }
+
     private void readNextContent(HttpObject msg) {
         outboundHandler.writeToChannel(msg);
 
         if (msg instanceof LastHttpContent) {
             setCurrentState(INITIAL);
+            requestForwarded();
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        //handlers are set up ahead of this one
+        caching = ctx.pipeline().get(InboundCacheHandler.class) != null;
+        super.handlerAdded(ctx);
+    }
+
+    public boolean isCaching() {
+        return caching;
+    }
+
+    public long exchangeStart() {
+        return exchangeStart;
+    }
+
+    /**
+     * Called, when the last chunk of the response is written.
+     */
+    public void exchangeFinished() {
+        releaseAdmission();
+
+        IdleReaper reaper = idleReaper();
+        if (reaper != null) {
+            reaper.resume();
         }
     }
 
+    private void releaseAdmission() {
+        for (;;) {
+            int current = admitted.get();
+            if (current == 0) {
+                return;
+            }
+            if (admitted.compareAndSet(current, current - 1)) {
+                admission.release(1);
+                return;
+            }
+        }
+    }
+
+    private IdleReaper idleReaper() {
+        return channel.pipeline().get(IdleReaper.class);
+    }
+
     private void readInitialRequest(HttpRequest req) {
-        req = copyRequest(req);
+        if (!closePreviousExchange()) {
+            holdUntilReplayed(req);
+            return;
+        }
+
+        exchangeStart = System.nanoTime();
+
+        //the upstream timeouts take over, until the response is written
+        IdleReaper reaper = idleReaper();
+        if (reaper != null) {
+            reaper.suspend();
+        }
 
         String hostAndPort = ProxyUtils.getHostAndPort(req);
         if (hostAndPort == null || hostAndPort.isEmpty()) {
@@ -98,21 +224,79 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
             }
         }
 
+        if (!admission.tryAdmit()) {
+            writeServiceUnavailable(req);
+            setCurrentState(DISCONNECTED);
+            return;
+        }
+        admitted.incrementAndGet();
+
         if (outboundHandler == null) {
             createOutboundHandler(req, hostAndPort);
             return;
         }
 
-        prepareProxyRequest(req);
+        beginExchange(req, hostAndPort);
+        headerRewriter.rewriteRequest(req, outboundHandler.parent() != null);
         outboundHandler.writeToChannel(req);
 
         if (req instanceof LastHttpContent) {
             setCurrentState(INITIAL);
+            requestForwarded();
         } else {
             setCurrentState(READING_CONTENT);
         }
     }
 
+    /**
+     * Once the next request is read, the previous one is neither retried nor hedged anymore.
+     *
+     * @return false, if an attempt has yet to replay the previous request
+     */
+    private boolean closePreviousExchange() {
+        synchronized (attemptsLock) {
+            if (awaitingReplay != null) {
+                return false;
+            }
+            replayArmed = false;
+            cancelHedge();
+            return true;
+        }
+    }
+
+    /**
+     * The request goes after the replayed one, the client is paused until then.
+     */
+    private void holdUntilReplayed(HttpRequest req) {
+        setCurrentState(WAITING_OUTBOUND_CONNECTION);
+        ReferenceCountUtil.retain(req);
+        missedChunks.add(req);
+        metrics.pendingChunkBytes.add(contentSize(req));
+        stopReading();
+    }
+
+    private void replayed() {
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (attemptsLock) {
+                    if (awaitingReplay != null) {
+                        //another attempt took over since
+                        return;
+                    }
+                }
+                if (currentState != WAITING_OUTBOUND_CONNECTION) {
+                    return;
+                }
+                setCurrentState(INITIAL);
+                purgeMissedChunks();
+                if (currentState != WAITING_OUTBOUND_CONNECTION) {
+                    startReading();
+                }
+            }
+        });
+    }
+
     private void createOutboundHandler(HttpRequest initialRequest, String hostAndPort) {
         setCurrentState(WAITING_OUTBOUND_CONNECTION);
 
@@ -120,44 +304,139 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
 
         stopReading();
 
-        outboundHandler = new OutboundProxyHandler(this);
-
-        connectToRemoteServer(hostAndPort, initialRequest);
+        connectToRemoteServer(hostAndPort, initialRequest, null);
     }
 
-    private void connectToRemoteServer(String hostAndPort, final HttpRequest initialRequest) {
-        Bootstrap b =
-            new Bootstrap()
-                .group(proxyServer.getOutboundEventLoopGroup())
-                .channel(NioSocketChannel.class)
-                .handler(
-                    new OutboundInitializer(outboundHandler, isConnectRequest(initialRequest), proxyServer.options().maxChunkSize()));
-
-        String remoteHost = hostAndPort;
-        int remotePort = 80;
-
-        int colonPos = hostAndPort.indexOf(":");
-        if (colonPos != -1) {
-            remoteHost = hostAndPort.substring(0, colonPos);
-            remotePort = Integer.parseInt(hostAndPort.substring(colonPos + 1));
+    /**
+     * @param failedParent parent, that couldn't be connected to, the connection is retried once with another one
+     */
+    private void connectToRemoteServer(final String hostAndPort, final HttpRequest initialRequest,
+                                       final ParentProxy failedParent) {
+        String remoteHost = host(hostAndPort);
+        int remotePort = port(hostAndPort);
+
+        final boolean isConnect = isConnectRequest(initialRequest);
+
+        final ParentProxies parentProxies = proxyServer.getParentProxies();
+        final List<ParentProxy> parents = parentProxies.route(remoteHost);
+        final ParentProxy parent = parents == null ? null : parentProxies.select(parents, failedParent);
+        if (parents != null && parent == null) {
+            remoteConnectionFailed(initialRequest);
+            return;
         }
 
-        ChannelFuture connectFuture = b.connect(remoteHost, remotePort);
-        connectFuture.addListener(new ConnectionFutureListener(initialRequest) {
+        outboundHandler = new OutboundProxyHandler(this, headerRewriter, metrics, hedging, parent);
+        final ParentConnectHandler parentConnect =
+            parent != null && isConnect ? new ParentConnectHandler(parent, remoteHost + ":" + remotePort) : null;
+
+        Future<Channel> connectFuture = parent != null
+            ? connect(outboundHandler, parent.host(), parent.port(), null, isConnect, parentConnect)
+            : connectToOrigin(outboundHandler, remoteHost, remotePort, isConnect);
+        connectFuture.addListener(new ConnectionFutureListener<Future<Channel>>(initialRequest) {
             @Override
             protected void success() {
-                if (isConnectRequest(initialRequest)) {
+                if (parentConnect != null) {
+                    //the parent has to open the tunnel first
+                    ChannelFuture established = parentConnect.established();
+                    established.addListener(new ConnectionFutureListener<ChannelFuture>(initialRequest) {
+                        @Override
+                        protected void success() {
+                            sendConnectionEstablished(initialRequest);
+                        }
+                    });
+                } else if (isConnect) {
                     sendConnectionEstablished(initialRequest);
                 } else {
-                    remoteConnectionSucceded(initialRequest);
+                    remoteConnectionSucceded(initialRequest, hostAndPort);
+                }
+            }
+
+            @Override
+            protected void failure() {
+                if (parent == null) {
+                    super.failure();
+                    return;
+                }
+                ParentProxies.failed(parent);
+                if (failedParent == null && parents.size() > 1) {
+                    logger.warn("Can't connect to parent proxy " + parent.address() + ", retrying with another one");
+                    connectToRemoteServer(hostAndPort, initialRequest, parent);
+                } else {
+                    super.failure();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a warm connection to the origin, if there is one, see ConnectionPrewarmer.
+     */
+    private Future<Channel> connectToOrigin(OutboundProxyHandler handler, String host, int port, boolean isConnect) {
+        ConnectionPrewarmer prewarmer = proxyServer.connectionPrewarmer();
+        prewarmer.demand(host, port);
+        Future<Channel> warm = prewarmer.take(host, port, new OutboundInitializer(handler, isConnect, proxyServer, null));
+        if (warm != null) {
+            handler.connectedWarm();
+            return warm;
+        }
+        return connect(handler, host, port, null, isConnect, null);
+    }
+
+    /**
+     * Races the addresses of the host, see ConnectionRacer.
+     *
+     * @param used address of a previous attempt, it's tried last, or null
+     */
+    private Future<Channel> connect(OutboundProxyHandler handler, String host, int port, SocketAddress used,
+                                    boolean isConnect, ParentConnectHandler parentConnect) {
+        //resolve here rather than inside the racer, to tell DNS time from connect time
+        long resolveStart = System.nanoTime();
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            metrics.upstreamConnectFailures.increment();
+            return proxyServer.getOutboundEventLoopGroup().next().newFailedFuture(e);
+        }
+        metrics.dns.recordSince(resolveStart);
+        resolved = new Resolved(host, addresses);
+
+        return connect(handler, addresses, port, used, isConnect, parentConnect);
+    }
+
+    private Future<Channel> connect(OutboundProxyHandler handler, InetAddress[] addresses, int port, SocketAddress used,
+                                    boolean isConnect, ParentConnectHandler parentConnect) {
+        InetAddress last = used instanceof InetSocketAddress ? ((InetSocketAddress) used).getAddress() : null;
+        final long connectStart = System.nanoTime();
+        Future<Channel> connectFuture = proxyServer.connectionRacer().connect(
+            addresses, port, last, new OutboundInitializer(handler, isConnect, proxyServer, parentConnect));
+        connectFuture.addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    metrics.connect.recordSince(connectStart);
+                } else {
+                    metrics.upstreamConnectFailures.increment();
                 }
             }
         });
+        return connectFuture;
+    }
+
+    private static String host(String hostAndPort) {
+        int colonPos = hostAndPort.indexOf(":");
+        return colonPos == -1 ? hostAndPort : hostAndPort.substring(0, colonPos);
+    }
+
+    private static int port(String hostAndPort) {
+        int colonPos = hostAndPort.indexOf(":");
+        return colonPos == -1 ? 80 : Integer.parseInt(hostAndPort.substring(colonPos + 1));
     }
 
-    private void remoteConnectionSucceded(HttpRequest initialRequest) {
+    private void remoteConnectionSucceded(HttpRequest initialRequest, String hostAndPort) {
         if (initialRequest != null) {
-            prepareProxyRequest(initialRequest);
+            beginExchange(initialRequest, hostAndPort);
+            headerRewriter.rewriteRequest(initialRequest, outboundHandler.parent() != null);
             outboundHandler.writeToChannel(initialRequest);
 
             //we retained, when starting a connection
@@ -165,6 +444,7 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
 
             if (initialRequest instanceof LastHttpContent) {
                 setCurrentState(INITIAL);
+                requestForwarded();
             } else {
                 setCurrentState(READING_CONTENT);
             }
@@ -174,6 +454,258 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
         startReading();
     }
 
+    /**
+     * A new request goes to the current connection; GET and HEAD without a body can be hedged or retried,
+     * unless pipelined behind another one.
+     */
+    private void beginExchange(HttpRequest req, String hostAndPort) {
+        synchronized (attemptsLock) {
+            exchangeId++;
+            cancelHedge();
+            responder = null;
+            retried = false;
+            replayArmed = false;
+            exchangeHostAndPort = hostAndPort;
+            replayable = isReplayable(req) && !outboundHandler.hasOutstandingRequests() ? req : null;
+        }
+    }
+
+    private static boolean isReplayable(HttpRequest req) {
+        HttpMethod method = req.getMethod();
+        return (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method)) &&
+               !HttpHeaders.isTransferEncodingChunked(req) && HttpHeaders.getContentLength(req, 0) == 0;
+    }
+
+    /**
+     * The last chunk of the request is written, a second attempt would not see any of the client's chunks.
+     */
+    private void requestForwarded() {
+        synchronized (attemptsLock) {
+            if (replayable == null || responder != null) {
+                return;
+            }
+            replayArmed = true;
+            long delay = hedging.armed();
+            if (delay > 0) {
+                hedgeTimer = channel.eventLoop().schedule(new HedgeTask(exchangeId), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void cancelHedge() {
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+            hedgeTimer = null;
+        }
+        if (hedge != null) {
+            hedge.abandon();
+            hedge = null;
+        }
+    }
+
+    /**
+     * Called by an attempt, when its response head arrives.
+     *
+     * @return whether it delivers the response, otherwise another attempt was first
+     */
+    public boolean claimResponse(OutboundProxyHandler attempt) {
+        synchronized (attemptsLock) {
+            if (responder == attempt) {
+                return true;
+            }
+            if (responder != null || (attempt != outboundHandler && attempt != hedge)) {
+                return false;
+            }
+            responder = attempt;
+            replayable = null;
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+                hedgeTimer = null;
+            }
+
+            OutboundProxyHandler loser = attempt == hedge ? outboundHandler : hedge;
+            if (attempt == hedge) {
+                metrics.upstreamHedgeWins.increment();
+                outboundHandler = attempt;
+            }
+            hedge = null;
+            if (loser != null) {
+                loser.abandon();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Called by an attempt, that lost its connection before the response head.
+     *
+     * @return whether the exchange goes on with another attempt, otherwise the client is to be disconnected
+     */
+    public boolean attemptFailed(OutboundProxyHandler attempt) {
+        Attempt retry;
+        synchronized (attemptsLock) {
+            if (attempt == hedge) {
+                hedge = null;
+                return true;
+            }
+            if (attempt.isAbandoned() || attempt != outboundHandler) {
+                //replaced already
+                return true;
+            }
+            if (responder != null) {
+                return false;
+            }
+            if (hedge != null) {
+                if (!hedgeReplayed) {
+                    awaitingReplay = hedge;
+                }
+                outboundHandler = hedge;
+                hedge = null;
+                return true;
+            }
+            if (replayArmed && !retried && attempt.isRequestOnReused() && proxyServer.options().retryReusedConnections()) {
+                retried = true;
+                metrics.upstreamRetries.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Kept alive connection closed before the response, retrying: " + replayable.getUri());
+                }
+                retry = newAttempt(attempt);
+                awaitingReplay = retry.handler;
+                outboundHandler = retry.handler;
+            } else {
+                return false;
+            }
+        }
+        //connects outside the lock, a lookup may take a while
+        retry.start();
+        return true;
+    }
+
+    /**
+     * Prepares to send the request once more on a new connection: to another parent or another address of the origin,
+     * if there is one. Called with the attempts lock held, the attempt is started after it's released.
+     */
+    private Attempt newAttempt(OutboundProxyHandler previous) {
+        ParentProxy parent = previous.parent();
+        if (parent != null) {
+            ParentProxies parentProxies = proxyServer.getParentProxies();
+            List<ParentProxy> parents = parentProxies.route(host(exchangeHostAndPort));
+            ParentProxy other = parents == null ? null : parentProxies.select(parents, parent);
+            if (other != null) {
+                parent = other;
+            }
+        }
+        String host = parent != null ? parent.host() : host(exchangeHostAndPort);
+        int port = parent != null ? parent.port() : port(exchangeHostAndPort);
+
+        OutboundProxyHandler handler = new OutboundProxyHandler(this, headerRewriter, metrics, hedging, parent);
+        return new Attempt(handler, host, port, previous.remoteAddress(), replayable, exchangeId);
+    }
+
+    /**
+     * A retry or a hedge of the current request, on its own connection.
+     */
+    private final class Attempt {
+        final OutboundProxyHandler handler;
+        private final String host;
+        private final int port;
+        private final SocketAddress used;
+        private final HttpRequest request;
+        private final int exchange;
+
+        Attempt(OutboundProxyHandler handler, String host, int port, SocketAddress used, HttpRequest request,
+                int exchange) {
+            this.handler = handler;
+            this.host = host;
+            this.port = port;
+            this.used = used;
+            this.request = request;
+            this.exchange = exchange;
+        }
+
+        void start() {
+            Resolved last = resolved;
+            Future<Channel> connectFuture = last != null && last.host.equals(host)
+                ? connect(handler, last.addresses, port, used, false, null)
+                : connect(handler, host, port, used, false, null);
+            connectFuture.addListener(new GenericFutureListener<Future<Channel>>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    if (future.isSuccess()) {
+                        replay(handler, request, exchange);
+                    } else if (!attemptFailed(handler)) {
+                        remoteConnectionFailed(request);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class Resolved {
+        final String host;
+        final InetAddress[] addresses;
+
+        Resolved(String host, InetAddress[] addresses) {
+            this.host = host;
+            this.addresses = addresses;
+        }
+    }
+
+    private void replay(OutboundProxyHandler attempt, HttpRequest request, int exchange) {
+        synchronized (attemptsLock) {
+            if (exchange != exchangeId || responder != null || (attempt != outboundHandler && attempt != hedge)) {
+                attempt.abandon();
+                return;
+            }
+            attempt.writeToChannel(request);
+            if (!(request instanceof LastHttpContent)) {
+                attempt.writeToChannel(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+            if (attempt == hedge) {
+                hedgeReplayed = true;
+                return;
+            }
+            if (attempt == awaitingReplay) {
+                awaitingReplay = null;
+            }
+        }
+        replayed();
+    }
+
+    /**
+     * Sends a second attempt, when the response is late.
+     */
+    private final class HedgeTask implements Runnable {
+        private final int exchange;
+
+        HedgeTask(int exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run() {
+            Attempt attempt;
+            synchronized (attemptsLock) {
+                if (exchange != exchangeId || responder != null || hedge != null || !replayArmed ||
+                    replayable == null || outboundHandler == null) {
+                    return;
+                }
+                hedgeTimer = null;
+                if (!hedging.tryHedge()) {
+                    return;
+                }
+                metrics.upstreamHedges.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("No response in time, hedging: " + replayable.getUri());
+                }
+                attempt = newAttempt(outboundHandler);
+                hedge = attempt.handler;
+                hedgeReplayed = false;
+            }
+            attempt.start();
+        }
+    }
+
     /**
      * http://curl.haxx.se/rfc/draft-luotonen-web-proxy-tunneling-01.txt
      */
@@ -183,14 +715,14 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
         DefaultFullHttpResponse res = simpleResponse(CONNECTION_ESTABLISHED, null);
         res.headers().set(HttpHeaders.Names.CONNECTION, "keep-alive");
         res.headers().set(PROXY_CONNECTION, "keep-alive");
-        ProxyUtils.addViaHeader(res);
+        headerRewriter.addVia(res);
 
-        writeToChannel(res).addListener(new ConnectionFutureListener(initialRequest) {
+        writeToChannel(res).addListener(new ConnectionFutureListener<ChannelFuture>(initialRequest) {
             @Override
             protected void success() {
                 setCurrentState(READING_CONTENT);
 
-                missedChunks.clear();
+                releaseMissedChunks();
 
                 setupTunneling();
                 startReading();
@@ -200,6 +732,17 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
 
     private void setupTunneling() {
         channel.pipeline().remove("httpcodec");
+        tunneling = true;
+
+        //a tunnel is admitted like an exchange, but holds no slot, once established
+        releaseAdmission();
+
+        IdleReaper reaper = idleReaper();
+        if (reaper != null) {
+            reaper.use(proxyServer.tunnelTimeouts());
+            reaper.resume();
+        }
+        metrics.activeTunnels.increment();
     }
 
     private void remoteConnectionFailed(HttpRequest initialRequest) {
@@ -207,7 +750,9 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
     }
 
     private void writeBadGateway(HttpRequest request) {
-        logger.info("Sending Bad Gateway: " + request.getUri());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending Bad Gateway: " + request.getUri());
+        }
 
         DefaultFullHttpResponse res = simpleResponse(BAD_GATEWAY, "Bad Gateway: " + request.getUri());
         res.headers().set(HttpHeaders.Names.CONNECTION, "close");
@@ -215,8 +760,23 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
         disconnect();
     }
 
+    private void writeServiceUnavailable(HttpRequest request) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending Service Unavailable over the admission limit: " + request.getUri());
+        }
+
+        DefaultFullHttpResponse res = simpleResponse(SERVICE_UNAVAILABLE, "Service Unavailable: " + request.getUri());
+        res.headers().set(HttpHeaders.Names.RETRY_AFTER, proxyServer.options().admissionRetryAfterSeconds());
+        res.headers().set(HttpHeaders.Names.CONNECTION, "close");
+        //not retained, this one is written often under load
+        channel.writeAndFlush(res);
+        disconnect();
+    }
+
     private void writeBadRequestResponse(String message) {
-        logger.info("Sending Bad Request: " + message);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending Bad Request: " + message);
+        }
 
         DefaultFullHttpResponse res = simpleResponse(BAD_REQUEST, message);
         res.headers().set(HttpHeaders.Names.CONNECTION, "close");
@@ -224,6 +784,27 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
         disconnect();
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == WriteSpooler.Event.FULL && outboundHandler != null) {
+            //the client is too far behind even for the spool, wait for it
+            outboundHandler.pauseReading(PAUSED_BY_SPOOL);
+        } else if (evt == WriteSpooler.Event.DRAINED && outboundHandler != null) {
+            outboundHandler.resumeReading(PAUSED_BY_SPOOL);
+        } else if (evt == ClientThrottle.Event.PAUSE_CLIENT) {
+            pauseReading(PAUSED_BY_THROTTLE);
+        } else if (evt == ClientThrottle.Event.RESUME_CLIENT) {
+            resumeReading(PAUSED_BY_THROTTLE);
+        } else if (evt == ClientThrottle.Event.PAUSE_UPSTREAM && outboundHandler != null) {
+            //the client took more than its share, stop reading the response for it
+            outboundHandler.pauseReading(PAUSED_BY_THROTTLE);
+        } else if (evt == ClientThrottle.Event.RESUME_UPSTREAM && outboundHandler != null) {
+            outboundHandler.resumeReading(PAUSED_BY_THROTTLE);
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         logger.error("Error in inbound handler: ", cause);
@@ -235,13 +816,26 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseMissedChunks();
+        synchronized (attemptsLock) {
+            exchangeId++;
+            cancelHedge();
+            //nothing is retried for a client, that is gone
+            replayable = null;
+            replayArmed = false;
+        }
+        admission.release(admitted.getAndSet(0));
+        if (tunneling) {
+            tunneling = false;
+            metrics.activeTunnels.decrement();
+        }
         if (outboundHandler != null) {
             outboundHandler.disconnect();
         }
         disconnect();
     }
 
-    private abstract class ConnectionFutureListener implements ChannelFutureListener {
+    private abstract class ConnectionFutureListener<F extends Future<?>> implements GenericFutureListener<F> {
         private HttpRequest initialRequest;
 
         public ConnectionFutureListener(HttpRequest initialRequest) {
@@ -249,14 +843,18 @@ public class InboundProxyHandler extends AbstractProxyHandler<HttpRequest, Inbou
         }
 
         @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
+        public void operationComplete(F future) throws Exception {
             if (future.isSuccess()) {
                 success();
             } else {
-                remoteConnectionFailed(initialRequest);
+                failure();
             }
         }
 
         protected abstract void success();
+
+        protected void failure() {
+            remoteConnectionFailed(initialRequest);
+        }
     }
 }
\ No newline at end of file
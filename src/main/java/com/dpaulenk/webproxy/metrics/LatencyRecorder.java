@@ -0,0 +1,58 @@
+package com.dpaulenk.webproxy.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HDR histogram of a duration in microseconds. Event loops record into a {@link Recorder}
+ * without locks, readers fold its interval histograms into the totals since start.
+ */
+public class LatencyRecorder {
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final String name;
+    private final String help;
+
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+    //reader side, guarded by this
+    private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    public LatencyRecorder(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String help() {
+        return help;
+    }
+
+    public void recordNanos(long nanos) {
+        if (nanos >= 0) {
+            recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    /**
+     * Shorthand for recording the time passed since an earlier {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return copy of all values recorded since start
+     */
+    public synchronized Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total.copy();
+    }
+}
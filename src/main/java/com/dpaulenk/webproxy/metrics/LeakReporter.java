@@ -0,0 +1,69 @@
+package com.dpaulenk.webproxy.metrics;
+
+import io.netty.util.ResourceLeakDetector;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects buffer leaks reported by netty's sampling leak detector, which only logs them.
+ * The reports keep going to the regular logs, the latest ones are also kept here for the admin endpoint.
+ */
+public class LeakReporter extends AppenderSkeleton {
+    private static final int MAX_REPORTS = 16;
+
+    private final AtomicLong leaks = new AtomicLong();
+    private final Deque<String> reports = new ArrayDeque<String>();
+
+    public void install() {
+        setName("leak-reporter");
+        setThreshold(Level.ERROR);
+        Logger.getLogger(ResourceLeakDetector.class).addAppender(this);
+    }
+
+    public long leaks() {
+        return leaks.get();
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        String message = event.getRenderedMessage();
+        if (message == null || !message.startsWith("LEAK")) {
+            return;
+        }
+
+        leaks.incrementAndGet();
+        synchronized (reports) {
+            if (reports.size() == MAX_REPORTS) {
+                reports.removeFirst();
+            }
+            reports.addLast(event.getTimeStamp() + " " + message);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("leaks ").append(leaks.get()).append('\n');
+        synchronized (reports) {
+            for (String report : reports) {
+                sb.append('\n').append(report).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package com.dpaulenk.webproxy.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * Counts raw bytes and open channels, sits right after the socket, before any codec.
+ * Stateless, one instance per side is shared by all channels.
+ */
+@ChannelHandler.Sharable
+public class MetricsHandler extends ChannelDuplexHandler {
+    private final StripedCounter bytesIn;
+    private final StripedCounter bytesOut;
+    private final StripedCounter activeChannels;
+
+    //open channels, to sum up their unflushed writes on request, closed ones are removed by the group
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    public MetricsHandler(StripedCounter bytesIn, StripedCounter bytesOut, StripedCounter activeChannels) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.activeChannels = activeChannels;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        activeChannels.increment();
+        channels.add(ctx.channel());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        activeChannels.decrement();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        bytesIn.add(size(msg));
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        bytesOut.add(size(msg));
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * Bytes written, but not yet accepted by the sockets: traffic waiting for slow peers.
+     */
+    public long pendingWriteBytes() {
+        long pending = 0;
+        for (Channel channel : channels) {
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            if (buffer != null) {
+                pending += buffer.totalPendingWriteBytes();
+            }
+        }
+        return pending;
+    }
+
+    private static long size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,436 @@
+package com.dpaulenk.webproxy.metrics;
+
+import com.dpaulenk.webproxy.accesslog.AccessLog;
+import com.dpaulenk.webproxy.cache.CacheStats;
+import com.dpaulenk.webproxy.cache.ResponseCache;
+import com.dpaulenk.webproxy.inbound.AdmissionController;
+import com.dpaulenk.webproxy.inbound.ClientShares;
+import com.dpaulenk.webproxy.outbound.ConnectionPrewarmer;
+import com.dpaulenk.webproxy.outbound.HedgingPolicy;
+import org.HdrHistogram.Histogram;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Latency histograms and traffic counters of the proxy. Recording is lock-free,
+ * so it stays on in production; rendering happens only when someone asks for it.
+ */
+public class ProxyMetrics implements ProxyMetricsMBean {
+    private static final Logger logger = Logger.getLogger(ProxyMetrics.class);
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public final LatencyRecorder dns = new LatencyRecorder("webproxy_dns_micros",
+        "Upstream host name resolution time");
+    public final LatencyRecorder connect = new LatencyRecorder("webproxy_connect_micros",
+        "Upstream connection time, after the host was resolved");
+    public final LatencyRecorder ttfb = new LatencyRecorder("webproxy_upstream_ttfb_micros",
+        "Time from writing a request upstream to reading the response head");
+    public final LatencyRecorder exchange = new LatencyRecorder("webproxy_exchange_micros",
+        "Time from reading a client request to writing the last chunk of the upstream response");
+    public final LatencyRecorder cacheLookup = new LatencyRecorder("webproxy_cache_lookup_micros",
+        "Cache lookup time per request");
+
+    private final LatencyRecorder[] latencies = {dns, connect, ttfb, exchange, cacheLookup};
+
+    public final StripedCounter clientBytesIn = new StripedCounter();
+    public final StripedCounter clientBytesOut = new StripedCounter();
+    public final StripedCounter upstreamBytesIn = new StripedCounter();
+    public final StripedCounter upstreamBytesOut = new StripedCounter();
+
+    public final StripedCounter activeClientChannels = new StripedCounter();
+    public final StripedCounter activeUpstreamChannels = new StripedCounter();
+    public final StripedCounter activeTunnels = new StripedCounter();
+
+    public final StripedCounter blockListHits = new StripedCounter();
+
+    //connections closed by idle timeouts of their role, and ones rejected by connection limits
+    public final StripedCounter reapedKeepAlive = new StripedCounter();
+    public final StripedCounter reapedTunnels = new StripedCounter();
+    public final StripedCounter reapedUpstream = new StripedCounter();
+    public final StripedCounter rejectedByGlobalLimit = new StripedCounter();
+    public final StripedCounter rejectedByAddressLimit = new StripedCounter();
+    public final StripedCounter upstreamConnectFailures = new StripedCounter();
+    public final StripedCounter upstreamHedges = new StripedCounter();
+    public final StripedCounter upstreamHedgeWins = new StripedCounter();
+    public final StripedCounter upstreamRetries = new StripedCounter();
+    //pauses of client or origin reads, by the budget they were over
+    public final StripedCounter throttledRequests = new StripedCounter();
+    public final StripedCounter throttledBytes = new StripedCounter();
+    public final StripedCounter fairSharePauses = new StripedCounter();
+
+    //retained chunks, that wait for the upstream connection or for the cache to decide on the response
+    public final StripedCounter pendingChunkBytes = new StripedCounter();
+
+    //writes for slow peers, in spool files and not sent yet
+    public final StripedCounter spooledBytes = new StripedCounter();
+    public final StripedCounter spools = new StripedCounter();
+
+    private final LeakReporter leakReporter = new LeakReporter();
+
+    private final MetricsHandler clientHandler =
+        new MetricsHandler(clientBytesIn, clientBytesOut, activeClientChannels);
+    private final MetricsHandler upstreamHandler =
+        new MetricsHandler(upstreamBytesIn, upstreamBytesOut, activeUpstreamChannels);
+
+    private final ResponseCache responseCache;
+    private final CacheStats cacheStats;
+    private final AccessLog accessLog;
+    private final AdmissionController admission;
+    private final ClientShares clientShares;
+    private final HedgingPolicy hedging;
+    private final ConnectionPrewarmer prewarmer;
+
+    public ProxyMetrics(ResponseCache responseCache, AccessLog accessLog, AdmissionController admission,
+                        ClientShares clientShares, HedgingPolicy hedging, ConnectionPrewarmer prewarmer) {
+        this.responseCache = responseCache;
+        this.cacheStats = responseCache.stats();
+        this.accessLog = accessLog;
+        this.admission = admission;
+        this.clientShares = clientShares;
+        this.hedging = hedging;
+        this.prewarmer = prewarmer;
+    }
+
+    public MetricsHandler clientHandler() {
+        return clientHandler;
+    }
+
+    public MetricsHandler upstreamHandler() {
+        return upstreamHandler;
+    }
+
+    public LeakReporter leakReporter() {
+        return leakReporter;
+    }
+
+    /**
+     * Direct memory allocated by the JVM, pooled arenas included, -1 if the JVM doesn't report it.
+     */
+    public long directMemoryUsed() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            return (Long) server.getAttribute(new ObjectName("java.nio:type=BufferPool,name=direct"), "MemoryUsed");
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Where buffers are held, for the admin endpoint.
+     */
+    public String buffersReport() {
+        return "client_pending_write_bytes " + clientHandler.pendingWriteBytes() + "\n" +
+               "upstream_pending_write_bytes " + upstreamHandler.pendingWriteBytes() + "\n" +
+               "pending_chunk_bytes " + pendingChunkBytes.get() + "\n" +
+               "cache_resident_bytes " + responseCache.residentBytes() + "\n" +
+               "spooled_bytes " + spooledBytes.get() + "\n" +
+               "direct_memory_used_bytes " + directMemoryUsed() + "\n" +
+               leakReporter;
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, new ObjectName("com.dpaulenk.webproxy:type=ProxyMetrics"));
+        } catch (Exception e) {
+            logger.warn("Can't register metrics MBean: ", e);
+        }
+    }
+
+    /**
+     * Prometheus text exposition format: https://prometheus.io/docs/instrumenting/exposition_formats/
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        counter(sb, "webproxy_bytes_in_total", "Bytes read", null);
+        sample(sb, "webproxy_bytes_in_total", "side=\"client\"", clientBytesIn.get());
+        sample(sb, "webproxy_bytes_in_total", "side=\"upstream\"", upstreamBytesIn.get());
+
+        counter(sb, "webproxy_bytes_out_total", "Bytes written", null);
+        sample(sb, "webproxy_bytes_out_total", "side=\"client\"", clientBytesOut.get());
+        sample(sb, "webproxy_bytes_out_total", "side=\"upstream\"", upstreamBytesOut.get());
+
+        gauge(sb, "webproxy_active_channels", "Open channels");
+        sample(sb, "webproxy_active_channels", "side=\"client\"", activeClientChannels.get());
+        sample(sb, "webproxy_active_channels", "side=\"upstream\"", activeUpstreamChannels.get());
+
+        gauge(sb, "webproxy_active_tunnels", "Established CONNECT tunnels");
+        sample(sb, "webproxy_active_tunnels", null, activeTunnels.get());
+
+        counter(sb, "webproxy_cache_hits_total", "Requests served from cache", cacheStats.hits());
+        counter(sb, "webproxy_cache_misses_total", "Cacheable requests not found in cache", cacheStats.misses());
+        counter(sb, "webproxy_cache_evictions_total", "Entries evicted by the size limit", cacheStats.evictions());
+        counter(sb, "webproxy_cache_bypasses_total", "Lookups skipped for uris with uncacheable responses",
+                cacheStats.bypasses());
+        counter(sb, "webproxy_blocklist_hits_total", "Requests rejected by the block list", blockListHits.get());
+        counter(sb, "webproxy_upstream_connect_failures_total", "Failed upstream connections",
+                upstreamConnectFailures.get());
+        counter(sb, "webproxy_upstream_hedges_total", "Second attempts of requests with a late first byte",
+                upstreamHedges.get());
+        counter(sb, "webproxy_upstream_hedge_wins_total", "Hedges, that answered before the first attempt",
+                upstreamHedgeWins.get());
+        counter(sb, "webproxy_upstream_retries_total", "Requests sent again after a kept alive connection closed",
+                upstreamRetries.get());
+        counter(sb, "webproxy_reaped_connections_total", "Connections closed by idle timeouts", null);
+        sample(sb, "webproxy_reaped_connections_total", "role=\"keepalive\"", reapedKeepAlive.get());
+        sample(sb, "webproxy_reaped_connections_total", "role=\"tunnel\"", reapedTunnels.get());
+        sample(sb, "webproxy_reaped_connections_total", "role=\"upstream\"", reapedUpstream.get());
+        counter(sb, "webproxy_rejected_connections_total", "Client connections over the connection limits", null);
+        sample(sb, "webproxy_rejected_connections_total", "limit=\"global\"", rejectedByGlobalLimit.get());
+        sample(sb, "webproxy_rejected_connections_total", "limit=\"address\"", rejectedByAddressLimit.get());
+        counter(sb, "webproxy_throttle_pauses_total", "Reads paused for clients over their budget", null);
+        sample(sb, "webproxy_throttle_pauses_total", "budget=\"requests\"", throttledRequests.get());
+        sample(sb, "webproxy_throttle_pauses_total", "budget=\"bytes\"", throttledBytes.get());
+        sample(sb, "webproxy_throttle_pauses_total", "budget=\"fair_share\"", fairSharePauses.get());
+        counter(sb, "webproxy_admission_rejected_total", "Exchanges answered with 503 over the admission limit",
+                admission.rejected());
+        counter(sb, "webproxy_access_log_written_total", "Access log records written", accessLog.written());
+        counter(sb, "webproxy_access_log_dropped_total", "Access log records dropped, because the writer fell behind",
+                accessLog.dropped());
+
+        gauge(sb, "webproxy_admission_limit", "Exchanges with origins allowed in flight");
+        sample(sb, "webproxy_admission_limit", null, admission.limit());
+        gauge(sb, "webproxy_admission_in_flight", "Exchanges with origins in flight");
+        sample(sb, "webproxy_admission_in_flight", null, admission.inFlight());
+        gauge(sb, "webproxy_event_loop_lag_micros", "Scheduling lag of the slowest event loop");
+        sample(sb, "webproxy_event_loop_lag_micros", null, admission.lagMicros());
+        gauge(sb, "webproxy_event_loop_pending_tasks", "Pending tasks of the busiest event loop");
+        sample(sb, "webproxy_event_loop_pending_tasks", null, admission.pendingTasks());
+        gauge(sb, "webproxy_accept_paused", "1, while new connections are not accepted");
+        sample(sb, "webproxy_accept_paused", null, admission.isAcceptPaused() ? 1 : 0);
+        gauge(sb, "webproxy_client_addresses", "Client addresses with a budget");
+        sample(sb, "webproxy_client_addresses", null, clientShares.clients());
+        gauge(sb, "webproxy_fair_share_quantum_bytes", "Bytes per client address and round, 0 while not congested");
+        sample(sb, "webproxy_fair_share_quantum_bytes", null, clientShares.quantum());
+
+        gauge(sb, "webproxy_hedge_delay_micros", "Time to first byte, after which a request is hedged, 0 until learned");
+        sample(sb, "webproxy_hedge_delay_micros", null, hedging.delayMicros());
+
+        gauge(sb, "webproxy_prewarmed_connections", "Idle connections opened to hot origins ahead of demand");
+        sample(sb, "webproxy_prewarmed_connections", null, prewarmer.warmConnections());
+        counter(sb, "webproxy_prewarm_opened_total", "Connections opened ahead of demand", prewarmer.opened());
+        counter(sb, "webproxy_prewarm_taken_total", "Upstream connections, that were taken warm", prewarmer.taken());
+
+        gauge(sb, "webproxy_buffered_bytes", "Bytes held in buffers by use");
+        sample(sb, "webproxy_buffered_bytes", "use=\"client_writes\"", clientHandler.pendingWriteBytes());
+        sample(sb, "webproxy_buffered_bytes", "use=\"upstream_writes\"", upstreamHandler.pendingWriteBytes());
+        sample(sb, "webproxy_buffered_bytes", "use=\"pending_chunks\"", pendingChunkBytes.get());
+        sample(sb, "webproxy_buffered_bytes", "use=\"cache\"", responseCache.residentBytes());
+
+        gauge(sb, "webproxy_spooled_bytes", "Bytes in spool files, not yet sent to slow peers");
+        sample(sb, "webproxy_spooled_bytes", null, spooledBytes.get());
+        counter(sb, "webproxy_spools_total", "Times writes to a slow peer were spooled to disk", spools.get());
+
+        gauge(sb, "webproxy_direct_memory_bytes", "Direct memory used by the JVM");
+        sample(sb, "webproxy_direct_memory_bytes", null, directMemoryUsed());
+
+        counter(sb, "webproxy_buffer_leaks_total", "Buffer leaks reported by the sampling leak detector",
+                leakReporter.leaks());
+
+        for (LatencyRecorder latency : latencies) {
+            summary(sb, latency);
+        }
+
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, Long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        if (value != null) {
+            sample(sb, name, null, value);
+        }
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+    }
+
+    private static void summary(StringBuilder sb, LatencyRecorder latency) {
+        Histogram h = latency.snapshot();
+        String name = latency.name();
+
+        sb.append("# HELP ").append(name).append(' ').append(latency.help()).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double q : QUANTILES) {
+            sample(sb, name, "quantile=\"" + q + "\"", h.getValueAtPercentile(q * 100));
+        }
+        sample(sb, name, "quantile=\"1.0\"", h.getMaxValue());
+        sample(sb, name + "_sum", null, (long) (h.getMean() * h.getTotalCount()));
+        sample(sb, name + "_count", null, h.getTotalCount());
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public long getClientBytesIn() {
+        return clientBytesIn.get();
+    }
+
+    @Override
+    public long getClientBytesOut() {
+        return clientBytesOut.get();
+    }
+
+    @Override
+    public long getUpstreamBytesIn() {
+        return upstreamBytesIn.get();
+    }
+
+    @Override
+    public long getUpstreamBytesOut() {
+        return upstreamBytesOut.get();
+    }
+
+    @Override
+    public long getActiveClientChannels() {
+        return activeClientChannels.get();
+    }
+
+    @Override
+    public long getActiveUpstreamChannels() {
+        return activeUpstreamChannels.get();
+    }
+
+    @Override
+    public long getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheStats.hits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheStats.misses();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheStats.evictions();
+    }
+
+    @Override
+    public long getCacheBypasses() {
+        return cacheStats.bypasses();
+    }
+
+    @Override
+    public long getBlockListHits() {
+        return blockListHits.get();
+    }
+
+    @Override
+    public long getUpstreamConnectFailures() {
+        return upstreamConnectFailures.get();
+    }
+
+    @Override
+    public long getAccessLogWritten() {
+        return accessLog.written();
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return accessLog.dropped();
+    }
+
+    @Override
+    public long getClientPendingWriteBytes() {
+        return clientHandler.pendingWriteBytes();
+    }
+
+    @Override
+    public long getUpstreamPendingWriteBytes() {
+        return upstreamHandler.pendingWriteBytes();
+    }
+
+    @Override
+    public long getPendingChunkBytes() {
+        return pendingChunkBytes.get();
+    }
+
+    @Override
+    public long getSpooledBytes() {
+        return spooledBytes.get();
+    }
+
+    @Override
+    public long getCacheResidentBytes() {
+        return responseCache.residentBytes();
+    }
+
+    @Override
+    public long getDirectMemoryUsed() {
+        return directMemoryUsed();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reapedKeepAlive.get() + reapedTunnels.get() + reapedUpstream.get();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedByGlobalLimit.get() + rejectedByAddressLimit.get();
+    }
+
+    @Override
+    public long getAdmissionRejected() {
+        return admission.rejected();
+    }
+
+    @Override
+    public long getAdmissionLimit() {
+        return admission.limit();
+    }
+
+    @Override
+    public long getEventLoopLagMicros() {
+        return admission.lagMicros();
+    }
+
+    @Override
+    public long getBufferLeaks() {
+        return leakReporter.leaks();
+    }
+
+    @Override
+    public long getDnsP99Micros() {
+        return dns.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getConnectP99Micros() {
+        return connect.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getTtfbP99Micros() {
+        return ttfb.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getExchangeP99Micros() {
+        return exchange.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getCacheLookupP99Micros() {
+        return cacheLookup.snapshot().getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,70 @@
+package com.dpaulenk.webproxy.metrics;
+
+/**
+ * JMX view of {@link ProxyMetrics}, latencies are in microseconds.
+ */
+public interface ProxyMetricsMBean {
+    long getClientBytesIn();
+
+    long getClientBytesOut();
+
+    long getUpstreamBytesIn();
+
+    long getUpstreamBytesOut();
+
+    long getActiveClientChannels();
+
+    long getActiveUpstreamChannels();
+
+    long getActiveTunnels();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    long getCacheBypasses();
+
+    long getBlockListHits();
+
+    long getUpstreamConnectFailures();
+
+    long getAccessLogWritten();
+
+    long getAccessLogDropped();
+
+    long getClientPendingWriteBytes();
+
+    long getUpstreamPendingWriteBytes();
+
+    long getPendingChunkBytes();
+
+    long getSpooledBytes();
+
+    long getCacheResidentBytes();
+
+    long getDirectMemoryUsed();
+
+    long getAdmissionRejected();
+
+    long getAdmissionLimit();
+
+    long getEventLoopLagMicros();
+
+    long getBufferLeaks();
+
+    long getReapedConnections();
+
+    long getRejectedConnections();
+
+    long getDnsP99Micros();
+
+    long getConnectP99Micros();
+
+    long getTtfbP99Micros();
+
+    long getExchangeP99Micros();
+
+    long getCacheLookupP99Micros();
+}
@@ -0,0 +1,40 @@
+package com.dpaulenk.webproxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths, that many event loops bump at once: every thread adds to its own stripe,
+ * so they don't fight over one cache line. Reading sums all stripes.
+ */
+public class StripedCounter {
+    private static final int STRIPES = 32;
+    //longs per stripe, so neighbouring stripes sit on different cache lines
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+}
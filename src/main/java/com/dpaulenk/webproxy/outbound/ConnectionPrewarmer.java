@@ -0,0 +1,478 @@
+package com.dpaulenk.webproxy.outbound;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps connections to hot origins open ahead of demand, so bursts don't wait for connects.
+ * <p>
+ * Every second the connects needed by each origin are counted into a rate, and into the minute of the hour,
+ * remembered across hours: the expected rate is the highest of the current one and those of this and the next
+ * minute in past hours, so traffic, that comes on the hour, finds connections waiting. An origin gets as many
+ * warm connections, as it's expected to need over the demand period, the hottest ones first, up to the global cap.
+ * <p>
+ * Warm connections have no handlers but their own, that drops them, when the origin closes them. Those idle
+ * longer than the origin would keep them, are replaced. Only direct connections are kept warm, parents have
+ * their own load accounting.
+ */
+public class ConnectionPrewarmer implements TimerTask {
+    private static final Logger logger = Logger.getLogger(ConnectionPrewarmer.class);
+
+    private static final long PERIOD_MILLIS = 1000;
+    //weight of the last second in the rate, and of the last hour in a minute of the hour
+    private static final double RATE_ALPHA = 0.3;
+    private static final double HOURLY_ALPHA = 0.5;
+    //origins, that are counted, new ones are ignored over that, until cold ones are dropped
+    private static final int MAX_ORIGINS = 4096;
+    //rates below that are no demand
+    private static final double COLD_RATE = 0.001;
+
+    private final WebProxyServer proxyServer;
+
+    private final ConcurrentMap<String, Origin> origins = new ConcurrentHashMap<String, Origin>();
+
+    private final AtomicInteger warmConnections = new AtomicInteger();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong taken = new AtomicLong();
+
+    //lookups block, they are kept off the event loops; a slow one only delays the warm connections of other origins
+    private final ExecutorService resolver =
+        Executors.newSingleThreadExecutor(new DefaultThreadFactory("prewarm-resolver", true));
+
+    private Timer timer;
+    private volatile boolean stopped;
+
+    public ConnectionPrewarmer(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    public synchronized void start(Timer timer) {
+        this.timer = timer;
+        timer.newTimeout(this, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        stopped = true;
+        resolver.shutdownNow();
+        for (Origin origin : origins.values()) {
+            origin.trim(0, 0);
+        }
+    }
+
+    /**
+     * A connection to the origin is needed.
+     */
+    public void demand(String host, int port) {
+        if (!proxyServer.options().prewarmConnections()) {
+            return;
+        }
+        String key = key(host, port);
+        Origin origin = origins.get(key);
+        if (origin == null) {
+            if (origins.size() >= MAX_ORIGINS) {
+                return;
+            }
+            Origin created = new Origin(host, port);
+            origin = origins.putIfAbsent(key, created);
+            if (origin == null) {
+                origin = created;
+            }
+        }
+        origin.connects.incrementAndGet();
+    }
+
+    /**
+     * Sets up the initializer on a warm connection to the origin. If it was closed meanwhile, the origin is
+     * connected to, like without a warm one.
+     *
+     * @return the connection, null if there is no warm one
+     */
+    public Future<Channel> take(final String host, final int port, final ChannelHandler initializer) {
+        Origin origin = origins.get(key(host, port));
+        final Channel channel = origin == null ? null : origin.poll();
+        if (channel == null) {
+            return null;
+        }
+        taken.incrementAndGet();
+
+        final Promise<Channel> result = channel.eventLoop().newPromise();
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!channel.isActive()) {
+                    try {
+                        resolver.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                connect(host, port, initializer, result);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        //stopped
+                        result.setFailure(e);
+                    }
+                    return;
+                }
+                //as if the initializer had been there, when the channel was registered and connected
+                ChannelPipeline p = channel.pipeline();
+                p.remove(WarmHandler.class);
+                p.addLast(initializer);
+                p.fireChannelRegistered();
+                p.fireChannelActive();
+                result.setSuccess(channel);
+            }
+        });
+        return result;
+    }
+
+    private void connect(String host, int port, ChannelHandler initializer, final Promise<Channel> result) {
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            result.setFailure(e);
+            return;
+        }
+        Future<Channel> connect = proxyServer.connectionRacer().connect(addresses, port, null, initializer);
+        connect.addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    result.setSuccess(future.getNow());
+                } else {
+                    result.setFailure(future.cause());
+                }
+            }
+        });
+    }
+
+    public int warmConnections() {
+        return warmConnections.get();
+    }
+
+    public long opened() {
+        return opened.get();
+    }
+
+    public long taken() {
+        return taken.get();
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (stopped) {
+            return;
+        }
+        try {
+            prewarm();
+        } catch (Exception e) {
+            logger.error("Error while prewarming connections", e);
+        } finally {
+            timer.newTimeout(this, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void prewarm() {
+        WebProxyOptions options = proxyServer.options();
+        boolean enabled = options.prewarmConnections();
+        long nowMillis = System.currentTimeMillis();
+        int minute = (int) (nowMillis / 60000 % 60);
+
+        List<Origin> hottest = new ArrayList<Origin>(origins.size());
+        for (Iterator<Origin> it = origins.values().iterator(); it.hasNext(); ) {
+            Origin origin = it.next();
+            origin.tick(minute);
+            if (enabled && origin.expected > COLD_RATE) {
+                hottest.add(origin);
+            } else {
+                origin.trim(0, 0);
+                if (origin.isCold()) {
+                    it.remove();
+                }
+            }
+        }
+        Collections.sort(hottest, new Comparator<Origin>() {
+            @Override
+            public int compare(Origin a, Origin b) {
+                return Double.compare(b.expected, a.expected);
+            }
+        });
+
+        int budget = options.prewarmMaxConnections();
+        long maxIdle = TimeUnit.MILLISECONDS.toNanos(options.prewarmIdleMillis());
+        for (Origin origin : hottest) {
+            int target = (int) Math.round(origin.expected * options.prewarmDemandMillis() / 1000.0);
+            target = Math.min(Math.min(target, options.prewarmMaxPerOrigin()), budget);
+            budget -= target;
+
+            origin.trim(target, maxIdle);
+            int missing = target - origin.size() - origin.pending.get();
+            if (missing > 0) {
+                origin.open(missing);
+            }
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("enabled ").append(proxyServer.options().prewarmConnections()).append('\n');
+        sb.append("warm ").append(warmConnections()).append(" opened ").append(opened())
+          .append(" taken ").append(taken()).append('\n');
+        List<Origin> sorted = new ArrayList<Origin>(origins.values());
+        Collections.sort(sorted, new Comparator<Origin>() {
+            @Override
+            public int compare(Origin a, Origin b) {
+                return Double.compare(b.expected, a.expected);
+            }
+        });
+        for (Origin origin : sorted) {
+            sb.append(origin).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Demand and warm connections of an origin; rates are updated by the timer thread only.
+     */
+    private final class Origin {
+        final String host;
+        final int port;
+
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger pending = new AtomicInteger();
+
+        //connects per second
+        double rate;
+        //connects per minute of the hour, in past hours, and so far in the current minute
+        final double[] hourly = new double[60];
+        int minute = -1;
+        int connectsThisMinute;
+        volatile double expected;
+
+        //oldest first, guarded by itself
+        private final ArrayDeque<Warm> warm = new ArrayDeque<Warm>();
+
+        Origin(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void tick(int currentMinute) {
+            int count = connects.getAndSet(0);
+            rate += RATE_ALPHA * (count - rate);
+
+            if (currentMinute != minute) {
+                if (minute != -1) {
+                    hourly[minute] += HOURLY_ALPHA * (connectsThisMinute - hourly[minute]);
+                }
+                minute = currentMinute;
+                connectsThisMinute = 0;
+            }
+            connectsThisMinute += count;
+
+            double usual = Math.max(hourly[currentMinute], hourly[(currentMinute + 1) % 60]) / 60;
+            expected = Math.max(rate, usual);
+        }
+
+        boolean isCold() {
+            if (rate > COLD_RATE || size() > 0 || pending.get() > 0) {
+                return false;
+            }
+            for (double perMinute : hourly) {
+                if (perMinute / 60 > COLD_RATE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            synchronized (warm) {
+                return warm.size();
+            }
+        }
+
+        /**
+         * @return the newest warm connection, that is still open, or null
+         */
+        Channel poll() {
+            synchronized (warm) {
+                for (;;) {
+                    Warm newest = warm.pollLast();
+                    if (newest == null) {
+                        return null;
+                    }
+                    warmConnections.decrementAndGet();
+                    if (newest.channel.isActive()) {
+                        return newest.channel;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Closes connections over the target, and those idle longer than max idle nanos, if that's not 0.
+         */
+        void trim(int target, long maxIdle) {
+            List<Channel> closing = new ArrayList<Channel>();
+            long now = System.nanoTime();
+            synchronized (warm) {
+                while (!warm.isEmpty() &&
+                       (warm.size() > target || (maxIdle > 0 && now - warm.peekFirst().since > maxIdle))) {
+                    closing.add(warm.pollFirst().channel);
+                    warmConnections.decrementAndGet();
+                }
+            }
+            for (Channel channel : closing) {
+                channel.close();
+            }
+        }
+
+        void open(int count) {
+            pending.addAndGet(count);
+            resolver.execute(new Opener(this, count));
+        }
+
+        void add(Channel channel) {
+            synchronized (warm) {
+                warm.addLast(new Warm(channel));
+                warmConnections.incrementAndGet();
+            }
+        }
+
+        void remove(Channel channel) {
+            synchronized (warm) {
+                for (Iterator<Warm> it = warm.iterator(); it.hasNext(); ) {
+                    if (it.next().channel == channel) {
+                        it.remove();
+                        warmConnections.decrementAndGet();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + " expected_per_sec " + String.format("%.2f", expected) +
+                   " warm " + size() + " pending " + pending.get();
+        }
+    }
+
+    private final class Opener implements Runnable {
+        private final Origin origin;
+        private final int count;
+
+        Opener(Origin origin, int count) {
+            this.origin = origin;
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            InetAddress[] addresses;
+            try {
+                addresses = InetAddress.getAllByName(origin.host);
+            } catch (UnknownHostException e) {
+                origin.pending.addAndGet(-count);
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                Future<Channel> connect =
+                    proxyServer.connectionRacer().connect(addresses, origin.port, null, new WarmHandler(origin));
+                connect.addListener(new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) throws Exception {
+                        origin.pending.decrementAndGet();
+                        if (!future.isSuccess()) {
+                            return;
+                        }
+                        Channel channel = future.getNow();
+                        if (stopped) {
+                            channel.close();
+                            return;
+                        }
+                        opened.incrementAndGet();
+                        origin.add(channel);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * The only handler of a warm connection: an origin has nothing to say before a request, so anything
+     * it sends, or a close, ends the connection.
+     */
+    private final class WarmHandler extends ChannelInboundHandlerAdapter {
+        private final Origin origin;
+
+        WarmHandler(Origin origin) {
+            this.origin = origin;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            origin.remove(ctx.channel());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+
+    private static final class Warm {
+        final Channel channel;
+        //nanos
+        final long since = System.nanoTime();
+
+        Warm(Channel channel) {
+            this.channel = channel;
+        }
+    }
+}
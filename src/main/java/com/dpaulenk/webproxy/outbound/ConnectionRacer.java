@@ -0,0 +1,277 @@
+package com.dpaulenk.webproxy.outbound;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to whichever address of a host answers first, "happy eyeballs", rfc 8305.
+ * <p>
+ * Addresses are ordered ipv6 and ipv4 in turn, starting with the family of the first resolved one, and those,
+ * that failed lately, go last. An attempt is started every connect attempt delay, or right away, when one fails;
+ * the first connection wins, the others are closed. Each attempt has its own connect timeout. An address, that
+ * was tried before the winner and didn't connect yet, counts as failed too, or it would delay every connect.
+ * <p>
+ * Attempts have no handlers but their own, and don't read: the pipeline is only set up on the winner,
+ * so a single handler can be raced over many connections.
+ */
+public class ConnectionRacer {
+    //failures remembered, beyond that expired ones are dropped, or all of them
+    private static final int MAX_REMEMBERED = 4096;
+
+    private final WebProxyServer proxyServer;
+
+    //address -> nanos, until which it's tried last
+    private final ConcurrentMap<InetAddress, Long> failedUntil = new ConcurrentHashMap<InetAddress, Long>();
+
+    public ConnectionRacer(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    /**
+     * @param last address to try after all others, or null
+     * @param initializer set up on the winning channel
+     * @return the connected channel, on the event loop all attempts run on
+     */
+    public Future<Channel> connect(InetAddress[] addresses, int port, InetAddress last, ChannelHandler initializer) {
+        EventLoop loop = proxyServer.getOutboundEventLoopGroup().next();
+        Race race = new Race(loop, order(addresses, last, System.nanoTime()), port, initializer);
+        loop.execute(race);
+        return race.result;
+    }
+
+    private List<InetAddress> order(InetAddress[] addresses, InetAddress last, long now) {
+        List<InetAddress> preferred = new ArrayList<InetAddress>();
+        List<InetAddress> other = new ArrayList<InetAddress>();
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address == firstIsV6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        List<InetAddress> interleaved = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                interleaved.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                interleaved.add(other.get(i));
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+        List<InetAddress> failed = new ArrayList<InetAddress>();
+        for (InetAddress address : interleaved) {
+            if (address.equals(last) || hasFailed(address, now)) {
+                failed.add(address);
+            } else {
+                ordered.add(address);
+            }
+        }
+        ordered.addAll(failed);
+        return ordered;
+    }
+
+    private boolean hasFailed(InetAddress address, long now) {
+        Long until = failedUntil.get(address);
+        if (until == null) {
+            return false;
+        }
+        if (until - now > 0) {
+            return true;
+        }
+        failedUntil.remove(address, until);
+        return false;
+    }
+
+    private void failed(InetAddress address) {
+        long now = System.nanoTime();
+        if (failedUntil.size() >= MAX_REMEMBERED) {
+            Iterator<Map.Entry<InetAddress, Long>> it = failedUntil.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() - now <= 0) {
+                    it.remove();
+                }
+            }
+            if (failedUntil.size() >= MAX_REMEMBERED) {
+                failedUntil.clear();
+            }
+        }
+        long memory = TimeUnit.MILLISECONDS.toNanos(proxyServer.options().addressFailureMemoryMillis());
+        if (memory > 0) {
+            failedUntil.put(address, now + memory);
+        }
+    }
+
+    private void succeeded(InetAddress address) {
+        failedUntil.remove(address);
+    }
+
+    /**
+     * A race of one connect; runs on its event loop only, starting the next attempt, when run.
+     */
+    private final class Race implements Runnable {
+        private final EventLoop loop;
+        private final List<InetAddress> addresses;
+        private final int port;
+        private final ChannelHandler initializer;
+        private final Promise<Channel> result;
+
+        //in the order of addresses
+        private final List<ChannelFuture> attempts = new ArrayList<ChannelFuture>();
+        private int next;
+        private int failures;
+        private boolean decided;
+        private ScheduledFuture<?> nextAttempt;
+
+        Race(EventLoop loop, List<InetAddress> addresses, int port, ChannelHandler initializer) {
+            this.loop = loop;
+            this.addresses = addresses;
+            this.port = port;
+            this.initializer = initializer;
+            this.result = loop.newPromise();
+        }
+
+        @Override
+        public void run() {
+            nextAttempt = null;
+            if (decided || next == addresses.size()) {
+                return;
+            }
+
+            WebProxyOptions options = proxyServer.options();
+            final InetAddress address = addresses.get(next++);
+            int delay = options.connectAttemptDelayMillis();
+            if (next < addresses.size() && delay > 0) {
+                //before the connect, that may fail right away and start the next attempt itself
+                nextAttempt = loop.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+
+            Bootstrap b =
+                new Bootstrap()
+                    .group(loop)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.ALLOCATOR, proxyServer.allocator())
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, options.connectTimeoutMillis())
+                    //nothing to read into, until the pipeline is there
+                    .option(ChannelOption.AUTO_READ, false)
+                    .handler(new Attempt(this, address));
+
+            ChannelFuture attempt = b.connect(new InetSocketAddress(address, port));
+            attempts.add(attempt);
+            attempt.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        lost(future.cause(), address);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return whether the channel won, otherwise it's to be closed
+         */
+        private boolean won(Channel channel, InetAddress address) {
+            if (decided) {
+                return false;
+            }
+            decided = true;
+            succeeded(address);
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+            }
+            boolean earlier = true;
+            for (int i = 0; i < attempts.size(); i++) {
+                ChannelFuture attempt = attempts.get(i);
+                if (attempt.channel() == channel) {
+                    earlier = false;
+                } else {
+                    if (earlier && !attempt.isDone()) {
+                        //started before the winner and still connecting, tried last next time
+                        failed(addresses.get(i));
+                    }
+                    attempt.channel().close();
+                }
+            }
+
+            return true;
+        }
+
+        private void lost(Throwable cause, InetAddress address) {
+            if (decided) {
+                //closed by the winner
+                return;
+            }
+            failed(address);
+            failures++;
+            if (next < addresses.size()) {
+                if (nextAttempt != null) {
+                    nextAttempt.cancel(false);
+                }
+                run();
+            } else if (failures == attempts.size()) {
+                decided = true;
+                result.tryFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * The only handler of an attempt, the winner replaces it with the initializer, once connected.
+     */
+    private static final class Attempt extends ChannelInboundHandlerAdapter {
+        private final Race race;
+        private final InetAddress address;
+
+        Attempt(Race race, InetAddress address) {
+            this.race = race;
+            this.address = address;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (!race.won(ctx.channel(), address)) {
+                ctx.close();
+                return;
+            }
+
+            //as if the initializer had been there, when the channel was registered
+            ctx.pipeline().addLast(race.initializer);
+            ctx.channel().config().setAutoRead(true);
+            ctx.fireChannelRegistered();
+            ctx.fireChannelActive();
+            ctx.pipeline().remove(this);
+
+            if (!race.result.trySuccess(ctx.channel())) {
+                ctx.close();
+            }
+        }
+    }
+}
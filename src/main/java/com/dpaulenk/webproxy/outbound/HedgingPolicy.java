@@ -0,0 +1,121 @@
+package com.dpaulenk.webproxy.outbound;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When to send a second attempt of an idempotent request, whose response is late.
+ * <p>
+ * The delay is a percentile of the upstream time to first byte, learned from the last thousand or so responses:
+ * every period the recorded values are added to a window, and once it has enough of them, the delay is taken
+ * from it and it starts over. Until then nothing is hedged. Hedges are also limited to a percentage of the
+ * requests, that could be hedged, over the last two periods, so a slow origin doesn't get twice the load.
+ */
+public class HedgingPolicy implements TimerTask {
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final int MIN_SAMPLES = 1000;
+    private static final long PERIOD_MILLIS = 1000;
+
+    private final WebProxyServer proxyServer;
+
+    private final Recorder ttfb = new Recorder(SIGNIFICANT_DIGITS);
+    //timer thread only
+    private Histogram interval;
+    private final Histogram window = new Histogram(SIGNIFICANT_DIGITS);
+
+    //0, until enough responses were seen
+    private volatile long delayNanos;
+
+    private final AtomicLong armed = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    //as of the previous period
+    private volatile long lastArmed;
+    private volatile long lastHedges;
+
+    private Timer timer;
+    private volatile boolean stopped;
+
+    public HedgingPolicy(WebProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    public synchronized void start(Timer timer) {
+        this.timer = timer;
+        timer.newTimeout(this, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public void record(long ttfbNanos) {
+        if (ttfbNanos >= 0) {
+            ttfb.recordValue(TimeUnit.NANOSECONDS.toMicros(ttfbNanos));
+        }
+    }
+
+    /**
+     * A request could be hedged, it's counted for the budget.
+     *
+     * @return nanos to wait for the first byte, before a hedge is sent, 0 not to hedge
+     */
+    public long armed() {
+        WebProxyOptions options = proxyServer.options();
+        if (!options.hedgeRequests()) {
+            return 0;
+        }
+        armed.incrementAndGet();
+        long delay = delayNanos;
+        return delay == 0 ? 0 : Math.max(delay, TimeUnit.MILLISECONDS.toNanos(options.hedgeMinDelayMillis()));
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     */
+    public boolean tryHedge() {
+        long allowed = (lastArmed + armed.get()) * proxyServer.options().hedgeBudgetPercent() / 100;
+        for (;;) {
+            long current = hedges.get();
+            if (lastHedges + current >= allowed) {
+                return false;
+            }
+            if (hedges.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public long delayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(delayNanos);
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (stopped) {
+            return;
+        }
+
+        try {
+            interval = ttfb.getIntervalHistogram(interval);
+            window.add(interval);
+            if (window.getTotalCount() >= MIN_SAMPLES) {
+                long micros = window.getValueAtPercentile(proxyServer.options().hedgePercentile());
+                delayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(1, micros));
+                window.reset();
+            }
+
+            lastArmed = armed.getAndSet(0);
+            lastHedges = hedges.getAndSet(0);
+        } finally {
+            timer.newTimeout(this, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -1,27 +1,56 @@
 package com.dpaulenk.webproxy.outbound;
 
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.WebProxyServer;
+import com.dpaulenk.webproxy.common.ExchangeSizingHandler;
+import com.dpaulenk.webproxy.common.IdleReaper;
+import com.dpaulenk.webproxy.common.WriteSpooler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.*;
 
+import java.io.File;
+
 public class OutboundInitializer extends ChannelInitializer<SocketChannel> {
     private final OutboundProxyHandler outboundHandler;
     private final boolean isTunneling;
-    private final int maxChunkSize;
+    private final WebProxyServer proxyServer;
+    //null, unless the tunnel goes through a parent proxy
+    private final ParentConnectHandler parentConnect;
 
-    public OutboundInitializer(OutboundProxyHandler outboundHandler, boolean isTunneling, int maxChunkSize) {
+    public OutboundInitializer(OutboundProxyHandler outboundHandler, boolean isTunneling, WebProxyServer proxyServer,
+                               ParentConnectHandler parentConnect) {
         this.outboundHandler = outboundHandler;
         this.isTunneling = isTunneling;
-        this.maxChunkSize = maxChunkSize;
+        this.proxyServer = proxyServer;
+        this.parentConnect = parentConnect;
     }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline p = ch.pipeline();
 
+        WebProxyOptions options = proxyServer.options();
+
+        p.addLast("metrics", proxyServer.metrics().upstreamHandler());
+        p.addLast("idle", new IdleReaper(proxyServer.idleTimer(),
+                                         isTunneling ? proxyServer.tunnelTimeouts() : proxyServer.upstreamTimeouts()));
+        if (options.requestSpoolMemoryThreshold() > 0) {
+            //below the codec, it spools encoded request bodies and tunneled bytes
+            String directory = options.spoolDirectory();
+            p.addLast("spool", new WriteSpooler(options.requestSpoolMemoryThreshold(), options.requestSpoolMaxFileSize(),
+                                                options.spoolMaxTotalSize(),
+                                                directory.isEmpty() ? null : new File(directory),
+                                                proxyServer.metrics()));
+        }
+
         if (!isTunneling) {
-            p.addLast("httpcodec", new HttpClientCodec(8192, 8192 * 2, maxChunkSize));
+            p.addLast("httpcodec", new HttpClientCodec(8192, 8192 * 2, options.upstreamMaxChunkSize()));
+        }
+        p.addLast("sizing", ExchangeSizingHandler.forChannel(ch, options, isTunneling));
+        if (parentConnect != null) {
+            p.addLast("parentconnect", parentConnect);
         }
 
         p.addLast(outboundHandler);
@@ -1,8 +1,10 @@
 package com.dpaulenk.webproxy.outbound;
 
 import com.dpaulenk.webproxy.common.AbstractProxyHandler;
+import com.dpaulenk.webproxy.common.HeaderRewriter;
+import com.dpaulenk.webproxy.common.WriteSpooler;
 import com.dpaulenk.webproxy.inbound.InboundProxyHandler;
-import com.dpaulenk.webproxy.utils.ProxyUtils;
+import com.dpaulenk.webproxy.metrics.ProxyMetrics;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
@@ -10,6 +12,9 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import org.apache.log4j.Logger;
 
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static com.dpaulenk.webproxy.outbound.OutboundHandlerState.DISCONNECTED;
 import static com.dpaulenk.webproxy.outbound.OutboundHandlerState.INITIAL;
 import static com.dpaulenk.webproxy.outbound.OutboundHandlerState.READING_CONTENT;
@@ -19,14 +24,82 @@ public class OutboundProxyHandler extends AbstractProxyHandler<HttpResponse, Out
     private static final Logger logger = Logger.getLogger(OutboundProxyHandler.class);
 
     private final InboundProxyHandler inboundHandler;
+    private final HeaderRewriter headerRewriter;
+    private final ProxyMetrics metrics;
+    private final HedgingPolicy hedging;
+
+    //null, if connected to the origin
+    private final ParentProxy parent;
 
     private boolean isKeepAlive = true;
 
-    public OutboundProxyHandler(InboundProxyHandler inboundHandler) {
+    //when the current request was written, for the time to first byte
+    private long requestWritten;
+
+    //requests written, that are not finished, and whether a response head is awaited
+    private final AtomicInteger outstandingRequests = new AtomicInteger();
+    private volatile boolean awaitingResponse;
+    //whether the connection idled, before the current request was written: an exchange was finished on it,
+    //or it was opened ahead of demand
+    private volatile boolean finishedExchange;
+    private volatile boolean requestOnReused;
+
+    //another attempt of the exchange won, or the client is gone
+    private volatile boolean abandoned;
+
+    public OutboundProxyHandler(InboundProxyHandler inboundHandler, HeaderRewriter headerRewriter, ProxyMetrics metrics,
+                                HedgingPolicy hedging, ParentProxy parent) {
         this.inboundHandler = inboundHandler;
+        this.headerRewriter = headerRewriter;
+        this.metrics = metrics;
+        this.hedging = hedging;
+        this.parent = parent;
         setCurrentState(INITIAL);
     }
 
+    /**
+     * Parent proxy, this handler is connected to, or null.
+     */
+    public ParentProxy parent() {
+        return parent;
+    }
+
+    public boolean hasOutstandingRequests() {
+        return outstandingRequests.get() > 0;
+    }
+
+    /**
+     * Whether the current request went on a kept alive connection, that may have been closed by the peer meanwhile.
+     */
+    public boolean isRequestOnReused() {
+        return requestOnReused;
+    }
+
+    /**
+     * The connection was opened ahead of demand, it may have been closed by the peer like a kept alive one.
+     */
+    public void connectedWarm() {
+        finishedExchange = true;
+    }
+
+    public SocketAddress remoteAddress() {
+        return channel == null ? null : channel.remoteAddress();
+    }
+
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Closes the connection, without affecting the client.
+     */
+    public void abandon() {
+        abandoned = true;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
     @Override
     protected void channelReadBytes(ChannelHandlerContext ctx, ByteBuf msg) {
         inboundHandler.writeToChannel(msg);
@@ -34,6 +107,9 @@ public class OutboundProxyHandler extends AbstractProxyHandler<HttpResponse, Out
 
     @Override
     protected void channelReadHttpObject(ChannelHandlerContext ctx, HttpObject msg) {
+        if (abandoned) {
+            return;
+        }
         switch (currentState) {
             case INITIAL:
                 reaInitialResponse((HttpResponse) msg);
@@ -47,7 +123,21 @@ public class OutboundProxyHandler extends AbstractProxyHandler<HttpResponse, Out
     }
 
     private void reaInitialResponse(HttpResponse res) {
-        ProxyUtils.prepareProxyResponse(res);
+        long ttfb = System.nanoTime() - requestWritten;
+        metrics.ttfb.recordNanos(ttfb);
+        hedging.record(ttfb);
+        if (parent != null && awaitingResponse) {
+            parent.succeeded(ttfb);
+        }
+        awaitingResponse = false;
+
+        if (!inboundHandler.claimResponse(this)) {
+            //another attempt answered first
+            abandon();
+            return;
+        }
+
+        headerRewriter.rewriteResponse(res, inboundHandler.isCaching());
 
         isKeepAlive = isKeepAlive && HttpHeaders.isKeepAlive(res);
 
@@ -69,8 +159,13 @@ public class OutboundProxyHandler extends AbstractProxyHandler<HttpResponse, Out
     }
 
     private void onLastChunkWritten() {
+        metrics.exchange.recordSince(inboundHandler.exchangeStart());
+        endRequests(1);
+        finishedExchange = true;
+
         setCurrentState(INITIAL);
         inboundHandler.writeToChannel(Unpooled.EMPTY_BUFFER);
+        inboundHandler.exchangeFinished();
 
         if (!isKeepAlive) {
             forceDisconnect();
@@ -86,19 +181,75 @@ public class OutboundProxyHandler extends AbstractProxyHandler<HttpResponse, Out
     @Override
     public ChannelFuture writeToChannel(Object msg) {
         if (msg instanceof HttpRequest) {
+            requestWritten = System.nanoTime();
             isKeepAlive = isKeepAlive && HttpHeaders.isKeepAlive((HttpMessage) msg);
+            requestOnReused = finishedExchange;
+            outstandingRequests.incrementAndGet();
+            awaitingResponse = true;
+            if (parent != null) {
+                parent.begin();
+            }
         }
         return super.writeToChannel(msg);
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == WriteSpooler.Event.FULL) {
+            //the origin is too far behind even for the spool, stop reading the request body
+            inboundHandler.pauseReading(PAUSED_BY_SPOOL);
+        } else if (evt == WriteSpooler.Event.DRAINED) {
+            inboundHandler.resumeReading(PAUSED_BY_SPOOL);
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (abandoned) {
+            return;
+        }
         logger.warn("Error in outbound handler: ", cause);
-        forceDisconnect();
+        if (channel.isActive()) {
+            //the client is answered or disconnected, when the channel is inactive
+            channel.close();
+        } else {
+            forceDisconnect();
+        }
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        boolean unanswered = awaitingResponse;
+        awaitingResponse = false;
+        //a kept alive connection may just have timed out at the parent
+        if (parent != null && unanswered && !abandoned && !requestOnReused) {
+            //closed without an answer, passive health check of the parent
+            ParentProxies.failed(parent);
+        }
+        endRequests(Integer.MAX_VALUE);
+
+        if (abandoned || (unanswered && inboundHandler.attemptFailed(this))) {
+            setCurrentState(DISCONNECTED);
+            return;
+        }
         forceDisconnect();
     }
+
+    private void endRequests(int count) {
+        for (;;) {
+            int current = outstandingRequests.get();
+            int ended = Math.min(current, count);
+            if (ended == 0) {
+                return;
+            }
+            if (outstandingRequests.compareAndSet(current, current - ended)) {
+                for (int i = 0; parent != null && i < ended; i++) {
+                    parent.end();
+                }
+                return;
+            }
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package com.dpaulenk.webproxy.outbound;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+
+/**
+ * Opens a tunnel through a parent proxy: sends CONNECT for the origin and reads the response head.
+ * On 200 it leaves the pipeline, so the tunnel is plain bytes, like a direct one; bytes, that came
+ * right after the head, are passed on.
+ * <p>
+ * A parent, that doesn't answer, counts as failed; a parent, that refuses the tunnel, is healthy,
+ * it's the origin or the rules of the parent, that are at fault.
+ */
+public class ParentConnectHandler extends ChannelInboundHandlerAdapter {
+    //longer heads are not a proxy talking
+    private static final int MAX_HEAD_SIZE = 8192;
+
+    private final ParentProxy parent;
+    private final String hostAndPort;
+
+    private ChannelPromise established;
+    private ByteBuf head;
+    private long connectSent;
+
+    public ParentConnectHandler(ParentProxy parent, String hostAndPort) {
+        this.parent = parent;
+        this.hostAndPort = hostAndPort;
+    }
+
+    /**
+     * Succeeds, when the parent answers 200, fails on any other answer or when the connection is lost.
+     */
+    public ChannelFuture established() {
+        return established;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        established = ctx.newPromise();
+        head = ctx.alloc().heapBuffer(256);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (head != null) {
+            head.release();
+            head = null;
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        //a tunnel is outstanding, as long as it's open
+        parent.begin();
+        ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                parent.end();
+            }
+        });
+
+        String request = "CONNECT " + hostAndPort + " HTTP/1.1\r\n" +
+                         "Host: " + hostAndPort + "\r\n" +
+                         "\r\n";
+        connectSent = System.nanoTime();
+        ctx.writeAndFlush(Unpooled.copiedBuffer(request, CharsetUtil.US_ASCII));
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf) || established.isDone()) {
+            super.channelRead(ctx, msg);
+            return;
+        }
+
+        ByteBuf in = (ByteBuf) msg;
+        try {
+            head.writeBytes(in);
+        } finally {
+            in.release();
+        }
+
+        int end = headEnd(head);
+        if (end == -1) {
+            if (head.readableBytes() > MAX_HEAD_SIZE) {
+                refused(ctx, "response head over " + MAX_HEAD_SIZE + " bytes");
+            }
+            return;
+        }
+
+        int status = status(head);
+        if (status != 200) {
+            refused(ctx, "status " + status);
+            return;
+        }
+
+        parent.succeeded(System.nanoTime() - connectSent);
+
+        ByteBuf rest = head.writerIndex() > end ? head.copy(end, head.writerIndex() - end) : null;
+        ctx.pipeline().remove(this);
+        established.setSuccess();
+        if (rest != null) {
+            ctx.fireChannelRead(rest);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (!established.isDone()) {
+            ParentProxies.failed(parent);
+            established.tryFailure(new IOException("Parent proxy " + parent.address() + " closed the connection"));
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void refused(ChannelHandlerContext ctx, String reason) {
+        established.tryFailure(new IOException("Parent proxy " + parent.address() + " refused CONNECT " +
+                                               hostAndPort + ": " + reason));
+        ctx.close();
+    }
+
+    /**
+     * @return index after the blank line, -1 if it's not there yet
+     */
+    private static int headEnd(ByteBuf buf) {
+        int start = buf.readerIndex();
+        int end = buf.writerIndex();
+        for (int i = start; i + 3 < end; i++) {
+            if (buf.getByte(i) == '\r' && buf.getByte(i + 1) == '\n' &&
+                buf.getByte(i + 2) == '\r' && buf.getByte(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Status code of "HTTP/1.1 200 Connection established", -1 if it's not a status line.
+     */
+    private static int status(ByteBuf buf) {
+        int start = buf.readerIndex();
+        int space = buf.indexOf(start, buf.writerIndex(), (byte) ' ');
+        if (space == -1 || buf.writerIndex() < space + 4) {
+            return -1;
+        }
+        int status = 0;
+        for (int i = space + 1; i < space + 4; i++) {
+            int digit = buf.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+}
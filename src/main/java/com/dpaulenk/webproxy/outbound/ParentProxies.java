@@ -0,0 +1,201 @@
+package com.dpaulenk.webproxy.outbound;
+
+import com.dpaulenk.webproxy.WebProxyOptions;
+import com.dpaulenk.webproxy.utils.ProxyUtils;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Routing rules for parent proxies, checked in order, the first one matching the origin host wins:
+ * <pre>
+ *   *.internal.example.com direct               - connect to the origin
+ *   * 10.0.0.1:3128 10.0.0.2:3128               - any of these parents
+ * </pre>
+ * Hosts matching no rule are connected directly. Of the parents of a rule, the one with the fewest outstanding
+ * requests is taken, or, with "ewma" selection, the one with the lowest latency average weighted by them.
+ * Ejected parents are skipped, unless all of them are, then the one, that comes back first, is taken.
+ * <p>
+ * Immutable, reloading builds a new instance, that keeps the state of parents with the same address.
+ */
+public final class ParentProxies {
+    private static final Logger logger = Logger.getLogger(ParentProxies.class);
+
+    public static final ParentProxies EMPTY =
+        new ParentProxies(Collections.<Rule>emptyList(), Collections.<String, ParentProxy>emptyMap(), false);
+
+    private static final String DIRECT = "direct";
+
+    private final List<Rule> rules;
+    //by address, every parent once, whatever rules it's in
+    private final Map<String, ParentProxy> parents;
+    private final boolean ewma;
+
+    //ties are broken round robin
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private ParentProxies(List<Rule> rules, Map<String, ParentProxy> parents, boolean ewma) {
+        this.rules = rules;
+        this.parents = parents;
+        this.ewma = ewma;
+    }
+
+    /**
+     * @param previous parents of it are kept, with their load and health
+     */
+    public static ParentProxies load(WebProxyOptions options, ParentProxies previous) {
+        List<Rule> rules = new ArrayList<Rule>();
+        Map<String, ParentProxy> parents = new LinkedHashMap<String, ParentProxy>();
+
+        for (String spec : options.parentProxies()) {
+            String[] parts = spec.trim().split("\\s+");
+            if (parts.length < 2) {
+                logger.warn("Ignoring parent proxy rule, expected host pattern and parents: " + spec);
+                continue;
+            }
+
+            List<ParentProxy> targets = new ArrayList<ParentProxy>();
+            boolean valid = true;
+            for (int i = 1; i < parts.length && valid; i++) {
+                if (DIRECT.equals(parts[i])) {
+                    continue;
+                }
+                ParentProxy parent = parse(parts[i], parents, previous);
+                if (parent == null) {
+                    logger.warn("Ignoring parent proxy rule, expected host:port or direct, got " + parts[i] + ": " + spec);
+                    valid = false;
+                } else {
+                    targets.add(parent);
+                }
+            }
+            if (valid) {
+                rules.add(new Rule(ProxyUtils.hostPattern(parts[0]), targets));
+            }
+        }
+
+        if (rules.isEmpty()) {
+            return EMPTY;
+        }
+        return new ParentProxies(rules, parents, "ewma".equals(options.parentSelection()));
+    }
+
+    private static ParentProxy parse(String address, Map<String, ParentProxy> parents, ParentProxies previous) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (port < 1 || port > 65535) {
+            return null;
+        }
+
+        String key = address.toLowerCase();
+        ParentProxy parent = parents.get(key);
+        if (parent == null) {
+            parent = previous.parents.get(key);
+            if (parent == null) {
+                parent = new ParentProxy(key.substring(0, colon), port);
+            }
+            parents.put(key, parent);
+        }
+        return parent;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return parents for the origin host, null to connect directly
+     */
+    public List<ParentProxy> route(String host) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        String lower = host.toLowerCase();
+        for (Rule rule : rules) {
+            if (rule.hostPattern.matcher(lower).matches()) {
+                return rule.parents.isEmpty() ? null : rule.parents;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param exclude parent, that just failed, or null
+     * @return the least loaded parent, null if there is none but the excluded one
+     */
+    public ParentProxy select(List<ParentProxy> candidates, ParentProxy exclude) {
+        long now = System.nanoTime();
+        int size = candidates.size();
+        int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+        ParentProxy best = null;
+        double bestScore = 0;
+        ParentProxy soonest = null;
+        for (int i = 0; i < size; i++) {
+            ParentProxy parent = candidates.get((start + i) % size);
+            if (parent == exclude) {
+                continue;
+            }
+            if (parent.isEjected(now)) {
+                if (soonest == null || parent.ejectedUntil() - soonest.ejectedUntil() < 0) {
+                    soonest = parent;
+                }
+                continue;
+            }
+
+            double score = ewma ? (parent.latencyEwma() + 1) * (parent.outstanding() + 1) : parent.outstanding();
+            if (best == null || score < bestScore) {
+                best = parent;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : soonest;
+    }
+
+    /**
+     * Counts a failure of the parent, and logs it, if that ejects it.
+     */
+    public static void failed(ParentProxy parent) {
+        WebProxyOptions options = WebProxyOptions.getInstance();
+        if (parent.failed(options.parentMaxFailures(), TimeUnit.MILLISECONDS.toNanos(options.parentEjectMillis()))) {
+            logger.warn("Parent proxy " + parent.address() + " failed " + options.parentMaxFailures() +
+                        " times in a row, ejected for " + options.parentEjectMillis() + "ms");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("rules ").append(rules.size()).append('\n');
+        sb.append("selection ").append(ewma ? "ewma" : "least-outstanding").append('\n');
+        for (ParentProxy parent : parents.values()) {
+            sb.append(parent).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static final class Rule {
+        final Pattern hostPattern;
+        //empty for direct
+        final List<ParentProxy> parents;
+
+        Rule(Pattern hostPattern, List<ParentProxy> parents) {
+            this.hostPattern = hostPattern;
+            this.parents = parents;
+        }
+    }
+}
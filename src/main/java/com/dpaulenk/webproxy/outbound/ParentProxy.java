@@ -0,0 +1,102 @@
+package com.dpaulenk.webproxy.outbound;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A parent proxy with its load and health, as seen by passive checks: connections that fail,
+ * or close before a response, count as failures, and so many in a row eject the parent for a while.
+ * After that one more failure ejects it again.
+ */
+public class ParentProxy {
+    //weight of a new latency sample
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String host;
+    private final int port;
+
+    //requests waiting for or reading a response, and open tunnels
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    //guarded by this
+    private double latencyEwma;
+    private int failures;
+    private long ejectedUntil;
+
+    private volatile long ejections;
+
+    ParentProxy(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public String address() {
+        return host + ":" + port;
+    }
+
+    public void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    public void end() {
+        outstanding.decrementAndGet();
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Response head received this long after the request was written.
+     */
+    public synchronized void succeeded(long latencyNanos) {
+        failures = 0;
+        latencyEwma = latencyEwma == 0 ? latencyNanos : latencyEwma + EWMA_ALPHA * (latencyNanos - latencyEwma);
+    }
+
+    /**
+     * @return whether this failure ejected the parent
+     */
+    public synchronized boolean failed(int maxFailures, long ejectNanos) {
+        long now = System.nanoTime();
+        if (++failures < maxFailures || isEjected(now)) {
+            return false;
+        }
+        ejectedUntil = now + ejectNanos;
+        //on probation, once back
+        failures = maxFailures - 1;
+        ejections++;
+        return true;
+    }
+
+    public synchronized boolean isEjected(long now) {
+        return ejectedUntil != 0 && ejectedUntil - now > 0;
+    }
+
+    synchronized long ejectedUntil() {
+        return ejectedUntil;
+    }
+
+    public synchronized double latencyEwma() {
+        return latencyEwma;
+    }
+
+    public long ejections() {
+        return ejections;
+    }
+
+    @Override
+    public String toString() {
+        return address() + " outstanding " + outstanding() +
+               " latency_ewma_ms " + TimeUnit.NANOSECONDS.toMillis((long) latencyEwma()) +
+               " ejected " + isEjected(System.nanoTime()) + " ejections " + ejections;
+    }
+}
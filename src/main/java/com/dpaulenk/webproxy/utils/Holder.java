@@ -1,20 +0,0 @@
-package com.dpaulenk.webproxy.utils;
-
-public class Holder<T> {
-    T value;
-
-    public Holder() {
-    }
-
-    public Holder(T value) {
-        this.value = value;
-    }
-
-    public T get() {
-        return value;
-    }
-
-    public void set(T value) {
-        this.value = value;
-    }
-}
@@ -0,0 +1,150 @@
+package com.dpaulenk.webproxy.utils;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe HTTP-date parsing and formatting: http://tools.ietf.org/html/rfc2616#section-3.3.1
+ * <p>
+ * The preferred RFC 1123 format, that is all origins send nowadays, is parsed by hand without allocations,
+ * the obsolete ones fall back to per-thread formats. Formatted values are shared within the same second.
+ */
+public final class HttpDates {
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private static final String[] PATTERNS = {
+        "EEE, dd MMM yyyy HH:mm:ss zzz",  // RFC 1123
+        "EEEE, dd-MMM-yy HH:mm:ss zzz",   // RFC 850, obsolete
+        "EEE MMM d HH:mm:ss yyyy"         // asctime(), obsolete
+    };
+
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+    private static final ThreadLocal<SimpleDateFormat[]> formats = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            SimpleDateFormat[] formats = new SimpleDateFormat[PATTERNS.length];
+            for (int i = 0; i < PATTERNS.length; i++) {
+                formats[i] = new SimpleDateFormat(PATTERNS[i], Locale.US);
+                formats[i].setTimeZone(GMT);
+            }
+            return formats;
+        }
+    };
+
+    private static volatile FormattedSecond lastFormatted = new FormattedSecond(-1, null);
+
+    private HttpDates() {}
+
+    /**
+     * @return milliseconds since epoch, or -1 if the value is missing or malformed
+     */
+    public static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        long time = parseRfc1123(value);
+        if (time != -1) {
+            return time;
+        }
+
+        for (SimpleDateFormat format : formats.get()) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if (date != null && position.getIndex() > 0) {
+                return date.getTime();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Values are shared by all threads within the same second.
+     */
+    public static String format(long time) {
+        long second = time / 1000;
+
+        FormattedSecond last = lastFormatted;
+        if (last.second == second) {
+            return last.value;
+        }
+
+        String value = formats.get()[0].format(new Date(second * 1000));
+        lastFormatted = new FormattedSecond(second, value);
+        return value;
+    }
+
+    /**
+     * Fixed layout: "Sun, 06 Nov 1994 08:49:37 GMT"
+     * @return -1 if the value doesn't follow it exactly
+     */
+    private static long parseRfc1123(String value) {
+        if (value.length() != 29 || value.charAt(3) != ',' || !value.endsWith(" GMT")) {
+            return -1;
+        }
+
+        int day = digits(value, 5, 2);
+        int month = month(value, 8);
+        int year = digits(value, 12, 4);
+        int hour = digits(value, 17, 2);
+        int minute = digits(value, 20, 2);
+        int second = digits(value, 23, 2);
+        if (day < 1 || month < 0 || year < 0 || hour < 0 || hour > 23 ||
+            minute < 0 || minute > 59 || second < 0 || second > 60 ||
+            value.charAt(19) != ':' || value.charAt(22) != ':') {
+            return -1;
+        }
+
+        long days = daysSinceEpoch(year, month + 1, day);
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    private static int digits(String value, int start, int count) {
+        int n = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private static int month(String value, int start) {
+        for (int m = 0; m < 12; m++) {
+            if (value.regionMatches(true, start, MONTHS, m * 3, 3)) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Proleptic Gregorian calendar, month is 1-12: http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static final class FormattedSecond {
+        final long second;
+        final String value;
+
+        FormattedSecond(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}